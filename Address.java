@@ -31,4 +31,31 @@ public class Address {
     public int getPort() {
         return port;
     }
+
+    /**
+     * Parses an address in IP:port format
+     * @param _addr Address string
+     * @return Address object
+     */
+    public static Address parse(String _addr) {
+        String [] parts = _addr.split(":");
+        return new Address(parts[0], Integer.parseInt(parts[1]));
+    }
+
+    @Override
+    public boolean equals(Object _o) {
+        if (!(_o instanceof Address)) return false;
+        Address a = (Address) _o;
+        return port == a.port && IP.equals(a.IP);
+    }
+
+    @Override
+    public int hashCode() {
+        return IP.hashCode() * 31 + port;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d", IP, port);
+    }
 }
@@ -0,0 +1,332 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * AntiEntropy repairs the replicas a StorageNode missed, e.g. because an
+ * Uploader could not reach it. Every few seconds it picks a random alive
+ * peer and compares a MerkleTree of the files the hash ring places on both
+ * of them with the peer's tree over MERKLE requests, level by level from the
+ * root. Only the leaves whose hashes differ are listed, and the files the
+ * peer has and this node lacks are pulled from the peer with FETCH.
+ * When both hold a file but the copies differ, the DirectoryServer's FileMeta
+ * tells which one is right, and the other node fetches the file again.
+ * Content digests are computed once per file and kept until it changes.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class AntiEntropy extends Thread {
+    // Time between two rounds in ms, 0 turns anti-entropy off
+    static final long INTERVAL = Long.getLong("dfs.antientropy.interval", 30000);
+    // Number of leaves listed in one MERKLE request
+    static final int LEAF_BATCH = 64;
+
+    private StorageNode node;
+    private List<NavigableSet<String>> buckets;
+    private ConcurrentHashMap<String, byte []> digests;
+    // <K: peer address, V: tree of the files shared with the peer>
+    private ConcurrentHashMap<String, MerkleTree> trees;
+    private Random rand;
+
+    /**
+     * Default constructor
+     * @param _node StorageNode to repair
+     */
+    public AntiEntropy(StorageNode _node) {
+        node = _node;
+        buckets = new ArrayList<NavigableSet<String>>(MerkleTree.LEAVES);
+        for (int i = 0; i < MerkleTree.LEAVES; i++)
+            buckets.add(new ConcurrentSkipListSet<String>());
+        digests = new ConcurrentHashMap<String, byte []>();
+        trees = new ConcurrentHashMap<String, MerkleTree>();
+        rand = new Random();
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        if (INTERVAL <= 0) return;
+
+        do {
+            try {
+                Thread.sleep(INTERVAL + rand.nextInt((int) Math.max(INTERVAL / 10, 1)));
+                round();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Anti-entropy round failed: " + e.getMessage());
+            }
+        } while (true);
+    }
+
+    /**
+     * Compares this node with one random peer and pulls what it misses
+     * @throws IOException if the DirectoryServer or the peer cannot be reached
+     */
+    private void round() throws IOException {
+        Message nodes = node.getMembers();
+        if (!nodes.getMessage().equals("SUCCESS")) return;
+        ArrayList<String> members = (ArrayList<String>) nodes.getContent().get(0);
+        int factor = (Integer) nodes.getContent().get(1);
+
+        ArrayList<String> peers = new ArrayList<String>(members);
+        peers.remove(node.getAddress());
+        if (peers.isEmpty() || peers.size() == members.size()) return;
+
+        String peer = peers.get(rand.nextInt(peers.size()));
+        ArrayList<FileMeta> differing = new ArrayList<FileMeta>();
+        ArrayList<FileMeta> missing = diff(peer, members, factor, differing);
+        for (FileMeta fm : differing)
+            settle(peer, fm);
+        if (missing.isEmpty()) return;
+
+        ArrayList<String> got = node.pull(peer, missing);
+        ArrayList<FileMeta> repaired = new ArrayList<FileMeta>();
+        for (String file : got)
+            repaired.add(node.getFileMeta(file));
+        if (!repaired.isEmpty()) node.holdingToDirectory(repaired);
+        System.out.println(String.format("Anti-entropy with %s: %d files missing, %d repaired.", peer, missing.size(), got.size()));
+    }
+
+    /**
+     * Settles a file whose copies on this node and a peer differ. The copy
+     * that does not match the size and checksum of the DirectoryServer's
+     * FileMeta is fetched again from the other node. If this node's copy is
+     * wrong and the peer's cannot replace it, it is dropped and reported, so
+     * the DirectoryServer copies the file here from another node.
+     * @param _peer Address of the peer
+     * @param _theirs Peer's FileMeta object of the file
+     * @throws IOException if the DirectoryServer or the peer cannot be reached
+     */
+    private void settle(String _peer, FileMeta _theirs) throws IOException {
+        FileMeta right = node.fileInfoFromDirectory(_theirs.getName());
+        if (right == null || !right.hasChecksum()) {
+            // Neither copy is known to be the right one, leave it to an operator
+            System.err.println(String.format("Anti-entropy: %s differs on %s.", _theirs.getName(), _peer));
+            return;
+        }
+
+        ArrayList<FileMeta> file = new ArrayList<FileMeta>(Arrays.asList(right));
+        if (node.checkFile(right)) {
+            // The peer's copy is wrong, it fetches this one and checks it against the checksum
+            Message req = new Message("PULL");
+            req.addContent(node.getAddress());
+            req.addContent(file);
+            Exchange ex = ConnectionPool.getInstance().open(Address.parse(_peer), req);
+            try {
+                Message resp = ex.receive(Exchange.TIMEOUT + right.getSize() / ReplicationScheduler.MIN_RATE);
+                boolean got = resp.getMessage().equals("SUCCESS") && !((ArrayList<?>) resp.getContent().get(0)).isEmpty();
+                System.out.println(String.format("Anti-entropy: %s on %s did not match its checksum, %s.", right.getName(), _peer,
+                        got ? "replaced it" : "could not replace it"));
+            } finally {
+                ex.close();
+            }
+        } else if (!node.pull(_peer, file).isEmpty()) {
+            System.out.println(String.format("Anti-entropy: %s did not match its checksum, replaced it from %s.", right.getName(), _peer));
+        } else {
+            node.dropDamaged(file);
+        }
+    }
+
+    /**
+     * Walks the trees of this node and a peer down to the leaves that differ
+     * @param _peer Address of the peer
+     * @param _members Alive StorageNodes
+     * @param _factor Number of StorageNodes each file is stored on
+     * @param _differing List to add the peer's FileMeta objects of the files whose copies differ into
+     * @return FileMeta objects of the files the peer has and this node does not
+     * @throws IOException if the peer cannot be reached
+     */
+    private ArrayList<FileMeta> diff(String _peer, ArrayList<String> _members, int _factor,
+                                     ArrayList<FileMeta> _differing) throws IOException {
+        MerkleTree tree = getTree(_peer, _members, _factor);
+        ArrayList<Integer> level = new ArrayList<Integer>(Arrays.asList(1));
+
+        // Compare one level at a time, going down only where the hashes differ
+        for (int depth = 0; depth < MerkleTree.DEPTH && !level.isEmpty(); depth++) {
+            ArrayList<Integer> next = new ArrayList<Integer>();
+            for (int i : differing(_peer, _members, _factor, tree, level)) {
+                next.add(2 * i);
+                next.add(2 * i + 1);
+            }
+            level = next;
+        }
+
+        ArrayList<Integer> leaves = new ArrayList<Integer>();
+        for (int i : differing(_peer, _members, _factor, tree, level))
+            leaves.add(i - MerkleTree.LEAVES);
+
+        ArrayList<FileMeta> missing = new ArrayList<FileMeta>();
+        for (int from = 0; from < leaves.size(); from += LEAF_BATCH) {
+            ArrayList<Integer> batch = new ArrayList<Integer>(leaves.subList(from, Math.min(from + LEAF_BATCH, leaves.size())));
+            Message resp = ConnectionPool.getInstance().call(Address.parse(_peer), merkleRequest(_members, _factor, batch, true));
+            if (!resp.getMessage().equals("SUCCESS")) return missing;
+
+            ArrayList<FileMeta> theirs = (ArrayList<FileMeta>) resp.getContent().get(0);
+            byte [] theirDigests = (byte []) resp.getContent().get(1);
+            for (int i = 0; i < theirs.size(); i++) {
+                FileMeta fm = theirs.get(i);
+                FileMeta mine = node.getFileMeta(fm.getName());
+                if (mine == null) {
+                    missing.add(fm);
+                } else if (mine.getSize() != fm.getSize() || !Arrays.equals(getDigest(fm.getName()),
+                        Arrays.copyOfRange(theirDigests, i * 16, i * 16 + 16))) {
+                    _differing.add(fm);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Asks the peer for the hashes of some tree nodes and compares them with this node's
+     * @param _peer Address of the peer
+     * @param _members Alive StorageNodes
+     * @param _factor Number of StorageNodes each file is stored on
+     * @param _tree This node's tree
+     * @param _nodes Tree nodes to compare
+     * @return Tree nodes whose hashes differ
+     * @throws IOException if the peer cannot be reached
+     */
+    private ArrayList<Integer> differing(String _peer, ArrayList<String> _members, int _factor, MerkleTree _tree,
+                                         ArrayList<Integer> _nodes) throws IOException {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        if (_nodes.isEmpty()) return result;
+
+        Message resp = ConnectionPool.getInstance().call(Address.parse(_peer), merkleRequest(_members, _factor, _nodes, false));
+        if (!resp.getMessage().equals("SUCCESS")) return result;
+
+        byte [] theirs = (byte []) resp.getContent().get(0);
+        byte [] mine = _tree.getHashes(_nodes);
+        for (int i = 0; i < _nodes.size(); i++)
+            if (!Arrays.equals(mine, i * 16, i * 16 + 16, theirs, i * 16, i * 16 + 16)) result.add(_nodes.get(i));
+        return result;
+    }
+
+    /**
+     * Builds a MERKLE request
+     * @param _members Alive StorageNodes
+     * @param _factor Number of StorageNodes each file is stored on
+     * @param _indices Tree nodes, or leaf numbers if _files is set
+     * @param _files true to ask for the files of leaves, false for hashes
+     * @return Request message
+     */
+    private Message merkleRequest(ArrayList<String> _members, int _factor, ArrayList<Integer> _indices, boolean _files) {
+        Message req = new Message("MERKLE");
+        req.addContent(_members);
+        req.addContent(node.getAddress());
+        req.addContent(_factor);
+        req.addContent(_indices);
+        req.addContent(_files);
+        return req;
+    }
+
+    /**
+     * Serves a MERKLE request from a peer. Content is the alive StorageNodes,
+     * the peer's address, the replication factor, the tree nodes or leaves
+     * and whether the files of the leaves are wanted. The response carries
+     * the hashes of the tree nodes, or the files of the leaves and their
+     * content digests.
+     * @param _request MERKLE request
+     * @return Response message
+     */
+    public Message respond(Message _request) {
+        ArrayList<String> members = (ArrayList<String>) _request.getContent().get(0);
+        String peer = (String) _request.getContent().get(1);
+        int factor = (Integer) _request.getContent().get(2);
+        ArrayList<Integer> indices = (ArrayList<Integer>) _request.getContent().get(3);
+        boolean files = (Boolean) _request.getContent().get(4);
+
+        MerkleTree tree = getTree(peer, members, factor);
+        Message response = new Message("SUCCESS");
+        if (!files) {
+            response.addContent(tree.getHashes(indices));
+            return response;
+        }
+
+        ArrayList<FileMeta> list = new ArrayList<FileMeta>();
+        for (int leaf : indices)
+            list.addAll(tree.getFiles(leaf));
+        byte [] listDigests = new byte[list.size() * 16];
+        for (int i = 0; i < list.size(); i++) {
+            byte [] d = getDigest(list.get(i).getName());
+            if (d != null) System.arraycopy(d, 0, listDigests, i * 16, 16);
+        }
+        response.addContent(list);
+        response.addContent(listDigests);
+        return response;
+    }
+
+    /**
+     * Returns the up to date tree of the files shared with a peer.
+     * A change in the alive StorageNodes moves files around, so the tree is built again.
+     * @param _peer Address of the peer
+     * @param _members Alive StorageNodes
+     * @param _factor Number of StorageNodes each file is stored on
+     * @return MerkleTree object
+     */
+    private MerkleTree getTree(String _peer, ArrayList<String> _members, int _factor) {
+        MerkleTree tree = trees.compute(_peer, (p, t) -> {
+            if (t != null && t.getMembers().equals(_members)) return t;
+
+            HashRing ring = new HashRing(_members);
+            HashMap<String, Boolean> alive = new HashMap<String, Boolean>();
+            for (String member : _members)
+                alive.put(member, true);
+            String self = node.getAddress();
+            return new MerkleTree(_members, file -> {
+                ArrayList<String> placement = ring.nodesFor(file, _factor, alive);
+                return placement.contains(self) && placement.contains(p);
+            }, buckets, node::getFileMeta, this::getDigest);
+        });
+        tree.update();
+        return tree;
+    }
+
+    /**
+     * Called when a file of the node is added, replaced or removed
+     * @param _file File name
+     */
+    public void fileChanged(String _file) {
+        digests.remove(_file);
+        if (node.fileExists(_file)) buckets.get(MerkleTree.leafOf(_file)).add(_file);
+        else buckets.get(MerkleTree.leafOf(_file)).remove(_file);
+        for (MerkleTree tree : trees.values())
+            tree.markDirty(_file);
+    }
+
+    /**
+     * Returns the MD5 digest of a file's content, reading the file only the first time
+     * @param _file File name
+     * @return Digest, null if the file cannot be read
+     */
+    private byte [] getDigest(String _file) {
+        return digests.computeIfAbsent(_file, f -> {
+            File file = node.getFile(f);
+            if (!file.isFile()) return null;
+            try {
+                FileInputStream fis = new FileInputStream(file);
+                try {
+                    MessageDigest md = MerkleTree.md5();
+                    byte [] buff = new byte[FileTransfer.CHUNK_SIZE];
+                    int r;
+                    while ((r = fis.read(buff)) > 0)
+                        md.update(buff, 0, r);
+                    return md.digest();
+                } finally {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+}
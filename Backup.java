@@ -1,13 +1,20 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.util.ArrayList;
 
 /**
- * Backup thread moves primary DirectoryServer's state
- * to the backup DirectoryServer in every second.
+ * Backup thread moves primary DirectoryServer's state to the backup
+ * DirectoryServer. It ships the changes logged since the last ones the
+ * backup applied (see StateLog) every INTERVAL ms. The whole state is sent
+ * only when the backup starts, restarts or falls behind the log.
  */
 class Backup extends Thread {
+    // Time between two shipments in ms
+    static final long INTERVAL = Long.getLong("dfs.backup.interval", 1000);
+    // Most changes sent in one STATELOG request
+    static final int BATCH = Integer.getInteger("dfs.backup.batch", 4096);
+
     private DirectoryServer ds;
+    // Sequence number of the last change the backup applied, -1 if unknown
+    private long shipped;
 
     /**
      * Default constructor
@@ -15,38 +22,24 @@ class Backup extends Thread {
      */
     public Backup(DirectoryServer _ds) {
         ds = _ds;
+        shipped = -1;
     }
 
     public void run() {
+        Address backup = new Address(ds.getBackupIP(), ds.getBackupPort());
+
         do {
             try
             {
-                // Sleep 1 sec
-                Thread.sleep(1000);
+                Thread.sleep(INTERVAL);
                 try
                 {
-                    // Open socket and streams to send primary's state to backup
-                    Socket sock = new Socket(ds.getBackupIP(), ds.getBackupPort());
-                    ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-                    ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-                    // Write state to output stream
-                    oos.writeObject(ds.getState());
-
-                    // Get response
-                    Message resp = (Message) ois.readObject();
-
-                    if (!resp.getMessage().equals("SUCCESS")) {
-                        System.err.println("Error: Backup server cannot sync the state.");
-                    }
-
-                    // Close streams and socket
-                    oos.close();
-                    ois.close();
-                    sock.close();
+                    // Ship until the backup has every change logged so far
+                    while (ship(backup));
                 }
-                // Backup server is not alive?
+                // Backup server is not alive? Send it the whole state when it is back.
                 catch(Exception e) {
+                    shipped = -1;
                     System.err.println(String.format("Error: Cannot connect to backup server on %s:%d.", ds.getBackupIP(), ds.getBackupPort()));
                 }
             }
@@ -56,4 +49,37 @@ class Backup extends Thread {
             }
         } while(true);
     }
+
+    /**
+     * Sends the backup the next batch of changes, or the whole state if the
+     * changes it needs are not in the log anymore
+     * @param _backup Address of the backup DirectoryServer
+     * @return true if there may be more changes to send right away
+     * @throws Exception if the backup cannot be reached
+     */
+    private boolean ship(Address _backup) throws Exception {
+        ArrayList<StateEntry> entries = shipped < 0 ? null : ds.getLog().since(shipped, BATCH);
+
+        if (entries == null) {
+            Message state = ds.getState();
+            Message resp = ConnectionPool.getInstance().call(_backup, state);
+            if (!resp.getMessage().equals("SUCCESS")) {
+                System.err.println("Error: Backup server cannot sync the state.");
+                return false;
+            }
+            shipped = (Long) state.getContent().get(4);
+            return true;
+        }
+        if (entries.isEmpty()) return false;
+
+        Message req = new Message("STATELOG");
+        req.addContent(shipped);
+        req.addContent(entries);
+        Message resp = ConnectionPool.getInstance().call(_backup, req);
+
+        // Backup missed some changes, e.g. it restarted. Send the whole state.
+        if (!resp.getMessage().equals("SUCCESS")) shipped = -1;
+        else shipped = entries.get(entries.size() - 1).getSeq();
+        return entries.size() == BATCH || shipped < 0;
+    }
 }
@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Measures what checksumming content costs. First hashes CHUNK_SIZE buffers
+ * in memory with CRC32C, the checksum FileMeta carries, and with the other
+ * checksums and digests the JDK has, and prints MB/s for each. Then runs a
+ * server and a client over loopback in one process, as DownloadBenchmark
+ * does, and downloads a file with and without a CRC32C computed while the
+ * chunks arrive. Prints throughput and client CPU time per GB for each mode.
+ * e.g. java ChecksumBenchmark 256 10
+ */
+public class ChecksumBenchmark implements RequestHandler {
+    // Size of the buffer hashed in memory, larger than the CPU caches
+    static final int HASH_BUFFER = 256 << 20;
+    // Rounds of each hash before and while it is measured
+    static final int HASH_WARMUP = 3;
+    static final int HASH_ROUNDS = 5;
+
+    // Results of the hashes, so the JIT cannot drop the loops
+    private static volatile long sink;
+
+    private File file;
+    private long checksum;
+
+    public static void main(String [] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("ChecksumBenchmark expects 2 arguments");
+            System.out.println("1) File size in MB");
+            System.out.println("2) Number of downloads per mode");
+            System.exit(0);
+        }
+
+        long size = Long.parseLong(args[0]) * 1024 * 1024;
+        int iterations = Integer.parseInt(args[1]);
+
+        System.out.printf("%-10s%15s\n", "Hash", "MB/s");
+        for (String hash : new String [] {"CRC32C", "CRC32", "Adler32", "MD5", "SHA-256"})
+            hash(hash, size);
+
+        File f = File.createTempFile("checksum", ".bin");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        byte [] buff = new byte[FileTransfer.CHUNK_SIZE];
+        new Random(42).nextBytes(buff);
+        // As a StorageNode gets it from the upload
+        Checksum sum = FileTransfer.newChecksum();
+        for (long written = 0; written < size; written += buff.length) {
+            int len = (int) Math.min(buff.length, size - written);
+            raf.write(buff, 0, len);
+            sum.update(buff, 0, len);
+        }
+        raf.close();
+
+        ChecksumBenchmark b = new ChecksumBenchmark(f, sum.getValue());
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true)
+                    new MuxConnection(serverChannel.accept().socket(), b);
+            } catch (Exception e) {
+                // Benchmark is over
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Address addr = new Address("127.0.0.1", serverChannel.socket().getLocalPort());
+        System.out.printf("\n%-10s%15s%20s\n", "Download", "MB/s", "Client CPU s/GB");
+        for (String mode : new String [] {"plain", "crc32c", "plain", "crc32c"})
+            b.run(addr, mode, size, iterations);
+    }
+
+    public ChecksumBenchmark(File _file, long _checksum) {
+        file = _file;
+        checksum = _checksum;
+    }
+
+    /**
+     * Hashes _size bytes in CHUNK_SIZE updates and prints MB/s. The bytes come
+     * from a buffer much larger than the CPU caches, as a file read from disk
+     * would, not from one chunk hashed again and again. A few rounds warm the
+     * JIT up first, then the mean of the measured rounds is printed. Every
+     * result goes into sink, so no round can be dropped as dead code.
+     * @param _hash Name of the checksum or digest
+     * @param _size Number of bytes to hash
+     * @throws Exception if the digest is not available
+     */
+    private static void hash(String _hash, long _size) throws Exception {
+        byte [] data = new byte[(int) Math.min(_size, HASH_BUFFER)];
+        new Random(42).nextBytes(data);
+
+        long elapsed = 0;
+        for (int round = 0; round < HASH_WARMUP + HASH_ROUNDS; round++) {
+            long start = System.nanoTime();
+            Checksum sum = _hash.equals("CRC32C") ? new CRC32C() : _hash.equals("CRC32") ? new CRC32()
+                    : _hash.equals("Adler32") ? new Adler32() : null;
+            MessageDigest md = sum == null ? MessageDigest.getInstance(_hash) : null;
+            int offset = 0;
+            for (long done = 0; done < _size; ) {
+                int len = (int) Math.min(FileTransfer.CHUNK_SIZE, Math.min(data.length - offset, _size - done));
+                if (sum != null) sum.update(data, offset, len);
+                else md.update(data, offset, len);
+                done += len;
+                offset = (offset + len) % data.length;
+            }
+            sink += sum != null ? sum.getValue() : md.digest()[0];
+            if (round >= HASH_WARMUP) elapsed += System.nanoTime() - start;
+        }
+        double seconds = elapsed / 1e9 / HASH_ROUNDS;
+        System.out.printf("%-10s%15.1f\n", _hash, _size / (1024.0 * 1024) / seconds);
+    }
+
+    /**
+     * Downloads the file _iterations times in a mode and prints the results
+     * @param _addr Server address
+     * @param _mode plain or crc32c
+     * @param _size File size in bytes
+     * @param _iterations Number of downloads
+     * @throws Exception if a download fails or does not match its checksum
+     */
+    private void run(Address _addr, String _mode, long _size, int _iterations) throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long cpu = mx.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < _iterations; i++) {
+            Exchange ex = ConnectionPool.getInstance().open(_addr, new Message("DOWNLOAD"));
+            try {
+                FileMeta fm = (FileMeta) ex.receive().getContent().get(0);
+                Checksum sum = _mode.equals("crc32c") ? FileTransfer.newChecksum() : null;
+                FileTransfer.receive(ex, OutputStream.nullOutputStream(), fm.getSize(), sum);
+                if (sum != null && !FileTransfer.matches(fm, sum)) throw new IllegalStateException("Checksum mismatch");
+            } finally {
+                ex.close();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double gb = _size * (double) _iterations / (1024 * 1024 * 1024);
+        System.out.printf("%-10s%15.1f%20.3f\n", _mode, gb * 1024 / seconds, (mx.getCurrentThreadCpuTime() - cpu) / 1e9 / gb);
+    }
+
+    @Override
+    public void handle(Exchange _ex, Message _request) {
+        new Thread(() -> {
+            try {
+                Message head = new Message("SUCCESS");
+                head.addContent(new FileMeta(file.getName(), file.length(), checksum));
+                _ex.send(head);
+                FileTransfer.sendFile(_ex, file, file.length());
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                _ex.close();
+            }
+        }).start();
+    }
+}
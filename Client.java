@@ -1,8 +1,9 @@
 import java.io.*;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Scanner;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
 
 /**
  * DFS Client to perform basic operations such as getting file list,
@@ -10,11 +11,19 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Mesut Erhan Unal and Erhu He
  */
 public class Client {
+    // Number of files asked for in each LISTPAGE request
+    private static final int PAGE_SIZE = Integer.getInteger("dfs.client.pageSize", 20);
+    // Times a broken upload is resumed on the same StorageNode before connecting to another one
+    private static final int RETRIES = Integer.getInteger("dfs.client.retries", 3);
+    // Wait in ms before resuming a broken upload, grows with every try
+    private static final long BACKOFF = Long.getLong("dfs.client.backoff", 1000);
+
     private String clientID;
     private Address [] dirServers;
-    private String storageNodeIP;
-    private int storageNodePort;
+    private Address storageNode;
     private AtomicInteger dirServerIndex;
+    // File lists, holders and nodes learned so far, used again while their lease lasts
+    private ClientCache cache;
 
     /**
      * Entry point for the Client
@@ -45,9 +54,9 @@ public class Client {
     public Client(String _clientID, String _dirIP, int _dirPort, String _backupIP, int _backupPort) {
         clientID = _clientID;
         dirServers = new Address [] {new Address(_dirIP, _dirPort), new Address(_backupIP, _backupPort)};
-        storageNodeIP = null;
-        storageNodePort = -1;
+        storageNode = null;
         dirServerIndex = new AtomicInteger(0);
+        cache = new ClientCache();
     }
 
     public void run() {
@@ -62,13 +71,14 @@ public class Client {
 
         while (selection != 0) {
             System.out.println("1) Get file list from DirectoryServer");
-            if (storageNodeIP == null) {
+            if (storageNode == null) {
                 System.out.println("2) Connect to a StorageNode");
             } else {
                 System.out.println("2) Get file list from StorageNode");
                 System.out.println("3) Upload a file");
                 System.out.println("4) Read a file");
             }
+            System.out.println("5) Browse files on DirectoryServer by prefix");
             System.out.println("0) Exit");
 
             String file = null;
@@ -81,7 +91,7 @@ public class Client {
                     getFileListFromServer();
                     break;
                 case 2:
-                    if (storageNodeIP == null) connect();
+                    if (storageNode == null) connect();
                     else getFileListFromNode();
                     break;
                 case 3:
@@ -94,6 +104,10 @@ public class Client {
                     file = sc.nextLine();
                     downloadFile(file);
                     break;
+                case 5:
+                    System.out.print("Enter filename prefix (empty for all): ");
+                    browseFiles(sc.nextLine(), sc);
+                    break;
                 default:
                     System.out.println("Wrong selection.");
                     break;
@@ -106,58 +120,82 @@ public class Client {
      * @param _file Name of the file to upload
      */
     public void uploadFile(String _file) {
-        if (storageNodeIP == null) {
+        uploadFile(_file, 0);
+    }
+
+    /**
+     * Uploads a file to a StorageNode. The node keeps what it got of an
+     * upload that broke and tells where to resume, so a retry only sends the rest.
+     * @param _file Name of the file to upload
+     * @param _attempt Number of times the upload broke on this node
+     */
+    private void uploadFile(String _file, int _attempt) {
+        if (storageNode == null) {
             System.out.println("Connect to a StorageNode first.");
             return;
         }
 
         try {
-            // Open socket and streams to send the file to the StorageNode
-            Socket sock = new Socket(storageNodeIP, storageNodePort);
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create a request
             Message req = new Message("NEWFILE");
 
             // Check if file exists and can be read
             File f = new File(String.format("./%s/%s", clientID, _file));
             if (!f.isFile() || !f.canRead()) {
-                oos.close();
-                ois.close();
-                sock.close();
                 System.out.println("File not found or cannot read.");
                 return;
             }
 
-            // Read file, add it to the request and send
+            // Add FileMeta to the request and send
             FileMeta fm = new FileMeta(_file, f.length());
-            byte [] buff = new byte[(int) f.length()];
-            FileInputStream fis = new FileInputStream(f);
-            fis.read(buff);
-            fis.close();
             req.addContent(fm);
-            req.addContent(buff);
-            oos.writeObject(req);
-
-            // Get response
-            Message resp = (Message) ois.readObject();
-
-            if (resp.getMessage().equals("SUCCESS")) {
-                System.out.println("Uploaded successfully.");
-            } else {
-                System.out.println(resp.getContent().get(0));
+            Exchange ex = ConnectionPool.getInstance().open(storageNode, req);
+
+            try {
+                // StorageNode is ready, stream the content it does not have yet in chunks
+                Message resp = ex.receive();
+                if (resp.getMessage().equals("READY")) {
+                    long offset = resp.getContent().isEmpty() ? 0 : (Long) resp.getContent().get(0);
+                    if (offset > 0) System.out.println(String.format("Resuming at byte %d.", offset));
+                    // Checksum the bytes as they are sent, the ones sent before are read again for it
+                    Checksum sum = FileTransfer.newChecksum();
+                    FileInputStream fis = new FileInputStream(f);
+                    try {
+                        FileTransfer.update(sum, fis, offset);
+                        FileTransfer.send(ex, fis, fm.getSize() - offset, sum);
+                    } finally {
+                        fis.close();
+                    }
+                    Message trailer = new Message("CHECKSUM");
+                    trailer.addContent(sum.getValue());
+                    ex.send(trailer);
+                    resp = ex.receive();
+                }
+
+                if (resp.getMessage().equals("SUCCESS")) {
+                    // The cached file lists do not have the new file
+                    cache.catalogChanged();
+                    System.out.println("Uploaded successfully.");
+                } else {
+                    System.out.println(resp.getContent().get(0));
+                }
+            } finally {
+                ex.close();
             }
-
-            // Close streams and sockets
-            oos.close();
-            ois.close();
-            sock.close();
         }
-        // Probably StorageNode is down, connect another one
+        // Connection broke, resume on the same node a few times before connecting another one
         catch (Exception e) {
-            connect();
-            uploadFile(_file);
+            if (_attempt < RETRIES) {
+                try {
+                    Thread.sleep(BACKOFF * (_attempt + 1));
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                uploadFile(_file, _attempt + 1);
+            } else {
+                reconnect();
+                uploadFile(_file, 0);
+            }
         }
     }
 
@@ -166,79 +204,76 @@ public class Client {
      * @param _file Name of the file to download
      */
     public void downloadFile(String _file) {
-        if (storageNodeIP == null) {
+        if (storageNode == null) {
             System.out.println("Connect to a StorageNode first.");
             return;
         }
 
+        ParallelDownload download = null;
         try {
-            // Open socket and streams to download the file from the StorageNode
-            Socket sock = new Socket(storageNodeIP, storageNodePort);
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-            // Create and send the request
-            Message req = new Message("DOWNLOAD");
-            req.addContent(_file);
-            oos.writeObject(req);
-
-            // Get response
-            Message resp = (Message) ois.readObject();
-            // If successful, write file in this client's directory
+            // Ask the nodes that hold the file, several at once for a large file
+            download = new ParallelDownload(_file, locate(_file), new File(String.format("./%s/%s", clientID, _file)));
+            Message resp = download.run();
             if (resp.getMessage().equals("SUCCESS")) {
-                FileMeta fm = (FileMeta) resp.getContent().get(0);
-                byte [] content = (byte []) resp.getContent().get(1);
-                FileOutputStream fos = new FileOutputStream(String.format("./%s/%s", clientID, fm.getName()));
-                fos.write(content);
-                fos.close();
                 System.out.println("File downloaded.");
             }
             // Print what went wrong
             else {
                 System.out.println(resp.getContent().get(0));
             }
-
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
         }
-        // DirectoryServer is probably down. Connect to another one.
+        // StorageNodes are probably down. Connect to another one.
         catch (Exception e) {
-            connect();
+            if (download != null)
+                for (Address node : download.getFailed())
+                    if (!node.equals(storageNode)) cache.nodeFailed(node);
+            reconnect();
             downloadFile(_file);
         }
     }
 
     /**
-     * Gets file list from the DirectoryServer
+     * Finds the StorageNodes that hold a file. The connected node comes first.
+     * Holders looked up less than a lease ago are used without asking again.
+     * @param _file Name of the file
+     * @return Addresses of the nodes that hold the file, or only the connected node if none is known
      */
-    public void getFileListFromServer() {
-        try {
-            // Open socket and streams
-            Socket sock = new Socket(dirServers[dirServerIndex.get()].getIP(), dirServers[dirServerIndex.get()].getPort());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-            // Create request and send
-            Message req = new Message("FILELIST");
-            oos.writeObject(req);
-
-            // Get response
-            Message resp = (Message) ois.readObject();
-            // If successful print the list of files
-            if (resp.getMessage().equals("SUCCESS")) {
-                printFiles((ArrayList<FileMeta>) resp.getContent().get(0));
+    public ArrayList<Address> locate(String _file) {
+        ArrayList<Address> holders = cache.getLocations(_file);
+
+        if (holders == null || holders.isEmpty()) {
+            try {
+                Message req = new Message("LOCATE");
+                req.addContent(_file);
+                Message resp = callDirectory(req);
+                if (resp.getMessage().equals("SUCCESS")) {
+                    holders = new ArrayList<Address>();
+                    for (String node : (ArrayList<String>) resp.getContent().get(0))
+                        holders.add(Address.parse(node));
+                    cache.putLocations(_file, holders);
+                }
             }
-            // Print what went wrong
-            else {
-                System.out.println(resp.getContent().get(0));
+            // DirectoryServer is down, the connected node may still have the file
+            catch (Exception e) {
+                switchServer();
             }
+        }
 
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
+        ArrayList<Address> nodes = new ArrayList<Address>();
+        nodes.add(storageNode);
+        if (holders == null || holders.isEmpty()) return nodes;
+        if (!holders.contains(storageNode)) nodes.clear();
+        for (Address node : holders)
+            if (!node.equals(storageNode)) nodes.add(node);
+        return nodes;
+    }
+
+    /**
+     * Gets file list from the DirectoryServer
+     */
+    public void getFileListFromServer() {
+        try {
+            getFileList(dirServers[dirServerIndex.get()]);
         }
         // DirectoryServer is down, try to switch to backup
         catch (Exception e) {
@@ -252,29 +287,7 @@ public class Client {
      */
     public void getFileListFromNode() {
         try {
-            // Open socket and streams
-            Socket sock = new Socket(storageNodeIP, storageNodePort);
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-            // Create and send the request
-            Message req = new Message("FILELIST");
-            oos.writeObject(req);
-            // Get response
-            Message resp = (Message) ois.readObject();
-            // If successful, print the list of files
-            if (resp.getMessage().equals("SUCCESS")) {
-                printFiles((ArrayList<FileMeta>) resp.getContent().get(0));
-            }
-            // Print what went wrong
-            else {
-                System.out.println(resp.getContent().get(0));
-            }
-
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
+            getFileList(storageNode);
         }
         // StorageNode is probably down. Connect to another.
         catch (Exception e) {
@@ -283,38 +296,105 @@ public class Client {
         }
     }
 
+    /**
+     * Gets file list from a server and prints it. A list fetched less than
+     * a lease ago is printed without asking again. Otherwise sends the
+     * version of the list fetched last time, so the server answers with
+     * only the new files or NOT_MODIFIED.
+     * @param _server DirectoryServer or StorageNode to ask
+     * @throws Exception if the server cannot be reached
+     */
+    private void getFileList(Address _server) throws Exception {
+        LinkedHashMap<String, FileMeta> catalog = cache.getLeasedCatalog(_server);
+        if (catalog != null) {
+            printFiles(new ArrayList<FileMeta>(catalog.values()));
+            return;
+        }
+        catalog = cache.getCatalog(_server);
+        Long version = cache.getCatalogVersion(_server);
+
+        // Create request and send
+        Message req = new Message("FILELIST");
+        if (catalog != null && version != null) req.addContent(version);
+
+        // Get response
+        boolean directory = _server.equals(dirServers[dirServerIndex.get()]);
+        Message resp = directory ? callDirectory(req) : ConnectionPool.getInstance().call(_server, req);
+        // If successful, merge the list into the catalog and print it
+        if (resp.getMessage().equals("SUCCESS")) {
+            ArrayList<FileMeta> files = (ArrayList<FileMeta>) resp.getContent().get(0);
+            boolean delta = resp.getContent().size() > 2 && (Boolean) resp.getContent().get(2);
+            if (catalog == null || !delta) catalog = new LinkedHashMap<String, FileMeta>();
+            for (FileMeta fm : files) catalog.put(fm.getName(), fm);
+            cache.putCatalog(_server, catalog, resp.getContent().size() > 1 ? (Long) resp.getContent().get(1) : null);
+            printFiles(new ArrayList<FileMeta>(catalog.values()));
+        }
+        // Nothing changed since the last time
+        else if (resp.getMessage().equals("NOT_MODIFIED") && catalog != null) {
+            cache.renewCatalog(_server);
+            printFiles(new ArrayList<FileMeta>(catalog.values()));
+        }
+        // Print what went wrong
+        else {
+            System.out.println(resp.getContent().get(0));
+        }
+    }
+
+    /**
+     * Pages through the DirectoryServer's files whose names start with a prefix
+     * @param _prefix Name prefix
+     * @param _sc Scanner to ask the user whether to show the next page
+     */
+    public void browseFiles(String _prefix, Scanner _sc) {
+        try {
+            String cursor = null;
+
+            do {
+                // Ask for the page after the last file shown
+                Message req = new Message("LISTPAGE");
+                req.addContent(_prefix);
+                req.addContent(cursor);
+                req.addContent(PAGE_SIZE);
+
+                Message resp = callDirectory(req);
+                if (!resp.getMessage().equals("SUCCESS")) {
+                    System.out.println(resp.getContent().get(0));
+                    return;
+                }
+
+                printFiles((ArrayList<FileMeta>) resp.getContent().get(0));
+                cursor = (String) resp.getContent().get(1);
+                if (cursor == null) return;
+                System.out.print("Press enter for the next page, q to stop: ");
+            } while (!_sc.nextLine().equals("q"));
+        }
+        // DirectoryServer is down, try to switch to backup
+        catch (Exception e) {
+            if (switchServer()) browseFiles(_prefix, _sc);
+            else System.out.println("Both DirectoryServers are down.");
+        }
+    }
+
     /**
      * Makes a connect request to the DirectoryServer
      */
     public void connect() {
         try {
-            // Open socket and streams
-            Socket sock = new Socket(dirServers[dirServerIndex.get()].getIP(), dirServers[dirServerIndex.get()].getPort());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create request and send
             Message req = new Message("CONNECT");
-            oos.writeObject(req);
 
             // Get response
-            Message resp = (Message) ois.readObject();
+            Message resp = callDirectory(req);
             // If successful, get StorageNode info
             if (resp.getMessage().equals("SUCCESS")) {
                 System.out.println("Connected to " + resp.getContent().get(0));
-                String [] addr = ((String) resp.getContent().get(0)).split(":");
-                storageNodeIP = addr[0];
-                storageNodePort = Integer.parseInt(addr[1]);
+                storageNode = Address.parse((String) resp.getContent().get(0));
+                cache.addNode(storageNode);
             }
             // Print what went wrong
             else {
                 System.out.println(resp.getContent().get(0));
             }
-
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
         }
         // DirectoryServer is down. Try to switch to backup.
         catch (Exception e) {
@@ -323,6 +403,36 @@ public class Client {
         }
     }
 
+    /**
+     * Switches to another StorageNode after the connected one failed.
+     * A node the DirectoryServer sent this client to less than a lease
+     * ago is used without asking it again.
+     */
+    public void reconnect() {
+        if (storageNode != null) cache.nodeFailed(storageNode);
+        Address node = cache.getNode();
+        if (node == null) {
+            connect();
+        } else {
+            System.out.println("Connected to " + node);
+            storageNode = node;
+        }
+    }
+
+    /**
+     * Sends a request to the DirectoryServer in use and lets the cache
+     * see the versions added to the response
+     * @param _req Request message
+     * @return Response message
+     * @throws IOException if the DirectoryServer cannot be reached
+     */
+    private Message callDirectory(Message _req) throws IOException {
+        Address server = dirServers[dirServerIndex.get()];
+        Message resp = ConnectionPool.getInstance().call(server, _req);
+        cache.observe(server, resp);
+        return resp;
+    }
+
     /**
      * Checks if there is any backup server to switch
      * @return true if there is a backup server left, false otherwise
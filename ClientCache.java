@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * ClientCache keeps what a Client learned from the DirectoryServers and
+ * StorageNodes for a lease of LEASE ms: the file lists, the nodes that hold
+ * each file and the nodes the client was sent to. While a lease lasts the
+ * Client uses the cached copy without asking again. The DirectoryServer adds
+ * its file list version and node version to the end of its CONNECT, LOCATE,
+ * FILELIST and LISTPAGE responses; when either one moved on, the entries
+ * that depend on it are dropped before their lease ends.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class ClientCache {
+    // Time in ms cached entries are used without asking again, 0 turns the cache off
+    static final long LEASE = Long.getLong("dfs.client.lease", 5000);
+
+    // File lists fetched so far and their versions, kept per server so only deltas are fetched again
+    private HashMap<Address, LinkedHashMap<String, FileMeta>> catalogs;
+    private HashMap<Address, Long> catalogVersions;
+    // <K: server address, V: time in ms the file list's lease ends>
+    private HashMap<Address, Long> catalogLeases;
+    // <K: file name, V: nodes that hold it>
+    private HashMap<String, ArrayList<Address>> locations;
+    private HashMap<String, Long> locationLeases;
+    // Nodes the DirectoryServer sent this client to, tried before asking for another
+    private ArrayList<Address> nodes;
+    private long nodesLease;
+    // <K: DirectoryServer address, V: its node version seen last>
+    private HashMap<Address, Long> nodeVersions;
+
+    /**
+     * Default constructor
+     */
+    public ClientCache() {
+        catalogs = new HashMap<Address, LinkedHashMap<String, FileMeta>>();
+        catalogVersions = new HashMap<Address, Long>();
+        catalogLeases = new HashMap<Address, Long>();
+        locations = new HashMap<String, ArrayList<Address>>();
+        locationLeases = new HashMap<String, Long>();
+        nodes = new ArrayList<Address>();
+        nodesLease = 0;
+        nodeVersions = new HashMap<Address, Long>();
+    }
+
+    /**
+     * Reads the versions a DirectoryServer added to the end of a response
+     * and drops the entries they make stale
+     * @param _server DirectoryServer that sent the response
+     * @param _resp Response message
+     */
+    public void observe(Address _server, Message _resp) {
+        ArrayList<Object> content = _resp.getContent();
+        if (content.size() < 2) return;
+        long catalogVersion = (Long) content.get(content.size() - 2);
+        long nodeVersion = (Long) content.get(content.size() - 1);
+
+        // New files were added, the list has to be fetched again
+        Long cached = catalogVersions.get(_server);
+        if (cached != null && cached != catalogVersion) catalogLeases.remove(_server);
+
+        // Nodes came or went, holders and nodes may be stale
+        Long seen = nodeVersions.put(_server, nodeVersion);
+        if (seen != null && seen != nodeVersion) {
+            locations.clear();
+            locationLeases.clear();
+            nodes.clear();
+        }
+    }
+
+    /**
+     * Returns a server's file list if its lease has not ended
+     * @param _server DirectoryServer or StorageNode
+     * @return Cached file list, null if it has to be fetched
+     */
+    public LinkedHashMap<String, FileMeta> getLeasedCatalog(Address _server) {
+        Long lease = catalogLeases.get(_server);
+        if (lease == null || lease < System.currentTimeMillis()) return null;
+        return catalogs.get(_server);
+    }
+
+    /**
+     * Catalog getter
+     * @param _server DirectoryServer or StorageNode
+     * @return File list fetched last from the server, even if its lease ended, or null
+     */
+    public LinkedHashMap<String, FileMeta> getCatalog(Address _server) {
+        return catalogs.get(_server);
+    }
+
+    /**
+     * Catalog version getter
+     * @param _server DirectoryServer or StorageNode
+     * @return Version of the cached file list, null if there is none
+     */
+    public Long getCatalogVersion(Address _server) {
+        return catalogVersions.get(_server);
+    }
+
+    /**
+     * Stores a file list fetched from a server and starts its lease
+     * @param _server DirectoryServer or StorageNode
+     * @param _catalog File list
+     * @param _version Version of the list, null if the server did not send one
+     */
+    public void putCatalog(Address _server, LinkedHashMap<String, FileMeta> _catalog, Long _version) {
+        catalogs.put(_server, _catalog);
+        if (_version != null) catalogVersions.put(_server, _version);
+        else catalogVersions.remove(_server);
+        renewCatalog(_server);
+    }
+
+    /**
+     * Starts a new lease on a server's file list, e.g. after NOT_MODIFIED
+     * @param _server DirectoryServer or StorageNode
+     */
+    public void renewCatalog(Address _server) {
+        if (LEASE > 0) catalogLeases.put(_server, System.currentTimeMillis() + LEASE);
+    }
+
+    /**
+     * Ends the leases of every file list, e.g. after this client uploaded a file
+     */
+    public void catalogChanged() {
+        catalogLeases.clear();
+    }
+
+    /**
+     * Returns the nodes that hold a file if their lease has not ended
+     * @param _file File name
+     * @return Addresses of the nodes, null if they have to be looked up
+     */
+    public ArrayList<Address> getLocations(String _file) {
+        Long lease = locationLeases.get(_file);
+        if (lease == null || lease < System.currentTimeMillis()) return null;
+        return locations.get(_file);
+    }
+
+    /**
+     * Stores the nodes that hold a file and starts their lease
+     * @param _file File name
+     * @param _nodes Addresses of the nodes
+     */
+    public void putLocations(String _file, ArrayList<Address> _nodes) {
+        if (LEASE <= 0 || _nodes.isEmpty()) return;
+        locations.put(_file, _nodes);
+        locationLeases.put(_file, System.currentTimeMillis() + LEASE);
+    }
+
+    /**
+     * Stores a node the DirectoryServer sent this client to and starts a new lease on the nodes
+     * @param _node Address of the node
+     */
+    public void addNode(Address _node) {
+        if (LEASE <= 0) return;
+        if (!nodes.contains(_node)) nodes.add(_node);
+        nodesLease = System.currentTimeMillis() + LEASE;
+    }
+
+    /**
+     * Returns a cached node to switch to if the nodes' lease has not ended
+     * @return Address of a node, null if the DirectoryServer has to be asked
+     */
+    public Address getNode() {
+        if (nodes.isEmpty() || nodesLease < System.currentTimeMillis()) return null;
+        return nodes.get(0);
+    }
+
+    /**
+     * Forgets a node that could not be reached
+     * @param _node Address of the node
+     */
+    public void nodeFailed(Address _node) {
+        nodes.remove(_node);
+        for (ArrayList<Address> holders : locations.values())
+            holders.remove(_node);
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Connection wraps a socket and exchanges Message objects over it.
+ * Sends are synchronized so several threads can write to one connection.
+ * If the socket was accepted through a ServerSocketChannel, file regions
+ * can also be sent with FileChannel.transferTo (see sendFileRegion).
+ * Messages are sent as binary frames (see WireCodec) by default.
+ * Java serialization can be turned back on with -Ddfs.wire.java=true,
+ * in which case every process in the system must use the same flag.
+ */
+public class Connection {
+    static final boolean JAVA_SERIALIZATION = Boolean.getBoolean("dfs.wire.java");
+    static final int CONNECT_TIMEOUT = Integer.getInteger("dfs.net.connectTimeout", 3000);
+
+    private Socket sock;
+    private SocketChannel channel;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private ObjectInputStream ois;
+    private ObjectOutputStream oos;
+
+    /**
+     * Opens a connection to a remote process
+     * @param _IP IP address
+     * @param _port Port number
+     * @throws IOException if connection cannot be established
+     */
+    public Connection(String _IP, int _port) throws IOException {
+        this(connect(_IP, _port));
+    }
+
+    /**
+     * Wraps an already connected socket
+     * @param _sock Socket object
+     * @throws IOException if streams cannot be opened
+     */
+    public Connection(Socket _sock) throws IOException {
+        sock = _sock;
+        channel = JAVA_SERIALIZATION ? null : sock.getChannel();
+        if (JAVA_SERIALIZATION) {
+            // Both sides write the stream header first so neither blocks on the other's
+            oos = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            oos.flush();
+            ois = new ObjectInputStream(new BufferedInputStream(sock.getInputStream()));
+        } else {
+            out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        }
+    }
+
+    /**
+     * Sends a message
+     * @param _m Message to send
+     * @throws IOException if the message cannot be written
+     */
+    public synchronized void send(Message _m) throws IOException {
+        if (JAVA_SERIALIZATION) {
+            oos.writeObject(_m);
+            oos.reset();
+            oos.flush();
+        } else {
+            out.write(WireCodec.encode(_m));
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends a CHUNK message whose bytes are written as they are. The payload
+     * is not copied or encoded, so one buffer can be sent to many connections.
+     * @param _requestId Request ID of the chunk
+     * @param _buff Buffer that holds the chunk, it is only read
+     * @param _len Number of bytes of the buffer to send
+     * @throws IOException if the chunk cannot be written
+     */
+    public synchronized void sendChunk(int _requestId, byte [] _buff, int _len) throws IOException {
+        if (JAVA_SERIALIZATION) {
+            Message chunk = new Message("CHUNK");
+            chunk.addContent(_len == _buff.length ? _buff : Arrays.copyOf(_buff, _len));
+            chunk.setRequestId(_requestId);
+            send(chunk);
+        } else {
+            out.write(WireCodec.chunkHeader(_requestId, _len));
+            out.write(_buff, 0, _len);
+            out.flush();
+        }
+    }
+
+    /**
+     * Checks if file regions can be sent straight from disk to the socket
+     * @return true if the socket has a channel and binary frames are used
+     */
+    public boolean supportsZeroCopy() {
+        return channel != null;
+    }
+
+    /**
+     * Sends a CHUNK frame whose content is copied from a file to the socket
+     * by the kernel (sendfile), without passing through the Java heap
+     * @param _requestId Request ID of the frame
+     * @param _file File channel to read from
+     * @param _position Position of the region in the file
+     * @param _len Length of the region
+     * @throws IOException if the file is shorter than the region or the socket breaks
+     */
+    public synchronized void sendFileRegion(int _requestId, FileChannel _file, long _position, int _len) throws IOException {
+        // Check first, a frame header cannot be taken back once it is sent
+        if (_position + _len > _file.size())
+            throw new IOException("File is shorter than its size");
+
+        out.write(WireCodec.chunkHeader(_requestId, _len));
+        out.flush();
+
+        long sent = 0;
+        while (sent < _len) {
+            long n = _file.transferTo(_position + sent, _len - sent, channel);
+            if (n <= 0 && _position + sent >= _file.size())
+                throw new IOException("File shrank while sending");
+            sent += n;
+        }
+    }
+
+    /**
+     * Blocks until a message arrives
+     * @return Received message
+     * @throws IOException if the connection is closed or the message is malformed
+     */
+    public Message receive() throws IOException {
+        if (!JAVA_SERIALIZATION)
+            return WireCodec.decode(in);
+        try {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Opens a socket with a connect timeout
+     * @param _IP IP address
+     * @param _port Port number
+     * @return Connected socket
+     * @throws IOException if connection cannot be established
+     */
+    private static Socket connect(String _IP, int _port) throws IOException {
+        Socket sock = new Socket();
+        sock.setTcpNoDelay(true);
+        sock.connect(new InetSocketAddress(_IP, _port), CONNECT_TIMEOUT);
+        return sock;
+    }
+
+    /**
+     * Closes the streams and the socket
+     */
+    public void close() {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ConnectionPool keeps one long-lived MuxConnection per remote Address and
+ * runs every request of this process over it. A daemon thread closes idle
+ * connections and sends HEARTBEAT on quiet ones to find broken ones early.
+ * Requests whose answer or body is a stream of chunks run on bulk
+ * connections instead, one transfer at a time. A slow reader of a transfer
+ * then only holds up that transfer, never HEARTBEAT or FILELIST requests
+ * or other transfers. Bulk connections are reused once their transfer ends.
+ */
+public class ConnectionPool {
+    static final long IDLE_TIMEOUT = Long.getLong("dfs.pool.idle", 60000);
+    static final long HEALTH_INTERVAL = Long.getLong("dfs.pool.health", 15000);
+
+    // Requests that stream chunks over their exchange
+    static final Set<String> BULK = new HashSet<String>(Arrays.asList(
+            "UPLOAD", "NEWFILE", "NEWFILE_FAKE", "DOWNLOAD", "DOWNLOAD_FAKE", "FETCH"));
+
+    private static final ConnectionPool instance = new ConnectionPool();
+
+    private ConcurrentHashMap<Address, MuxConnection> connections;
+    // Bulk connections with no transfer running
+    private ConcurrentHashMap<Address, ConcurrentLinkedQueue<MuxConnection>> idleBulk;
+
+    /**
+     * Default constructor. Starts the eviction thread.
+     */
+    private ConnectionPool() {
+        connections = new ConcurrentHashMap<Address, MuxConnection>();
+        idleBulk = new ConcurrentHashMap<Address, ConcurrentLinkedQueue<MuxConnection>>();
+
+        Thread reaper = new Thread(this::evictLoop, "pool-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Returns the pool shared by the whole process
+     * @return ConnectionPool object
+     */
+    public static ConnectionPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sends a request and waits for its response
+     * @param _addr Address of the remote process
+     * @param _request Request message
+     * @return Response message
+     * @throws IOException if the remote process cannot be reached
+     */
+    public Message call(Address _addr, Message _request) throws IOException {
+        Exchange ex = open(_addr, _request);
+        try {
+            return ex.receive();
+        } finally {
+            ex.close();
+        }
+    }
+
+    /**
+     * Starts an exchange with a remote process. Caller must close the exchange.
+     * @param _addr Address of the remote process
+     * @param _request First message of the exchange
+     * @return Exchange object
+     * @throws IOException if the remote process cannot be reached
+     */
+    public Exchange open(Address _addr, Message _request) throws IOException {
+        if (BULK.contains(_request.getMessage())) return openBulk(_addr, _request);
+
+        MuxConnection conn = get(_addr);
+        try {
+            return conn.open(_request);
+        }
+        // A pooled connection may have been closed by the other side while idle.
+        // Nothing was delivered, so try once more on a fresh connection.
+        catch (IOException e) {
+            connections.remove(_addr, conn);
+            return get(_addr).open(_request);
+        }
+    }
+
+    /**
+     * Starts a transfer on an idle bulk connection, or on a new one
+     * @param _addr Address of the remote process
+     * @param _request First message of the exchange
+     * @return Exchange object
+     * @throws IOException if the remote process cannot be reached
+     */
+    private Exchange openBulk(Address _addr, Message _request) throws IOException {
+        ConcurrentLinkedQueue<MuxConnection> idle = idleBulk.computeIfAbsent(_addr, a -> new ConcurrentLinkedQueue<MuxConnection>());
+        MuxConnection conn;
+        while ((conn = idle.poll()) != null) {
+            if (conn.isClosed()) continue;
+            try {
+                return conn.open(_request);
+            } catch (IOException e) {
+                // Closed by the other side while idle, nothing was delivered
+            }
+        }
+
+        conn = new MuxConnection(_addr);
+        conn.setOnIdle(idle::offer);
+        return conn.open(_request);
+    }
+
+    /**
+     * Returns an open connection to an address, connecting if needed
+     * @param _addr Address of the remote process
+     * @return MuxConnection object
+     * @throws IOException if connection cannot be established
+     */
+    private MuxConnection get(Address _addr) throws IOException {
+        MuxConnection conn = connections.get(_addr);
+        if (conn != null && !conn.isClosed()) return conn;
+        if (conn != null) connections.remove(_addr, conn);
+
+        try {
+            return connections.computeIfAbsent(_addr, a -> {
+                try {
+                    return new MuxConnection(a);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Closes the connection to an address, e.g. when the remote process is known to be dead
+     * @param _addr Address of the remote process
+     */
+    public void evict(Address _addr) {
+        MuxConnection conn = connections.remove(_addr);
+        if (conn != null) conn.close();
+
+        ConcurrentLinkedQueue<MuxConnection> idle = idleBulk.get(_addr);
+        if (idle != null)
+            while ((conn = idle.poll()) != null)
+                conn.close();
+    }
+
+    /**
+     * Periodically drops closed and idle connections and health checks quiet ones
+     */
+    private void evictLoop() {
+        while (true) {
+            try {
+                Thread.sleep(Math.min(IDLE_TIMEOUT, HEALTH_INTERVAL));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Address, MuxConnection> entry : connections.entrySet()) {
+                MuxConnection conn = entry.getValue();
+                long idle = now - conn.getLastUsed();
+
+                if (conn.isClosed() || (idle > IDLE_TIMEOUT && !conn.isBusy())) {
+                    connections.remove(entry.getKey(), conn);
+                    conn.close();
+                } else if (idle > HEALTH_INTERVAL) {
+                    try {
+                        Exchange ex = conn.open(new Message("HEARTBEAT"));
+                        try {
+                            ex.receive();
+                        } finally {
+                            ex.close();
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // A slow answer does not break requests still running on the connection
+                        if (!conn.isBusy()) {
+                            connections.remove(entry.getKey(), conn);
+                            conn.close();
+                        }
+                    } catch (IOException e) {
+                        connections.remove(entry.getKey(), conn);
+                        conn.close();
+                    }
+                }
+            }
+
+            for (ConcurrentLinkedQueue<MuxConnection> idle : idleBulk.values())
+                for (MuxConnection conn : idle)
+                    if ((conn.isClosed() || now - conn.getLastUsed() > IDLE_TIMEOUT) && idle.remove(conn)) conn.close();
+        }
+    }
+}
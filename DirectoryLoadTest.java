@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Load test for the DirectoryServer cores. Opens many connections from a
+ * single selector thread and keeps one FILELIST request in flight on each,
+ * then prints requests per second and latency percentiles.
+ *
+ * Start the DirectoryServer with -Ddfs.directory.core=nio or blocking, then run
+ * java DirectoryLoadTest 127.0.0.1:13000 10000 30
+ * (raise the open file limit for 10k connections, e.g. ulimit -n 65536)
+ */
+public class DirectoryLoadTest {
+    private static final int MAX_SAMPLES = 10000000;
+
+    /**
+     * Per-connection state
+     */
+    private static class Client {
+        ByteBuffer request;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        ByteBuffer body;
+        long sentAt;
+    }
+
+    private long [] latencies;
+    private int samples;
+    private long completed;
+
+    public static void main(String [] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("DirectoryLoadTest expects 3 arguments");
+            System.out.println("1) DirectoryServer address (e.g. 127.0.0.1:13000)");
+            System.out.println("2) Number of concurrent connections");
+            System.out.println("3) Duration in seconds");
+            System.exit(0);
+        }
+
+        DirectoryLoadTest t = new DirectoryLoadTest();
+        t.run(Address.parse(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    }
+
+    public DirectoryLoadTest() {
+        latencies = new long[MAX_SAMPLES];
+    }
+
+    /**
+     * Runs the test and prints the results
+     * @param _addr DirectoryServer address
+     * @param _connections Number of connections
+     * @param _seconds Duration of the measurement
+     * @throws IOException if the selector fails
+     */
+    public void run(Address _addr, int _connections, int _seconds) throws IOException {
+        Selector selector = Selector.open();
+        byte [] frame = WireCodec.encode(new Message("FILELIST"));
+        InetSocketAddress target = new InetSocketAddress(_addr.getIP(), _addr.getPort());
+
+        for (int i = 0; i < _connections; i++) {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            ch.connect(target);
+            Client c = new Client();
+            c.request = ByteBuffer.wrap(frame);
+            ch.register(selector, SelectionKey.OP_CONNECT, c);
+        }
+
+        int failed = 0;
+        long start = System.nanoTime();
+        long end = start + _seconds * 1000000000L;
+
+        while (System.nanoTime() < end) {
+            selector.select(100);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                SocketChannel ch = (SocketChannel) key.channel();
+                Client c = (Client) key.attachment();
+
+                try {
+                    if (key.isConnectable()) {
+                        ch.finishConnect();
+                        send(ch, c, key);
+                    } else if (key.isWritable()) {
+                        send(ch, c, key);
+                    } else if (key.isReadable() && receive(ch, c)) {
+                        record(System.nanoTime() - c.sentAt);
+                        send(ch, c, key);
+                    }
+                } catch (IOException e) {
+                    failed++;
+                    key.cancel();
+                    ch.close();
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies, 0, samples);
+        System.out.printf("Connections: %d (failed %d)\n", _connections, failed);
+        System.out.printf("Requests: %d in %.1f s, %.0f req/s\n", completed, seconds, completed / seconds);
+        System.out.printf("Latency p50: %.2f ms, p99: %.2f ms, max: %.2f ms\n",
+                percentile(0.50), percentile(0.99), samples == 0 ? 0 : latencies[samples - 1] / 1e6);
+    }
+
+    /**
+     * Writes the request, or waits for the socket to become writable
+     */
+    private void send(SocketChannel _ch, Client _c, SelectionKey _key) throws IOException {
+        if (_c.request.position() == 0) _c.sentAt = System.nanoTime();
+        _ch.write(_c.request);
+        if (_c.request.hasRemaining()) {
+            _key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            _c.request.rewind();
+            _key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reads the response frame
+     * @return true if a whole frame has been read
+     */
+    private boolean receive(SocketChannel _ch, Client _c) throws IOException {
+        if (_c.body == null) {
+            if (_ch.read(_c.header) < 0) throw new IOException("Connection closed");
+            if (_c.header.hasRemaining()) return false;
+            _c.header.flip();
+            _c.body = ByteBuffer.allocate(_c.header.getInt());
+            _c.header.clear();
+        }
+        if (_ch.read(_c.body) < 0) throw new IOException("Connection closed");
+        if (_c.body.hasRemaining()) return false;
+        _c.body = null;
+        return true;
+    }
+
+    private void record(long _latency) {
+        completed++;
+        if (samples < MAX_SAMPLES) latencies[samples++] = _latency;
+    }
+
+    private double percentile(double _p) {
+        if (samples == 0) return 0;
+        return latencies[Math.min(samples - 1, (int) (samples * _p))] / 1e6;
+    }
+}
@@ -1,26 +1,66 @@
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * DirectoryServer is the server which maintain file consistency
  * among all storage nodes. It listens a specific port for upcoming connections
- * and pass them a DirectoryServerThread
+ * and passes each request coming over them to a DirectoryServerThread
  * @author Mesut Erhan Unal and Erhu He
  */
-public class DirectoryServer extends Server {
+public class DirectoryServer extends Server implements RequestHandler {
+    // Server core: "blocking" for a reader thread per connection, "nio" for SelectorServer
+    static final String CORE = System.getProperty("dfs.directory.core", "blocking");
+    // Number of JobThreads that run jobs at the same time
+    static final int JOB_WORKERS = Integer.getInteger("dfs.directory.jobWorkers", 4);
+    // Threads and queue depth of the pool that serves requests of the blocking core
+    static final int REQUEST_WORKERS = Integer.getInteger("dfs.directory.workers", 64);
+    static final int REQUEST_QUEUE_DEPTH = Integer.getInteger("dfs.directory.queue", 1024);
+    // Number of StorageNodes each file is stored on
+    static final int REPLICATION_FACTOR = Integer.getInteger("dfs.replication.factor", 3);
+    // Keep the state on disk in a write-ahead log and snapshots (see MetadataStore)
+    static final boolean DURABLE = Boolean.parseBoolean(System.getProperty("dfs.wal", "true"));
+
     private String backupIP;
     private int backupPort;
     private ConcurrentHashMap<String, Boolean> nodeMap;
-    private ConcurrentLinkedQueue<Job> jobs;
+    // Alive nodes of nodeMap, replaced whenever a node's liveness changes
+    private volatile String [] aliveNodes;
+    // Moves on whenever aliveNodes changes, clients drop cached node addresses then
+    private volatile long nodeVersion;
+    private FailureDetector detector;
+    // <K: node address, V: load it reported in its last heartbeat>
+    private ConcurrentHashMap<String, NodeLoad> loads;
+    private NodeSelector selector;
+    private LinkedBlockingQueue<Job> jobs;
+    // <K: job ID, V: job> taken by a JobThread and not done yet, guarded by log.
+    // Only DONEJOB is logged, so a restarted or promoted server runs them again.
+    private ConcurrentHashMap<Long, Job> running;
+    private List<Long> replicationTimes;
+    private ReplicationScheduler scheduler;
+    // <K: file name, V: addresses of the StorageNodes that hold it>
+    private ConcurrentHashMap<String, Set<String>> holders;
+    private HashRing ring;
+    // <K: address of a joining StorageNode, V: its sync progress>
+    private ConcurrentHashMap<String, JoinProgress> joins;
     private boolean primary;
     private boolean test;
-    private Random rand;
     private AtomicBoolean backupJobThreadStarted;
+    private ThreadPoolExecutor requestPool;
+    // Changes to the state, shipped to the backup by the Backup thread
+    private StateLog log;
+    // Sequence number of the primary's last change applied here, -1 if none
+    private long appliedSeq;
+    private MetadataStore store;
 
     /**
      * Backup constructor
@@ -34,11 +74,25 @@ public class DirectoryServer extends Server {
         backupIP = null;
         backupPort = 0;
         nodeMap = new ConcurrentHashMap<String, Boolean>();
-        jobs = new ConcurrentLinkedQueue<Job>();
+        aliveNodes = new String[0];
+        nodeVersion = System.currentTimeMillis() * 1000;
+        detector = new FailureDetector(this);
+        loads = new ConcurrentHashMap<String, NodeLoad>();
+        selector = new NodeSelector(NodeSelector.POLICY, this::getLoad);
+        jobs = new LinkedBlockingQueue<Job>();
+        running = new ConcurrentHashMap<Long, Job>();
+        replicationTimes = Collections.synchronizedList(new ArrayList<Long>());
+        scheduler = new ReplicationScheduler();
+        holders = new ConcurrentHashMap<String, Set<String>>();
+        joins = new ConcurrentHashMap<String, JoinProgress>();
+        ring = new HashRing(nodeMap.keySet());
         primary = _primary;
         test = _test;
-        rand = new Random();
         backupJobThreadStarted = new AtomicBoolean(false);
+        requestPool = new ThreadPoolExecutor(REQUEST_WORKERS, REQUEST_WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REQUEST_QUEUE_DEPTH), new ThreadPoolExecutor.AbortPolicy());
+        log = new StateLog();
+        appliedSeq = -1;
     }
 
     /**
@@ -55,15 +109,32 @@ public class DirectoryServer extends Server {
         backupIP = _backupIP;
         backupPort = _backupPort;
         nodeMap = new ConcurrentHashMap<String, Boolean>();
-        jobs = new ConcurrentLinkedQueue<Job>();
+        aliveNodes = new String[0];
+        nodeVersion = System.currentTimeMillis() * 1000;
+        detector = new FailureDetector(this);
+        loads = new ConcurrentHashMap<String, NodeLoad>();
+        selector = new NodeSelector(NodeSelector.POLICY, this::getLoad);
+        jobs = new LinkedBlockingQueue<Job>();
+        running = new ConcurrentHashMap<Long, Job>();
+        replicationTimes = Collections.synchronizedList(new ArrayList<Long>());
+        scheduler = new ReplicationScheduler();
+        holders = new ConcurrentHashMap<String, Set<String>>();
+        joins = new ConcurrentHashMap<String, JoinProgress>();
+        ring = new HashRing(nodeMap.keySet());
         primary = _primary;
         test = _test;
-        rand = new Random();
+        requestPool = new ThreadPoolExecutor(REQUEST_WORKERS, REQUEST_WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REQUEST_QUEUE_DEPTH), new ThreadPoolExecutor.AbortPolicy());
+        log = new StateLog();
+        appliedSeq = -1;
     }
 
     @Override
     public void start() {
         try {
+            // Load the state kept on disk before serving anything
+            if (DURABLE) openStore(new File("./" + serverID));
+
             if (test) fillMap();
 
             // Add a shutdown hook
@@ -77,36 +148,304 @@ public class DirectoryServer extends Server {
                 backupThread.start();
             }
 
-            // If primary server, set job reducer daemon
+            // If primary server, set job reducer daemons and watch the nodes
             if (primary) {
-                JobThread jobReducer = new JobThread(this);
-                jobReducer.setDaemon(true);
-                jobReducer.start();
+                runJobThread();
+                startFailureDetector();
+            }
+
+            // Event-driven core, selected with -Ddfs.directory.core=nio
+            if (CORE.equals("nio") && !Connection.JAVA_SERIALIZATION) {
+                System.out.println(String.format("DirectoryServer is running on %s:%d (nio)", Utils.getIP(), port));
+                new SelectorServer(this, port).run();
+                return;
             }
 
             // Open a ServerSocket and start listening
             final ServerSocket serverSock = new ServerSocket(port);
             System.out.println(String.format("DirectoryServer is running on %s:%d", Utils.getIP(), port));
 
-            Socket sock = null;
-            DirectoryServerThread t = null;
-
             while (true) {
-                sock = serverSock.accept();
-                t = new DirectoryServerThread(sock, this);
-                t.start();
+                // Each connection is long-lived and carries many requests
+                new MuxConnection(serverSock.accept(), this);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Loads the state kept in a directory and logs every change from now on
+     * @param _dir Directory of the MetadataStore
+     * @throws IOException if the directory cannot be read or written
+     */
+    public void openStore(File _dir) throws IOException {
+        long start = System.currentTimeMillis();
+        store = new MetadataStore(this, _dir);
+        long replayed = store.open();
+        log.setListener(store::append);
+        System.out.println(String.format("Loaded %d files and %d nodes, replayed %d log entries in %d ms.",
+                fileMap.size(), nodeMap.size(), replayed, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Waits until every change made so far is on disk. Changes made by
+     * requests that run at the same time are written with one fsync.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitDurable() throws InterruptedException {
+        if (store != null) store.await(log.getLastSeq());
+    }
+
+    /**
+     * Metadata store getter
+     * @return MetadataStore object, null if the state is kept only in memory
+     */
+    public MetadataStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void handle(Exchange _ex, Message _request) {
+        try {
+            requestPool.execute(new DirectoryServerThread(_ex, _request, this));
+        }
+        // Every worker is busy and the queue is full. Tell the requester
+        // to come back later instead of starting more threads.
+        catch (RejectedExecutionException e) {
+            try {
+                Message resp = new Message("FAIL");
+                resp.addContent("DirectoryServer is busy, try again later.");
+                _ex.send(resp);
+            } catch (IOException ioe) {
+                // Requester is gone already, nothing to do.
+            }
+            _ex.close();
+        }
+    }
+
     /**
      * Add a StorageNode to node map
      * @param _node StorageNode to add
      */
     public void addNode(String _node) {
-        nodeMap.put(_node, true);
+        boolean added;
+        synchronized (log) {
+            added = nodeMap.put(_node, true) == null;
+            log.append("ADDNODE", _node);
+            refreshAliveNodes();
+        }
+        detector.seen(_node);
+        if (added) rebuildRing();
+    }
+
+    /**
+     * Marks a StorageNode that was unavailable alive again
+     * @param _node StorageNode address
+     */
+    public void setNodeAlive(String _node) {
+        addNode(_node);
+    }
+
+    /**
+     * Rebuilds the list of alive nodes. Called under the log's lock
+     * whenever nodeMap changes.
+     */
+    private void refreshAliveNodes() {
+        ArrayList<String> alive = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> entry : nodeMap.entrySet())
+            if (entry.getValue()) alive.add(entry.getKey());
+        String [] next = alive.toArray(new String[0]);
+        if (Arrays.equals(next, aliveNodes)) return;
+        aliveNodes = next;
+        nodeVersion++;
+    }
+
+    @Override
+    public void addFile(FileMeta _meta) {
+        synchronized (log) {
+            super.addFile(_meta);
+            log.append("ADDFILE", _meta);
+        }
+    }
+
+    /**
+     * Places the nodes in nodeMap on a new hash ring
+     */
+    private synchronized void rebuildRing() {
+        ring = new HashRing(nodeMap.keySet());
+    }
+
+    /**
+     * Returns the alive StorageNodes a file should be stored on
+     * @param _file File name
+     * @return At most REPLICATION_FACTOR nodes
+     */
+    public synchronized ArrayList<String> getPlacement(String _file) {
+        return ring.nodesFor(_file, REPLICATION_FACTOR, nodeMap);
+    }
+
+    /**
+     * Returns the StorageNodes a new file should be copied onto. The node that
+     * received the file counts as one of the copies.
+     * @param _file File name
+     * @param _source StorageNode that has the file
+     * @return Nodes to copy the file onto
+     */
+    public ArrayList<String> getTargets(String _file, String _source) {
+        ArrayList<String> targets = getPlacement(_file);
+        if (!targets.remove(_source) && !targets.isEmpty()) targets.remove(targets.size() - 1);
+        return targets;
+    }
+
+    /**
+     * Starts tracking the sync of a StorageNode that joined the system
+     * @param _node StorageNode address
+     * @param _held Number of files the node already holds
+     */
+    public void startJoin(String _node, int _held) {
+        joins.put(_node, new JoinProgress(_held));
+    }
+
+    /**
+     * Returns the sync progress of a StorageNode
+     * @param _node StorageNode address
+     * @return Progress of the node's last join
+     */
+    public JoinProgress getJoinProgress(String _node) {
+        return joins.computeIfAbsent(_node, n -> new JoinProgress(0));
+    }
+
+    /**
+     * Replaces what is known about the files a StorageNode holds with what
+     * the node reports. Reported files that are not in the system or have
+     * a different size are left out.
+     * @param _node StorageNode address
+     * @param _files Files the node holds
+     * @return Number of the node's files that are in the system
+     */
+    public int setHeldFiles(String _node, ArrayList<FileMeta> _files) {
+        dropHolder(_node);
+        return addHeldFiles(_node, _files);
+    }
+
+    /**
+     * Forgets every file a StorageNode was known to hold
+     * @param _node StorageNode address
+     */
+    public void dropHolder(String _node) {
+        synchronized (log) {
+            for (Set<String> nodes : holders.values())
+                nodes.remove(_node);
+            log.append("DROPHOLDER", _node);
+        }
+    }
+
+    /**
+     * Adds files a StorageNode reports to hold, e.g. after anti-entropy
+     * repaired them. Files that are not in the system or have a different
+     * size are left out.
+     * @param _node StorageNode address
+     * @param _files Files the node holds
+     * @return Number of the files that are in the system
+     */
+    public int addHeldFiles(String _node, ArrayList<FileMeta> _files) {
+        int held = 0;
+        for (FileMeta fm : _files) {
+            FileMeta known = getFileMeta(fm.getName());
+            if (known != null && known.getSize() == fm.getSize()) {
+                addHolder(fm.getName(), _node);
+                held++;
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Records that a StorageNode holds a file
+     * @param _file File name
+     * @param _node StorageNode address
+     */
+    public void addHolder(String _file, String _node) {
+        synchronized (log) {
+            holders.computeIfAbsent(_file, f -> ConcurrentHashMap.newKeySet()).add(_node);
+            log.append("ADDHOLDER", _file, _node);
+        }
+    }
+
+    /**
+     * Forgets that a StorageNode holds a file, e.g. because its copy is damaged
+     * @param _file File name
+     * @param _node StorageNode address
+     */
+    public void removeHolder(String _file, String _node) {
+        synchronized (log) {
+            Set<String> nodes = holders.get(_file);
+            if (nodes != null) nodes.remove(_node);
+            log.append("REMOVEHOLDER", _file, _node);
+        }
+    }
+
+    /**
+     * Handles copies a StorageNode dropped because they did not match their
+     * checksum. The node no longer counts as a holder, and each file is copied
+     * onto it again from a node that still holds it.
+     * @param _node StorageNode address
+     * @param _files Files the node dropped
+     * @return Number of files queued to be copied again
+     */
+    public int dropDamaged(String _node, ArrayList<FileMeta> _files) {
+        int queued = 0;
+        for (FileMeta fm : _files) {
+            FileMeta known = getFileMeta(fm.getName());
+            if (known == null) continue;
+
+            removeHolder(fm.getName(), _node);
+            ArrayList<String> sources = getHolders(fm.getName());
+            if (sources.isEmpty()) {
+                System.err.println(String.format("No intact copy of %s is left to repair %s with.", fm.getName(), _node));
+                continue;
+            }
+            addJob(new Job("SYNCFILE", sources.get(0), known));
+            queued++;
+        }
+        return queued;
+    }
+
+    /**
+     * Checks if a StorageNode holds a file
+     * @param _file File name
+     * @param _node StorageNode address
+     * @return true if the node holds the file, false otherwise
+     */
+    public boolean isHolder(String _file, String _node) {
+        Set<String> nodes = holders.get(_file);
+        return nodes != null && nodes.contains(_node);
+    }
+
+    /**
+     * Returns the alive StorageNodes that hold a file
+     * @param _file File name
+     * @return Addresses of the nodes, in random order
+     */
+    public ArrayList<String> getHolders(String _file) {
+        ArrayList<String> alive = new ArrayList<String>();
+        Set<String> nodes = holders.get(_file);
+        if (nodes != null)
+            for (String node : nodes)
+                if (Boolean.TRUE.equals(nodeMap.get(node))) alive.add(node);
+        Collections.shuffle(alive);
+        return alive;
+    }
+
+    /**
+     * Returns the alive StorageNodes
+     * @return Addresses of the nodes, sorted
+     */
+    public ArrayList<String> getAliveNodes() {
+        ArrayList<String> alive = new ArrayList<String>(Arrays.asList(aliveNodes));
+        Collections.sort(alive);
+        return alive;
     }
 
     /**
@@ -114,7 +453,11 @@ public class DirectoryServer extends Server {
      * @param _node StorageNode to make unavailable
      */
     public void setNodeUnavailable(String _node) {
-        nodeMap.put(_node, false);
+        synchronized (log) {
+            nodeMap.put(_node, false);
+            log.append("NODEDOWN", _node);
+            refreshAliveNodes();
+        }
     }
 
     /**
@@ -127,36 +470,45 @@ public class DirectoryServer extends Server {
     }
 
     /**
-     * Choose a random, alive StorageNode to reply Connect request from the client
-     * @return an alive StorageNode
+     * Choose an alive StorageNode to reply Connect request from the client.
+     * Liveness and load are kept current by the FailureDetector, so no node is contacted here.
+     * @return an alive StorageNode, null if there is none
      */
-    public String getRandomNode() {
-        ArrayList<String> nodes = new ArrayList<String>(nodeMap.keySet());
-        int size = nodes.size(), randIndex;
+    public String chooseNode() {
+        return selector.choose(aliveNodes);
+    }
 
-        while (true) {
-            randIndex = rand.nextInt(size);
-            if (nodeMap.get(nodes.get(randIndex))) {
-                try {
-                    String [] addr = nodes.get(randIndex).split(":");
-                    Socket sock = new Socket(addr[0], Integer.parseInt(addr[1]));
-                    final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-                    final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
+    /**
+     * Choose one of some alive StorageNodes, e.g. the ones that hold a file
+     * @param _nodes Addresses of the nodes
+     * @return one of the nodes, null if the list is empty
+     */
+    public String chooseNode(ArrayList<String> _nodes) {
+        return selector.choose(_nodes.toArray(new String[0]));
+    }
 
-                    Message req = new Message("HEARTBEAT");
-                    oos.writeObject(req);
-                    Message resp = (Message) ois.readObject();
+    /**
+     * Node version getter
+     * @return Version of the alive nodes, moves on whenever a node comes or goes
+     */
+    public long getNodeVersion() {
+        return nodeVersion;
+    }
 
-                    oos.close();
-                    ois.close();
-                    sock.close();
+    /**
+     * Returns the load of a StorageNode
+     * @param _node StorageNode address
+     * @return NodeLoad object, created the first time a node is asked for
+     */
+    public NodeLoad getLoad(String _node) {
+        return loads.computeIfAbsent(_node, n -> new NodeLoad());
+    }
 
-                    return nodes.get(randIndex);
-                } catch (Exception e) {
-                    setNodeUnavailable(nodes.get(randIndex));
-                }
-            }
-        }
+    /**
+     * Starts watching the liveness of the StorageNodes, once
+     */
+    public synchronized void startFailureDetector() {
+        if (!detector.isAlive()) detector.start();
     }
 
     /**
@@ -164,7 +516,11 @@ public class DirectoryServer extends Server {
      * @param _j Job to add
      */
     public void addJob(Job _j) {
-        jobs.add(_j);
+        synchronized (log) {
+            jobs.add(_j);
+            log.append("ADDJOB", _j);
+            log.notifyAll();
+        }
     }
 
     /**
@@ -184,11 +540,57 @@ public class DirectoryServer extends Server {
     }
 
     /**
-     * Poll a job from the head of the queue
+     * Take a job from the head of the queue, waiting until one arrives.
+     * The job counts as running until finishJob is called for it. Nothing
+     * is logged here: the state on disk and on the backup keeps the job
+     * until it is done, so a crash in between runs it again.
      * @return First Job from the queue
+     * @throws InterruptedException if interrupted while waiting
      */
-    public Job getJob() {
-        return jobs.poll();
+    public Job getJob() throws InterruptedException {
+        synchronized (log) {
+            Job j;
+            while ((j = jobs.poll()) == null)
+                log.wait();
+            running.put(j.getId(), j);
+            return j;
+        }
+    }
+
+    /**
+     * Marks a job as done, e.g. once its file is replicated and added to the file list
+     * @param _id ID of the job
+     */
+    public void finishJob(long _id) {
+        synchronized (log) {
+            running.remove(_id);
+            jobs.removeIf(q -> q.getId() == _id);
+            log.append("DONEJOB", _id);
+        }
+    }
+
+    /**
+     * Adds the time from a NEWFILE request until the file is replicated
+     * @param _rt Replication time in ms
+     */
+    public void addReplicationTime(long _rt) {
+        replicationTimes.add(_rt);
+    }
+
+    /**
+     * Replication scheduler getter
+     * @return Scheduler that bounds replication work
+     */
+    public ReplicationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Replication times list getter
+     * @return replication times
+     */
+    public List<Long> getReplicationTimes() {
+        return replicationTimes;
     }
 
     /**
@@ -216,23 +618,40 @@ public class DirectoryServer extends Server {
     }
 
     /**
-     * Runs the Job reducer thread
+     * Runs the Job reducer threads. Each of them waits on the job queue
+     * and runs one job at a time.
      */
     public void runJobThread() {
-        JobThread jobReducer = new JobThread(this);
-        jobReducer.setDaemon(true);
-        jobReducer.start();
+        for (int i = 0; i < JOB_WORKERS; i++) {
+            JobThread jobReducer = new JobThread(this);
+            jobReducer.setDaemon(true);
+            jobReducer.start();
+        }
     }
 
     /**
-     * Fills this DirectoryServer's state in a Message object
+     * Change log getter
+     * @return Log of the changes to this DirectoryServer's state
+     */
+    public StateLog getLog() {
+        return log;
+    }
+
+    /**
+     * Fills this DirectoryServer's state in a Message object. The state may
+     * already hold some changes after the sequence number it carries. They are
+     * shipped again afterwards, which is fine because applying a change twice
+     * leaves the same state.
      * @return Message object that holds this object's state
      */
     public Message getState() {
         Message m = new Message("STATE");
+        long seq = log.getLastSeq();
         m.addContent(nodeMap);
         m.addContent(fileMap);
-        m.addContent(jobs);
+        m.addContent(getJobs());
+        m.addContent(holders);
+        m.addContent(seq);
         return m;
     }
 
@@ -241,9 +660,127 @@ public class DirectoryServer extends Server {
      * @param _m Message object that holds a DirectoryServer state
      */
     public void setState(Message _m) {
-        nodeMap = (ConcurrentHashMap<String, Boolean>) _m.getContent().get(0);
-        fileMap = (ConcurrentHashMap<String, FileMeta>) _m.getContent().get(1);
-        jobs = (ConcurrentLinkedQueue<Job>) _m.getContent().get(2);
+        synchronized (log) {
+            ConcurrentHashMap<String, FileMeta> files = (ConcurrentHashMap<String, FileMeta>) _m.getContent().get(1);
+            restore((ConcurrentHashMap<String, Boolean>) _m.getContent().get(0), files, new ConcurrentSkipListMap<String, FileMeta>(files),
+                    (Collection<Job>) _m.getContent().get(2),
+                    (ConcurrentHashMap<String, Set<String>>) _m.getContent().get(3));
+            appliedSeq = _m.getContent().size() > 4 ? (Long) _m.getContent().get(4) : -1;
+        }
+
+        // A copied state is not in the log, keep it in a snapshot instead
+        if (store != null) {
+            try {
+                store.snapshot();
+            } catch (Exception e) {
+                System.err.println("Could not write a metadata snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replaces this DirectoryServer's state
+     * @param _nodeMap <K: address, V: alive> entries
+     * @param _fileMap <K: file name, V: meta> entries
+     * @param _fileIndex Same entries sorted by name
+     * @param _jobs Queued jobs
+     * @param _holders <K: file name, V: addresses of the nodes that hold it> entries
+     */
+    public void restore(ConcurrentHashMap<String, Boolean> _nodeMap, ConcurrentHashMap<String, FileMeta> _fileMap,
+                        ConcurrentSkipListMap<String, FileMeta> _fileIndex, Collection<Job> _jobs,
+                        ConcurrentHashMap<String, Set<String>> _holders) {
+        synchronized (log) {
+            nodeMap = _nodeMap;
+            refreshAliveNodes();
+            setFileMap(_fileMap, _fileIndex);
+            // Keep the same queue, JobThreads may be waiting on it. Jobs that
+            // were running when the state was taken are queued again.
+            jobs.clear();
+            running.clear();
+            jobs.addAll(_jobs);
+            holders = _holders;
+            log.notifyAll();
+        }
+        rebuildRing();
+    }
+
+    /**
+     * Applies changes shipped by the primary DirectoryServer
+     * @param _from Sequence number of the change right before the first one
+     * @param _entries Changes in order
+     * @return Sequence number of the last change applied here, -1 if the
+     *         changes do not follow the ones applied here and a full state is needed
+     */
+    public long applyLog(long _from, ArrayList<StateEntry> _entries) {
+        synchronized (log) {
+            if (appliedSeq < 0 || _from != appliedSeq) return -1;
+
+            for (StateEntry e : _entries) {
+                replay(e);
+                appliedSeq = e.getSeq();
+            }
+            return appliedSeq;
+        }
+    }
+
+    /**
+     * Applies a logged change to this DirectoryServer's state
+     * @param _e Change to apply
+     */
+    public void replay(StateEntry _e) {
+        ArrayList<Object> args = _e.getArgs();
+        switch (_e.getOp()) {
+            case "ADDNODE":
+                addNode((String) args.get(0));
+                break;
+            case "NODEDOWN":
+                setNodeUnavailable((String) args.get(0));
+                break;
+            case "ADDFILE":
+                addFile((FileMeta) args.get(0));
+                break;
+            case "ADDHOLDER":
+                addHolder((String) args.get(0), (String) args.get(1));
+                break;
+            case "DROPHOLDER":
+                dropHolder((String) args.get(0));
+                break;
+            case "REMOVEHOLDER":
+                removeHolder((String) args.get(0), (String) args.get(1));
+                break;
+            case "ADDJOB":
+                Job j = (Job) args.get(0);
+                // A full state may hold the job already
+                if (!running.containsKey(j.getId()) && jobs.stream().noneMatch(q -> q.getId() == j.getId())) addJob(j);
+                break;
+            case "TAKEJOB":
+                // Logged by older versions when a job was taken, not when it was done.
+                // The job may not have finished, so it stays queued.
+                break;
+            case "DONEJOB":
+                finishJob((Long) args.get(0));
+                break;
+        }
+    }
+
+    /**
+     * Holders map getter
+     * @return <K: file name, V: addresses of the StorageNodes that hold it> entries
+     */
+    public ConcurrentHashMap<String, Set<String>> getHolderMap() {
+        return holders;
+    }
+
+    /**
+     * Returns the jobs that are not done: the queued ones and the running ones
+     * @return Copy of the unfinished jobs
+     */
+    public ArrayList<Job> getJobs() {
+        synchronized (log) {
+            ArrayList<Job> unfinished = new ArrayList<Job>(running.values());
+            unfinished.addAll(jobs);
+            return unfinished;
+        }
     }
 
     public boolean isTest() {
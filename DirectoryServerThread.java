@@ -1,103 +1,228 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * DirectoryServerThread is the class which to be instantiated
- * for each incoming connection to the DirectoryServer
+ * for each incoming request to the DirectoryServer
  * @author Mesut Erhan Unal and Erhu He
  */
-public class DirectoryServerThread extends Thread {
-    private Socket sock;
+public class DirectoryServerThread implements Runnable {
+    private Exchange ex;
+    private Message request;
     private DirectoryServer server;
 
     /**
      * Default constructor
-     * @param _sock Socket object of the connection
+     * @param _ex Exchange to reply on
+     * @param _request Request message
      * @param _server DirectoryServer object which instantiated this object
      */
-    public DirectoryServerThread(Socket _sock, DirectoryServer _server) {
-        sock = _sock;
+    public DirectoryServerThread(Exchange _ex, Message _request, DirectoryServer _server) {
+        ex = _ex;
+        request = _request;
         server = _server;
     }
 
+    /**
+     * Constructor for server cores that deliver the response themselves (see SelectorServer)
+     * @param _request Request message
+     * @param _server DirectoryServer object which instantiated this object
+     */
+    public DirectoryServerThread(Message _request, DirectoryServer _server) {
+        this(null, _request, _server);
+    }
+
     @Override
     public void run() {
         try {
-            // Open streams
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
+            // Write response object to the connection
+            ex.send(respond());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            ex.close();
+        }
+    }
 
-            // Get request and create an empty response object
-            Message request = (Message) ois.readObject();
-            Message response = null;
+    /**
+     * Serves the request
+     * @return Response message
+     * @throws IOException if the response cannot be built
+     */
+    public Message respond() throws IOException {
+        // Create an empty response object
+        Message response = null;
 
-            // Register request from a StorageNode
-            if (request.getMessage().equals("REGISTER")) {
-                String node = (String) request.getContent().get(0);
-                server.addNode(node);
-                response = new Message("SUCCESS");
-                if (!server.isTest())
-                    server.addJob(new Job("SYNCEVERYTHING", node));
-                System.out.println("A storage node has been registered.");
-            }
-            // New file add request from a StorageNode
-            else if (request.getMessage().equals("NEWFILE")) {
-                String node = (String) request.getContent().get(0);
-                FileMeta fm = (FileMeta) request.getContent().get(1);
-                byte [] content = (byte []) request.getContent().get(2);
+        // Register request from a StorageNode
+        if (request.getMessage().equals("REGISTER")) {
+            String node = (String) request.getContent().get(0);
+            server.addNode(node);
 
-                if (server.fileExists(fm.getName())) {
-                    response = new Message("FAIL");
-                    response.addContent("This file already exists in the system.");
-                }
+            // Node reports the files it already holds, those are not copied again
+            int held = 0;
+            ArrayList<FileMeta> known = new ArrayList<FileMeta>();
+            if (request.getContent().size() > 1) {
+                ArrayList<FileMeta> files = (ArrayList<FileMeta>) request.getContent().get(1);
+                held = server.setHeldFiles(node, files);
 
-                else {
-                    Job j = new Job("SYNCFILE", node);
-                    j.addContent(fm);
-                    j.addContent(content);
-                    server.addJob(j);
-                    response = new Message("SUCCESS");
+                // Node found the files on disk, send it their checksums back
+                for (FileMeta fm : files) {
+                    FileMeta meta = server.getFileMeta(fm.getName());
+                    if (meta != null && meta.hasChecksum() && meta.getSize() == fm.getSize()) known.add(meta);
                 }
             }
-            // Connect request from a Client
-            else if (request.getMessage().equals("CONNECT")) {
+
+            response = new Message("SUCCESS");
+            response.addContent(known);
+            if (!server.isTest()) {
+                server.startJoin(node, held);
+                server.addJob(new Job("SYNCEVERYTHING", node));
+            }
+            System.out.println("A storage node has been registered.");
+        }
+        // New file add request from a StorageNode. The content stays on the node.
+        else if (request.getMessage().equals("NEWFILE")) {
+            String node = (String) request.getContent().get(0);
+            FileMeta fm = (FileMeta) request.getContent().get(1);
+
+            if (server.fileExists(fm.getName())) {
+                response = new Message("FAIL");
+                response.addContent("This file already exists in the system.");
+            }
+
+            else {
+                server.addHolder(fm.getName(), node);
+                server.addJob(new Job("SYNCFILE", node, fm));
+                response = new Message("SUCCESS");
+            }
+        }
+        // Connect request from a Client. With a file name, a node that holds the file is picked.
+        else if (request.getMessage().equals("CONNECT")) {
+            ArrayList<String> nodes = request.getContent().isEmpty() ? null : server.getHolders((String) request.getContent().get(0));
+            String node = nodes == null || nodes.isEmpty() ? server.chooseNode() : server.chooseNode(nodes);
+            if (node == null) {
+                response = new Message("FAIL");
+                response.addContent("No StorageNode is available.");
+            } else {
+                response = new Message("SUCCESS");
+                response.addContent(node);
+            }
+        }
+        // How far the sync of a joining StorageNode got
+        else if (request.getMessage().equals("PROGRESS")) {
+            response = new Message("SUCCESS");
+            server.getJoinProgress((String) request.getContent().get(0)).addTo(response);
+        }
+        // Load a StorageNode reported last and the clients sent to it
+        else if (request.getMessage().equals("LOAD")) {
+            String node = (String) request.getContent().get(0);
+            if (!server.nodeExists(node)) {
+                response = new Message("FAIL");
+                response.addContent("Unknown StorageNode.");
+            } else {
                 response = new Message("SUCCESS");
-                response.addContent(server.getRandomNode());
+                server.getLoad(node).addTo(response);
             }
-            // List files request from a Client
-            else if (request.getMessage().equals("FILELIST")) {
-                long start = System.currentTimeMillis();
+        }
+        // Which StorageNodes hold a file
+        else if (request.getMessage().equals("LOCATE")) {
+            ArrayList<String> nodes = server.getHolders((String) request.getContent().get(0));
+            if (nodes.isEmpty()) {
+                response = new Message("FAIL");
+                response.addContent("File not found.");
+            } else {
                 response = new Message("SUCCESS");
-                response.addContent(server.getFileList());
-                long end = System.currentTimeMillis();
-                server.addResponseTime(end - start);
+                response.addContent(nodes);
             }
-            // State copy request from the primary DirectoryServer
-            else if (request.getMessage().equals("STATE")) {
-                server.setState(request);
+        }
+        // Alive StorageNodes and the replication factor, for anti-entropy between them
+        else if (request.getMessage().equals("NODES")) {
+            response = new Message("SUCCESS");
+            response.addContent(server.getAliveNodes());
+            response.addContent(DirectoryServer.REPLICATION_FACTOR);
+        }
+        // A StorageNode got more files, e.g. repaired by anti-entropy
+        else if (request.getMessage().equals("HOLDING")) {
+            server.addHeldFiles((String) request.getContent().get(0), (ArrayList<FileMeta>) request.getContent().get(1));
+            response = new Message("SUCCESS");
+        }
+        // FileMeta of a file, e.g. for a StorageNode to tell which of two differing copies is right
+        else if (request.getMessage().equals("FILEINFO")) {
+            FileMeta fm = server.getFileMeta((String) request.getContent().get(0));
+            if (fm == null) {
+                response = new Message("FAIL");
+                response.addContent("File not found.");
+            } else {
                 response = new Message("SUCCESS");
+                response.addContent(fm);
             }
-            // Some other requests
-            else {
+        }
+        // A StorageNode dropped copies that did not match their checksum
+        else if (request.getMessage().equals("DAMAGED")) {
+            server.dropDamaged((String) request.getContent().get(0), (ArrayList<FileMeta>) request.getContent().get(1));
+            response = new Message("SUCCESS");
+        }
+        // List files request from a Client
+        else if (request.getMessage().equals("FILELIST")) {
+            long start = System.currentTimeMillis();
+            long since = request.getContent().isEmpty() ? -1 : (Long) request.getContent().get(0);
+            response = server.getFileListResponse(since);
+            long end = System.currentTimeMillis();
+            server.addResponseTime(end - start);
+        }
+        // One page of the sorted file list
+        else if (request.getMessage().equals("LISTPAGE")) {
+            response = server.getFilePageResponse(request);
+        }
+        // State copy request from the primary DirectoryServer
+        else if (request.getMessage().equals("STATE")) {
+            server.setState(request);
+            response = new Message("SUCCESS");
+        }
+        // Changes to the state since the last ones shipped by the primary DirectoryServer
+        else if (request.getMessage().equals("STATELOG")) {
+            long applied = server.applyLog((Long) request.getContent().get(0), (ArrayList<StateEntry>) request.getContent().get(1));
+            if (applied < 0) {
                 response = new Message("FAIL");
-                response.addContent("Bad request");
+                response.addContent("Missed changes, send the whole state.");
+            } else {
+                response = new Message("SUCCESS");
+                response.addContent(applied);
             }
-            // If DirectoryServer was backup server but primary is down
-            // make it primary
-            if (!request.getMessage().equals("STATE") && !server.isPrimary() && server.getBackupJobThreadStarted().compareAndSet(false, true)) {
-                server.runJobThread();
+        }
+        // Liveness check from a connection pool
+        else if (request.getMessage().equals("HEARTBEAT")) {
+            response = new Message("SUCCESS");
+        }
+        // Some other requests
+        else {
+            response = new Message("FAIL");
+            response.addContent("Bad request");
+        }
+        // Changes to files and nodes are on disk before they are acknowledged
+        if (request.getMessage().equals("REGISTER") || request.getMessage().equals("NEWFILE") || request.getMessage().equals("HOLDING")
+                || request.getMessage().equals("DAMAGED") || request.getMessage().equals("STATELOG")) {
+            try {
+                server.awaitDurable();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while writing the metadata log");
             }
+        }
 
-            // Write response object to output stream
-            oos.writeObject(response);
+        // Clients cache these answers and drop them when a version moves on (see ClientCache)
+        if (request.getMessage().equals("CONNECT") || request.getMessage().equals("LOCATE")
+                || request.getMessage().equals("FILELIST") || request.getMessage().equals("LISTPAGE")) {
+            response.addContent(server.getVersion());
+            response.addContent(server.getNodeVersion());
+        }
 
-            // Close streams and socket
-            ois.close();
-            oos.close();
-            sock.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        // If DirectoryServer was backup server but primary is down
+        // make it primary
+        if (!request.getMessage().equals("STATE") && !request.getMessage().equals("STATELOG") && !request.getMessage().equals("HEARTBEAT") && !server.isPrimary() && server.getBackupJobThreadStarted().compareAndSet(false, true)) {
+            server.runJobThread();
+            server.startFailureDetector();
         }
+
+        return response;
     }
 }
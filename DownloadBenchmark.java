@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the two ways a StorageNode can serve DOWNLOAD: reading chunks into
+ * the heap and writing them as frames, or sending them with FileChannel.transferTo.
+ * Runs a server and a client over loopback in one process and prints throughput
+ * and server CPU time per GB for each mode.
+ */
+public class DownloadBenchmark implements RequestHandler {
+    private File file;
+    private AtomicLong serverCpu;
+
+    public static void main(String [] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("DownloadBenchmark expects 2 arguments");
+            System.out.println("1) File size in MB");
+            System.out.println("2) Number of downloads per mode");
+            System.exit(0);
+        }
+
+        long size = Long.parseLong(args[0]) * 1024 * 1024;
+        int iterations = Integer.parseInt(args[1]);
+
+        File f = File.createTempFile("download", ".bin");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(size);
+        raf.close();
+
+        DownloadBenchmark b = new DownloadBenchmark(f);
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true)
+                    new MuxConnection(serverChannel.accept().socket(), b);
+            } catch (Exception e) {
+                // Benchmark is over
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Address addr = new Address("127.0.0.1", serverChannel.socket().getLocalPort());
+        System.out.printf("%-10s%15s%20s\n", "Mode", "MB/s", "Server CPU s/GB");
+        for (String mode : new String [] {"heap", "zerocopy", "heap", "zerocopy"})
+            b.run(addr, mode, size, iterations);
+    }
+
+    public DownloadBenchmark(File _file) {
+        file = _file;
+        serverCpu = new AtomicLong(0);
+    }
+
+    /**
+     * Downloads the file _iterations times in a mode and prints the results
+     * @param _addr Server address
+     * @param _mode heap or zerocopy
+     * @param _size File size in bytes
+     * @param _iterations Number of downloads
+     * @throws Exception if a download fails
+     */
+    private void run(Address _addr, String _mode, long _size, int _iterations) throws Exception {
+        serverCpu.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < _iterations; i++) {
+            Message req = new Message("DOWNLOAD");
+            req.addContent(_mode);
+            Exchange ex = ConnectionPool.getInstance().open(_addr, req);
+            try {
+                FileMeta fm = (FileMeta) ex.receive().getContent().get(0);
+                FileTransfer.receive(ex, OutputStream.nullOutputStream(), fm.getSize());
+            } finally {
+                ex.close();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double gb = _size * (double) _iterations / (1024 * 1024 * 1024);
+        System.out.printf("%-10s%15.1f%20.3f\n", _mode, gb * 1024 / seconds, serverCpu.get() / 1e9 / gb);
+    }
+
+    @Override
+    public void handle(Exchange _ex, Message _request) {
+        new Thread(() -> {
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            long cpu = mx.getCurrentThreadCpuTime();
+            try {
+                Message head = new Message("SUCCESS");
+                head.addContent(new FileMeta(file.getName(), file.length()));
+                _ex.send(head);
+
+                if (_request.getContent().get(0).equals("zerocopy")) {
+                    FileTransfer.sendFile(_ex, file, file.length());
+                } else {
+                    FileInputStream fis = new FileInputStream(file);
+                    FileTransfer.send(_ex, fis, file.length());
+                    fis.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                serverCpu.addAndGet(mx.getCurrentThreadCpuTime() - cpu);
+                _ex.close();
+            }
+        }).start();
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+/**
+ * EncodedItem holds a message content item together with its binary wire
+ * encoding, so a value that is sent many times is encoded only once.
+ * WireCodec copies the bytes as they are. With Java serialization the
+ * plain value is written in its place.
+ */
+public class EncodedItem implements Serializable {
+    private static final long serialVersionUID = -7226234188134173803L;
+    private Object value;
+    private transient byte [] bytes;
+
+    /**
+     * Default constructor. Encodes the value right away.
+     * @param _value Item to encode
+     * @throws IOException if the item cannot be encoded
+     */
+    public EncodedItem(Object _value) throws IOException {
+        value = _value;
+        bytes = WireCodec.encodeItem(_value);
+    }
+
+    /**
+     * Value getter
+     * @return Item that was encoded
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Encoded bytes getter
+     * @return Tagged item bytes
+     */
+    public byte [] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Java serialization writes the plain value instead of this object
+     * @return Value of the item
+     * @throws ObjectStreamException never
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return value;
+    }
+}
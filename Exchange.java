@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchange is one request/response conversation on a MuxConnection.
+ * Every message sent on it carries its request ID and every message
+ * with that ID coming from the other side is delivered to its inbox.
+ */
+public class Exchange {
+    static final long TIMEOUT = Long.getLong("dfs.net.timeout", 60000);
+    // Bounded so a slow consumer pushes back on the sender instead of buffering. Only
+    // chunk streams fill it, and ConnectionPool gives each of those a connection of its own.
+    static final int INBOX_SIZE = 16;
+    static final Message CLOSED = new Message("FAIL");
+
+    private MuxConnection conn;
+    private int requestId;
+    private BlockingQueue<Message> inbox;
+    private volatile boolean closed;
+    // Set when the other side gave up on the exchange
+    private volatile boolean cancelled;
+
+    /**
+     * Default constructor
+     * @param _conn Connection that carries the exchange
+     * @param _requestId Request ID of the exchange
+     */
+    public Exchange(MuxConnection _conn, int _requestId) {
+        conn = _conn;
+        requestId = _requestId;
+        inbox = new ArrayBlockingQueue<Message>(INBOX_SIZE);
+    }
+
+    /**
+     * Sends a message with this exchange's request ID
+     * @param _m Message to send
+     * @throws IOException if the connection is broken
+     */
+    public void send(Message _m) throws IOException {
+        if (cancelled) throw new IOException("Exchange cancelled by the other side");
+        _m.setRequestId(requestId);
+        conn.send(_m);
+    }
+
+    /**
+     * Sends a CHUNK message. The buffer is only read, so the same one can be
+     * sent on many exchanges without copying it.
+     * @param _buff Buffer that holds the chunk
+     * @param _len Number of bytes of the buffer to send
+     * @throws IOException if the connection is broken
+     */
+    public void sendChunk(byte [] _buff, int _len) throws IOException {
+        if (cancelled) throw new IOException("Exchange cancelled by the other side");
+        conn.sendChunk(requestId, _buff, _len);
+    }
+
+    /**
+     * Checks if file content can be sent with sendFileRegion
+     * @return true if zero-copy sends are supported on this exchange
+     */
+    public boolean supportsZeroCopy() {
+        return conn.supportsZeroCopy();
+    }
+
+    /**
+     * Sends a region of a file as a CHUNK message straight from disk to the socket
+     * @param _file File channel to read from
+     * @param _position Position of the region in the file
+     * @param _len Length of the region
+     * @throws IOException if the file or the connection fails
+     */
+    public void sendFileRegion(FileChannel _file, long _position, int _len) throws IOException {
+        if (cancelled) throw new IOException("Exchange cancelled by the other side");
+        conn.sendFileRegion(requestId, _file, _position, _len);
+    }
+
+    /**
+     * Waits for the next message of this exchange
+     * @return Received message
+     * @throws IOException if the connection is closed or nothing arrives in time
+     */
+    public Message receive() throws IOException {
+        return receive(TIMEOUT);
+    }
+
+    /**
+     * Waits for the next message of this exchange, e.g. the answer of a
+     * request that takes longer than usual
+     * @param _timeout Time to wait in ms
+     * @return Received message
+     * @throws SocketTimeoutException if nothing arrives in time, the connection may still be fine
+     * @throws IOException if the connection is closed
+     */
+    public Message receive(long _timeout) throws IOException {
+        Message m;
+        try {
+            m = inbox.poll(_timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a response");
+        }
+        if (m == null)
+            throw new SocketTimeoutException("Timed out waiting for a response");
+        if (m == CLOSED) {
+            inbox.offer(CLOSED);
+            throw new IOException("Connection closed");
+        }
+        return m;
+    }
+
+    /**
+     * Delivers a message to this exchange. Blocks the connection's reader
+     * while the inbox is full, unless the exchange gets closed in the meantime.
+     * @param _m Message to deliver
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void deliver(Message _m) throws InterruptedException {
+        while (!closed && !inbox.offer(_m, 100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Wakes up the receiver when the connection is gone
+     */
+    void abort() {
+        inbox.clear();
+        inbox.offer(CLOSED);
+    }
+
+    /**
+     * Marks the exchange as given up by the other side. Sends fail from now
+     * on, so a stream stops within a chunk, and a waiting receiver wakes up.
+     */
+    void cancelled() {
+        cancelled = true;
+        abort();
+    }
+
+    /**
+     * Checks if the other side gave up on the exchange
+     * @return true if a CANCEL arrived for it
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Request ID getter
+     * @return Request ID
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Ends the exchange. Late messages with its request ID are dropped.
+     */
+    public void close() {
+        closed = true;
+        conn.unregister(requestId);
+    }
+
+    /**
+     * Ends the exchange before the other side is done and tells it to stop
+     * sending, e.g. the rest of a range another node took over
+     */
+    public void cancel() {
+        if (!closed) {
+            try {
+                send(new Message("CANCEL"));
+            } catch (IOException e) {
+                // Connection is gone, the other side stops anyway
+            }
+        }
+        close();
+    }
+}
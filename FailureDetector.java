@@ -0,0 +1,113 @@
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * FailureDetector keeps the liveness and load of the StorageNodes current, so
+ * the DirectoryServer answers CONNECT from memory instead of probing a node first.
+ * Every INTERVAL ms it sends HEARTBEAT to every known node and records the load
+ * in the answer. A node that has not answered for TIMEOUT ms is marked
+ * unavailable, and a node marked unavailable that answers again is marked alive.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class FailureDetector extends Thread {
+    // Time between two heartbeats to a node in ms
+    static final long INTERVAL = Long.getLong("dfs.liveness.interval", 1000);
+    // Time without an answer in ms after which a node is marked unavailable
+    static final long TIMEOUT = Long.getLong("dfs.liveness.timeout", 5000);
+    // Number of heartbeats waiting for an answer at once
+    static final int THREADS = Integer.getInteger("dfs.liveness.threads", 8);
+
+    private DirectoryServer ds;
+    // <K: node address, V: time in ms of its last answer>
+    private ConcurrentHashMap<String, Long> lastSeen;
+    private Set<String> probing;
+    private ExecutorService probes;
+
+    /**
+     * Default constructor
+     * @param _ds DirectoryServer object whose nodes are watched
+     */
+    public FailureDetector(DirectoryServer _ds) {
+        ds = _ds;
+        lastSeen = new ConcurrentHashMap<String, Long>();
+        probing = ConcurrentHashMap.newKeySet();
+        probes = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "liveness");
+            t.setDaemon(true);
+            return t;
+        });
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        do {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Boolean> entry : ds.getNodeMap().entrySet()) {
+                String node = entry.getKey();
+                // Nodes are given a full timeout from the first time they are seen here
+                long seen = lastSeen.computeIfAbsent(node, n -> now);
+
+                if (entry.getValue() && now - seen > TIMEOUT) {
+                    ds.setNodeUnavailable(node);
+                    System.err.println(String.format("StorageNode %s stopped answering.", node));
+                }
+                // A heartbeat of the node is still waiting for its answer
+                if (probing.add(node)) probes.execute(() -> probe(node));
+            }
+        } while (true);
+    }
+
+    /**
+     * Sends a heartbeat to a node and records the answer. Any answer, even
+     * a FAIL from a busy node, means the node is alive. No answer in time is
+     * only a missed heartbeat: the connection is shared with the requests
+     * running on the node, so it is dropped only when it is broken.
+     * @param _node Node address
+     */
+    private void probe(String _node) {
+        try {
+            Exchange ex = ConnectionPool.getInstance().open(Address.parse(_node), new Message("HEARTBEAT"));
+            Message resp;
+            try {
+                resp = ex.receive(TIMEOUT);
+            } finally {
+                ex.close();
+            }
+
+            // Nodes answer with their load, unless they are too busy to run the heartbeat
+            if (resp.getMessage().equals("SUCCESS") && resp.getContent().size() >= 4) ds.getLoad(_node).update(resp);
+
+            lastSeen.put(_node, System.currentTimeMillis());
+            if (Boolean.FALSE.equals(ds.getNodeMap().get(_node))) {
+                ds.setNodeAlive(_node);
+                System.out.println(String.format("StorageNode %s is back.", _node));
+            }
+        } catch (SocketTimeoutException e) {
+            // Missed, the node is marked unavailable once TIMEOUT passes without an answer
+        } catch (Exception e) {
+            // Connection refused or broken, start over on a new connection next time
+            ConnectionPool.getInstance().evict(Address.parse(_node));
+        } finally {
+            probing.remove(_node);
+        }
+    }
+
+    /**
+     * Records that a node just proved to be alive, e.g. when it registers
+     * @param _node Node address
+     */
+    public void seen(String _node) {
+        lastSeen.put(_node, System.currentTimeMillis());
+    }
+}
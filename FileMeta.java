@@ -1,23 +1,38 @@
 import java.io.Serializable;
 
 /**
- * This class is to hold name and size information of a file
+ * This class is to hold name, size and checksum information of a file
  * It needs to be serializable because it will be passed over the network
  * @author Mesut Erhan Unal and Erhu He
  */
 public class FileMeta implements Serializable {
     private static final long serialVersionUID = -7226234188134173803L;
+    // Checksum of a file whose content has not been checksummed, e.g. one found on disk at startup
+    static final long NO_CHECKSUM = -1;
+
     private String name;
     private long size;
+    private long checksum;
 
     /**
-     * Default constructor
+     * Constructor for a file without a known checksum
      * @param _name File names
      * @param _size File size in bytes
      */
     public FileMeta(String _name, long _size) {
+        this(_name, _size, NO_CHECKSUM);
+    }
+
+    /**
+     * Default constructor
+     * @param _name File names
+     * @param _size File size in bytes
+     * @param _checksum CRC32C of the whole content, or NO_CHECKSUM
+     */
+    public FileMeta(String _name, long _size, long _checksum) {
         name = _name;
         size = _size;
+        checksum = _checksum;
     }
 
     /**
@@ -35,4 +50,20 @@ public class FileMeta implements Serializable {
     public long getSize() {
         return size;
     }
+
+    /**
+     * Checksum getter
+     * @return CRC32C of the whole content, or NO_CHECKSUM
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Checks if the checksum of the content is known
+     * @return true if it is, false otherwise
+     */
+    public boolean hasChecksum() {
+        return checksum != NO_CHECKSUM;
+    }
 }
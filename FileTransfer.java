@@ -0,0 +1,487 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * FileTransfer streams file contents over an Exchange as a sequence of
+ * CHUNK messages of at most CHUNK_SIZE bytes. The receiver knows the total
+ * size from the FileMeta sent before the chunks, so memory use per transfer
+ * stays constant no matter how big the file is.
+ * A receiver can pass a Checksum that every chunk is added to as it
+ * arrives, and compare it with the CRC32C the FileMeta carries once the
+ * last chunk is in, so the content is checked without reading it again.
+ */
+public class FileTransfer {
+    static final int CHUNK_SIZE = Integer.getInteger("dfs.chunk", 64 * 1024);
+    static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("dfs.node.zerocopy", "true"));
+    // Content bytes sent and received by this process, reported as load by StorageNodes
+    private static final LongAdder TRANSFERRED = new LongAdder();
+
+    /**
+     * Sends _size bytes read from an input stream
+     * @param _ex Exchange to send on
+     * @param _in Stream to read from
+     * @param _size Number of bytes to send
+     * @throws IOException if the stream ends early or the connection breaks
+     */
+    public static void send(Exchange _ex, InputStream _in, long _size) throws IOException {
+        send(_ex, _in, _size, null);
+    }
+
+    /**
+     * Sends _size bytes read from an input stream and adds them to a checksum
+     * @param _ex Exchange to send on
+     * @param _in Stream to read from
+     * @param _size Number of bytes to send
+     * @param _sum Checksum to add the bytes to, or null
+     * @throws IOException if the stream ends early or the connection breaks
+     */
+    public static void send(Exchange _ex, InputStream _in, long _size, Checksum _sum) throws IOException {
+        byte [] buff = new byte[(int) Math.min(CHUNK_SIZE, Math.max(_size, 1))];
+        long remaining = _size;
+
+        while (remaining > 0) {
+            int len = (int) Math.min(buff.length, remaining);
+            int read = 0;
+            try {
+                // A single read() may return fewer bytes than asked
+                while (read < len) {
+                    int r = _in.read(buff, read, len - read);
+                    if (r < 0) throw new IOException("File is shorter than its size");
+                    read += r;
+                }
+            } catch (IOException e) {
+                abort(_ex, "Could not read the file.");
+                throw e;
+            }
+            if (_sum != null) _sum.update(buff, 0, len);
+            sendChunk(_ex, buff, len);
+            remaining -= len;
+        }
+    }
+
+    /**
+     * Sends the first _size bytes of a file
+     * @param _ex Exchange to send on
+     * @param _file File to send
+     * @param _size Number of bytes to send
+     * @throws IOException if the file is shorter than _size or the connection breaks
+     */
+    public static void sendFile(Exchange _ex, File _file, long _size) throws IOException {
+        sendFile(_ex, _file, 0, _size);
+    }
+
+    /**
+     * Sends _size bytes of a file from an offset. Uses FileChannel.transferTo when the
+     * connection supports it, so the content goes from disk to the socket without
+     * being copied into the heap. Falls back to send() otherwise.
+     * @param _ex Exchange to send on
+     * @param _file File to send
+     * @param _offset Position of the first byte to send
+     * @param _size Number of bytes to send
+     * @throws IOException if the file is shorter than _offset + _size or the connection breaks
+     */
+    public static void sendFile(Exchange _ex, File _file, long _offset, long _size) throws IOException {
+        if (!ZERO_COPY || !_ex.supportsZeroCopy()) {
+            FileInputStream fis = new FileInputStream(_file);
+            try {
+                fis.getChannel().position(_offset);
+                send(_ex, fis, _size);
+            } finally {
+                fis.close();
+            }
+            return;
+        }
+
+        FileChannel ch = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+        try {
+            for (long sent = 0; sent < _size; sent += CHUNK_SIZE) {
+                int len = (int) Math.min(CHUNK_SIZE, _size - sent);
+                _ex.sendFileRegion(ch, _offset + sent, len);
+                TRANSFERRED.add(len);
+            }
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Sends one chunk
+     * @param _ex Exchange to send on
+     * @param _buff Buffer that holds the chunk
+     * @param _len Number of bytes of the buffer to send
+     * @throws IOException if the connection breaks
+     */
+    public static void sendChunk(Exchange _ex, byte [] _buff, int _len) throws IOException {
+        _ex.sendChunk(_buff, _len);
+        TRANSFERRED.add(_len);
+    }
+
+    /**
+     * Returns the content bytes sent and received by this process so far
+     * @return Number of bytes
+     */
+    public static long getTransferred() {
+        return TRANSFERRED.sum();
+    }
+
+    /**
+     * Receives _size bytes and writes them to an output stream
+     * @param _ex Exchange to receive from
+     * @param _out Stream to write into
+     * @param _size Number of bytes to receive
+     * @throws IOException if the sender gives up or the connection breaks
+     */
+    public static void receive(Exchange _ex, OutputStream _out, long _size) throws IOException {
+        receive(_ex, _out, _size, null);
+    }
+
+    /**
+     * Receives _size bytes, writes them to an output stream and adds them to a checksum
+     * @param _ex Exchange to receive from
+     * @param _out Stream to write into
+     * @param _size Number of bytes to receive
+     * @param _sum Checksum to add the bytes to, or null
+     * @throws IOException if the sender gives up or the connection breaks
+     */
+    public static void receive(Exchange _ex, OutputStream _out, long _size, Checksum _sum) throws IOException {
+        long remaining = _size;
+        while (remaining > 0) {
+            byte [] chunk = nextChunk(_ex);
+            if (_sum != null) _sum.update(chunk, 0, chunk.length);
+            _out.write(chunk);
+            remaining -= chunk.length;
+        }
+    }
+
+    /**
+     * Receives _size bytes, writes them to an output stream and forwards each
+     * chunk to the next node of a replication chain as soon as it arrives.
+     * If the next node fails, forwarding stops but receiving goes on.
+     * @param _ex Exchange to receive from
+     * @param _out Stream to write into
+     * @param _size Number of bytes to receive
+     * @param _next Exchange of the next node, or null
+     * @param _sum Checksum to add the bytes to, or null
+     * @return true if every chunk was forwarded to the next node
+     * @throws IOException if the sender gives up or the connection breaks
+     */
+    public static boolean relay(Exchange _ex, OutputStream _out, long _size, Exchange _next, Checksum _sum) throws IOException {
+        long remaining = _size;
+        boolean forwarding = _next != null;
+        try {
+            while (remaining > 0) {
+                byte [] chunk = nextChunk(_ex);
+                if (forwarding) {
+                    try {
+                        _next.sendChunk(chunk, chunk.length);
+                    } catch (IOException e) {
+                        forwarding = false;
+                    }
+                }
+                if (_sum != null) _sum.update(chunk, 0, chunk.length);
+                _out.write(chunk);
+                remaining -= chunk.length;
+            }
+        } catch (IOException e) {
+            if (forwarding) abort(_next, "Upstream of the chain failed.");
+            throw e;
+        }
+        return forwarding;
+    }
+
+    /**
+     * Creates the checksum FileMeta objects carry
+     * @return Empty CRC32C
+     */
+    public static Checksum newChecksum() {
+        return new CRC32C();
+    }
+
+    /**
+     * Adds _size bytes of a stream to a checksum, e.g. the part of a file
+     * an earlier try of a resumed upload already sent
+     * @param _sum Checksum to add the bytes to
+     * @param _in Stream to read from
+     * @param _size Number of bytes to add
+     * @throws IOException if the stream ends early
+     */
+    public static void update(Checksum _sum, InputStream _in, long _size) throws IOException {
+        byte [] buff = new byte[(int) Math.min(CHUNK_SIZE, Math.max(_size, 1))];
+        for (long remaining = _size; remaining > 0; ) {
+            int r = _in.read(buff, 0, (int) Math.min(buff.length, remaining));
+            if (r < 0) throw new IOException("File is shorter than its size");
+            _sum.update(buff, 0, r);
+            remaining -= r;
+        }
+    }
+
+    /**
+     * Checks received content against the checksum of its FileMeta
+     * @param _fm FileMeta object of the file
+     * @param _sum Checksum of the received content
+     * @return true if they match or the FileMeta has no checksum
+     */
+    public static boolean matches(FileMeta _fm, Checksum _sum) {
+        return !_fm.hasChecksum() || _fm.getChecksum() == _sum.getValue();
+    }
+
+    /**
+     * Starts an UPLOAD on the first node of a replication chain that is ready
+     * to take the file. The rest of the chain is handed over to it. Nodes that
+     * cannot be reached are added to _unreachable, busy ones are skipped.
+     * @param _fm FileMeta object of the file
+     * @param _chain Addresses of the nodes, in order
+     * @param _unreachable List to add the unreachable nodes into
+     * @return Exchange of the upload, or null if no node in the chain is ready
+     */
+    public static Exchange openChain(FileMeta _fm, List<String> _chain, List<String> _unreachable) {
+        for (int i = 0; i < _chain.size(); i++) {
+            Message req = new Message("UPLOAD");
+            req.addContent(_fm);
+            req.addContent(new ArrayList<String>(_chain.subList(i + 1, _chain.size())));
+            Exchange next = null;
+            try {
+                next = ConnectionPool.getInstance().open(Address.parse(_chain.get(i)), req);
+                if (next.receive().getMessage().equals("READY")) return next;
+            } catch (IOException e) {
+                _unreachable.add(_chain.get(i));
+            }
+            if (next != null) next.close();
+        }
+        return null;
+    }
+
+    /**
+     * Adds the nodes reported by the final response of a chain UPLOAD
+     * @param _resp Response of the next node in the chain
+     * @param _stored List of the nodes that stored the file
+     * @param _unreachable List of the nodes that could not be reached
+     */
+    public static void mergeChainReport(Message _resp, List<String> _stored, List<String> _unreachable) {
+        if (!_resp.getMessage().equals("SUCCESS") || _resp.getContent().size() < 2) return;
+        _stored.addAll((ArrayList<String>) _resp.getContent().get(0));
+        _unreachable.addAll((ArrayList<String>) _resp.getContent().get(1));
+    }
+
+    /**
+     * Forwards _size bytes from one exchange to another, one chunk at a time
+     * @param _from Exchange to receive from
+     * @param _to Exchange to send on
+     * @param _size Number of bytes to forward
+     * @throws IOException if either side fails
+     */
+    public static void pipe(Exchange _from, Exchange _to, long _size) throws IOException {
+        long remaining = _size;
+        while (remaining > 0) {
+            byte [] chunk;
+            try {
+                chunk = nextChunk(_from);
+            } catch (IOException e) {
+                abort(_to, "Source of the file failed.");
+                throw e;
+            }
+            sendChunk(_to, chunk, chunk.length);
+            remaining -= chunk.length;
+        }
+    }
+
+    /**
+     * Copies a file from one StorageNode to another through this process
+     * without holding the whole file in memory
+     * @param _source Address of the node that has the file
+     * @param _destination Address of the node to upload onto
+     * @param _fm FileMeta object of the file
+     * @return Final response of the destination, or a FAIL message if the source does not have the file
+     * @throws IOException if either node cannot be reached
+     */
+    public static Message copy(Address _source, Address _destination, FileMeta _fm) throws IOException {
+        Message req = new Message("UPLOAD");
+        req.addContent(_fm);
+        Exchange dst = ConnectionPool.getInstance().open(_destination, req);
+
+        try {
+            // Destination is busy or refuses the file
+            Message resp = dst.receive();
+            if (!resp.getMessage().equals("READY")) return resp;
+
+            req = new Message("DOWNLOAD");
+            req.addContent(_fm.getName());
+            Exchange src;
+            try {
+                src = ConnectionPool.getInstance().open(_source, req);
+            } catch (IOException e) {
+                abort(dst, "Source of the file failed.");
+                throw e;
+            }
+
+            try {
+                Message head = src.receive();
+                if (!head.getMessage().equals("SUCCESS")) {
+                    abort(dst, "Source does not have the file.");
+                    return head;
+                }
+                pipe(src, dst, _fm.getSize());
+            } finally {
+                src.close();
+            }
+            return dst.receive();
+        } finally {
+            dst.close();
+        }
+    }
+
+    /**
+     * Copies a file from one StorageNode to many others. The file is downloaded
+     * once and every chunk is sent from the same buffer to all destinations.
+     * A destination that fails is dropped, the others go on.
+     * @param _source Address of the node that has the file
+     * @param _destinations Addresses of the nodes to upload onto
+     * @param _fm FileMeta object of the file
+     * @return Final response of each destination. An IOException is put for a
+     *         destination that could not be reached or broke in the middle, a
+     *         FAIL message for the ones that lost the source.
+     */
+    public static HashMap<Address, Object> fanOut(Address _source, List<Address> _destinations, FileMeta _fm) {
+        HashMap<Address, Object> results = new HashMap<Address, Object>();
+        LinkedHashMap<Address, Exchange> ready = new LinkedHashMap<Address, Exchange>();
+
+        try {
+            // Start an upload on every destination. Only the ones that are ready get the file.
+            for (Address dest : _destinations) {
+                Message req = new Message("UPLOAD");
+                req.addContent(_fm);
+                Exchange dst = null;
+                try {
+                    dst = ConnectionPool.getInstance().open(dest, req);
+                    Message resp = dst.receive();
+                    if (resp.getMessage().equals("READY")) {
+                        ready.put(dest, dst);
+                        continue;
+                    }
+                    results.put(dest, resp);
+                } catch (IOException e) {
+                    results.put(dest, e);
+                }
+                if (dst != null) dst.close();
+            }
+            if (ready.isEmpty()) return results;
+
+            Message req = new Message("DOWNLOAD");
+            req.addContent(_fm.getName());
+            Exchange src;
+            try {
+                src = ConnectionPool.getInstance().open(_source, req);
+            } catch (IOException e) {
+                for (Map.Entry<Address, Exchange> entry : ready.entrySet()) {
+                    abort(entry.getValue(), "Source of the file failed.");
+                    results.put(entry.getKey(), sourceFailed());
+                }
+                return results;
+            }
+
+            try {
+                Message head = src.receive();
+                if (!head.getMessage().equals("SUCCESS")) {
+                    for (Map.Entry<Address, Exchange> entry : ready.entrySet()) {
+                        abort(entry.getValue(), "Source does not have the file.");
+                        results.put(entry.getKey(), head);
+                    }
+                    return results;
+                }
+
+                long remaining = _fm.getSize();
+                while (remaining > 0 && !ready.isEmpty()) {
+                    byte [] chunk = nextChunk(src);
+                    Iterator<Map.Entry<Address, Exchange>> it = ready.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Address, Exchange> entry = it.next();
+                        try {
+                            entry.getValue().sendChunk(chunk, chunk.length);
+                        } catch (IOException e) {
+                            results.put(entry.getKey(), e);
+                            entry.getValue().close();
+                            it.remove();
+                        }
+                    }
+                    remaining -= chunk.length;
+                }
+            } catch (IOException e) {
+                // Source failed in the middle, nobody can finish the file
+                for (Map.Entry<Address, Exchange> entry : ready.entrySet()) {
+                    abort(entry.getValue(), "Source of the file failed.");
+                    results.put(entry.getKey(), sourceFailed());
+                }
+                ready.clear();
+            } finally {
+                src.close();
+            }
+
+            // Collect the final answer of every destination that got the whole file
+            for (Map.Entry<Address, Exchange> entry : ready.entrySet()) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().receive());
+                } catch (IOException e) {
+                    results.put(entry.getKey(), e);
+                }
+            }
+            return results;
+        } finally {
+            for (Exchange dst : ready.values())
+                dst.close();
+        }
+    }
+
+    /**
+     * Tells the receiving side to drop a transfer
+     * @param _ex Exchange of the transfer
+     * @param _reason Reason to report
+     */
+    public static void abort(Exchange _ex, String _reason) {
+        try {
+            Message fail = new Message("FAIL");
+            fail.addContent(_reason);
+            _ex.send(fail);
+        } catch (IOException e) {
+            // Other side is gone already
+        }
+    }
+
+    /**
+     * Builds the result of a destination whose source failed
+     * @return FAIL message
+     */
+    private static Message sourceFailed() {
+        Message fail = new Message("FAIL");
+        fail.addContent("Source of the file failed.");
+        return fail;
+    }
+
+    /**
+     * Waits for the next chunk
+     * @param _ex Exchange to receive from
+     * @return Chunk bytes
+     * @throws IOException if the sender gives up or the connection breaks
+     */
+    static byte [] nextChunk(Exchange _ex) throws IOException {
+        Message m = _ex.receive();
+        if (!m.getMessage().equals("CHUNK"))
+            throw new IOException("Transfer aborted: " + (m.getContent().isEmpty() ? m.getMessage() : m.getContent().get(0)));
+        byte [] chunk = (byte []) m.getContent().get(0);
+        TRANSFERRED.add(chunk.length);
+        return chunk;
+    }
+}
@@ -0,0 +1,74 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HashRing places files on StorageNodes with consistent hashing.
+ * Every node owns a number of points on the ring. A file belongs to the
+ * nodes met first when walking the ring clockwise from the file's hash,
+ * so adding or removing a node moves only a small share of the files.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class HashRing {
+    // Points each node owns on the ring, more points spread files more evenly
+    static final int VIRTUAL_NODES = Integer.getInteger("dfs.ring.vnodes", 64);
+
+    private TreeMap<Long, String> ring;
+    private int nodes;
+
+    /**
+     * Default constructor
+     * @param _nodes Addresses of the StorageNodes
+     */
+    public HashRing(Collection<String> _nodes) {
+        ring = new TreeMap<Long, String>();
+        nodes = _nodes.size();
+        for (String node : _nodes)
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.put(hash(node + "#" + i), node);
+    }
+
+    /**
+     * Returns the nodes a file belongs to, skipping the ones that are down
+     * @param _file File name
+     * @param _count Number of nodes to return
+     * @param _alive Liveness of each node
+     * @return At most _count alive nodes, in ring order
+     */
+    public ArrayList<String> nodesFor(String _file, int _count, Map<String, Boolean> _alive) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (ring.isEmpty()) return result;
+
+        long h = hash(_file);
+        // Walk the points from the file's hash to the end, then from the start
+        for (Map<Long, String> part : Arrays.asList(ring.tailMap(h), ring.headMap(h))) {
+            for (String node : part.values()) {
+                if (result.size() >= _count || result.size() >= nodes) return result;
+                if (!result.contains(node) && Boolean.TRUE.equals(_alive.get(node))) result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes a string onto the ring
+     * @param _key String to hash
+     * @return First 8 bytes of the MD5 digest
+     */
+    static long hash(String _key) {
+        try {
+            byte [] digest = MessageDigest.getInstance("MD5").digest(_key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++)
+                h = (h << 8) | (digest[i] & 0xff);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
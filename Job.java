@@ -1,16 +1,24 @@
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Job class is a basic class to hold a DirectoryServer job information.
  * Since job queue move over the network, this class should be serializable.
+ * A job only refers to the file it copies. The content stays on the source
+ * node and is fetched from there when the job runs, so queued jobs cost the
+ * same on the DirectoryServer's heap and on the way to the backup no matter
+ * how big the files are.
  * @author Mesut Erhan Unal and Erhu He
  */
 public class Job implements Serializable {
     private static final long serialVersionUID = -7226234188134173803L;
+    // Job IDs start from the clock so IDs of a restarted server do not clash with older ones
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis() * 1000);
+    private long id;
     private String type;
     private String node;
-    private ArrayList<Object> content;
+    private FileMeta file;
+    private long created;
 
     /**
      * Default constructor
@@ -18,9 +26,49 @@ public class Job implements Serializable {
      * @param _node Source of the job
      */
     public Job(String _type, String _node) {
+        this(_type, _node, null);
+    }
+
+    /**
+     * Constructor for jobs about a file
+     * @param _type Type of the job
+     * @param _node Source of the job, the StorageNode that holds the file
+     * @param _file FileMeta object of the file
+     */
+    public Job(String _type, String _node, FileMeta _file) {
+        this(NEXT_ID.incrementAndGet(), _type, _node, _file, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor for a job decoded from the wire or the disk
+     * @param _id Unique ID of the job
+     * @param _type Type of the job
+     * @param _node Source of the job
+     * @param _file FileMeta object of the file, or null
+     * @param _created Time in ms when the job was created
+     */
+    public Job(long _id, String _type, String _node, FileMeta _file, long _created) {
+        id = _id;
         type = _type;
         node = _node;
-        content = new ArrayList<Object>();
+        file = _file;
+        created = _created;
+    }
+
+    /**
+     * Job ID getter
+     * @return Unique ID of the job
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Creation time getter
+     * @return Time in ms when the job was created
+     */
+    public long getCreated() {
+        return created;
     }
 
     /**
@@ -40,18 +88,10 @@ public class Job implements Serializable {
     }
 
     /**
-     * Adds content into Job object
-     * @param _o Object to be added
-     */
-    public void addContent(Object _o) {
-        content.add(_o);
-    }
-
-    /**
-     * Gets content list
-     * @return Content list
+     * File getter
+     * @return FileMeta object of the file the job is about, null if none
      */
-    public ArrayList<Object> getContent() {
-        return content;
+    public FileMeta getFile() {
+        return file;
     }
 }
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Checks that a file whose replication job was taken but not finished comes
+ * back after a crash. Queues a SYNCFILE job, takes it like a JobThread does,
+ * then stops the MetadataStore before the file is added, as a crash between
+ * taking the job and logging ADDFILE would. A restarted DirectoryServer must
+ * queue the job again, from the log and from a snapshot taken while the job
+ * was running, and forget it once the file is added and the job is done.
+ * e.g. java JobRecoveryTest
+ */
+public class JobRecoveryTest {
+    public static void main(String [] args) throws Exception {
+        File dir = Files.createTempDirectory("jobrecovery").toFile();
+        String node = "10.0.0.1:5000";
+        FileMeta fm = new FileMeta("a.bin", 1024, 42);
+
+        DirectoryServer ds = new DirectoryServer(0, "test", false, false);
+        ds.openStore(dir);
+        ds.addNode(node);
+        ds.addJob(new Job("SYNCFILE", node, fm));
+        Job taken = ds.getJob();
+        ds.awaitDurable();
+        // Crash before the file is replicated and added
+        ds.getStore().close();
+
+        // The log alone must bring the job back
+        ds = restart(dir, taken, "from the log");
+
+        // A snapshot taken while the job runs must keep it too
+        Job again = ds.getJob();
+        ds.getStore().snapshot();
+        ds.getStore().close();
+        ds = restart(dir, taken, "from a snapshot");
+
+        // A backup that copies the state must have it as well
+        ds.getJob();
+        DirectoryServer backup = new DirectoryServer(0, "backup", false, false);
+        backup.setState(ds.getState());
+        check(hasJob(backup.getJobs(), taken), "The running job was lost on the backup");
+
+        // Finish the job the way JobThread does, then restart once more
+        ds.addFile(fm);
+        ds.finishJob(again.getId());
+        ds.awaitDurable();
+        ds.getStore().close();
+
+        ds = new DirectoryServer(0, "test", false, false);
+        ds.openStore(dir);
+        check(ds.getFileMap().containsKey(fm.getName()), "The replicated file was lost on restart");
+        check(ds.getJobs().isEmpty(), "A finished job was queued again on restart");
+        ds.getStore().close();
+
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        System.out.println("JobRecoveryTest passed.");
+    }
+
+    /**
+     * Opens a new DirectoryServer on the store and checks that a job is queued again
+     * @param _dir Directory of the MetadataStore
+     * @param _job Job that was running when the old server stopped
+     * @param _how How the state was loaded, for the error message
+     * @return Restarted DirectoryServer
+     * @throws Exception if the store cannot be opened
+     */
+    private static DirectoryServer restart(File _dir, Job _job, String _how) throws Exception {
+        DirectoryServer ds = new DirectoryServer(0, "test", false, false);
+        ds.openStore(_dir);
+        check(hasJob(ds.getJobs(), _job), "A job taken but not done was lost on restart " + _how);
+        check(!ds.getFileMap().containsKey(_job.getFile().getName()), "A file was added before it was replicated");
+        return ds;
+    }
+
+    /**
+     * Looks for a job by its ID
+     * @param _jobs Jobs to search
+     * @param _job Job to look for
+     * @return True if a job has the same ID
+     */
+    private static boolean hasJob(ArrayList<Job> _jobs, Job _job) {
+        for (Job j : _jobs)
+            if (j.getId() == _job.getId()) return true;
+        return false;
+    }
+
+    /**
+     * Exits with an error if a condition does not hold
+     * @param _ok Condition
+     * @param _error Message to print if it does not hold
+     */
+    private static void check(boolean _ok, String _error) {
+        if (_ok) return;
+        System.err.println("JobRecoveryTest failed: " + _error);
+        System.exit(1);
+    }
+}
@@ -1,10 +1,15 @@
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
  * JobThread is the thread that reduces DirectoryServer's JobQueue.
- * It picks one job at a time and passes it to either Uploader or Sync
- * based on the job type.
+ * Files are copied onto the nodes the DirectoryServer's hash ring
+ * places them on, not onto every node.
+ * It waits for a job, picks one at a time and passes it to either
+ * Uploader or Sync based on the job type. Copies run on the
+ * ReplicationScheduler and are not waited for, so many files are
+ * replicated at the same time within its limits.
  * @author Mesut Erhan Unal and Erhu He
  */
 public class JobThread extends Thread {
@@ -22,46 +27,111 @@ public class JobThread extends Thread {
     public void run() {
         try{
             do {
-                // Get a job from DirectoryServer's job queue
+                // Get a job from DirectoryServer's job queue. Blocks until there is one.
                 Job j = ds.getJob();
 
-                // If queue is empty, sleep 1 sec.
-                if (j == null) {
-                    Thread.sleep(1000);
-                    continue;
+                // Copy new file from its source node to other nodes
+                if (j.getType().equals("SYNCFILE")) {
+                    FileMeta fm = j.getFile();
+                    ArrayList<String> nodes = ds.getTargets(fm.getName(), j.getNode());
+                    // Nodes that hold the file already are left out, e.g. when a damaged copy is repaired
+                    nodes.removeIf(node -> ds.isHolder(fm.getName(), node));
+
+                    // Wait for room in the replication budget, then let the copies run
+                    // on their own while this thread takes the next job
+                    ds.getScheduler().admit(fm.getSize());
+                    if (nodes.isEmpty()) replicated(j, fm, new HashMap<String, Boolean>());
+                    else new Uploader(this, ds, nodes, j.getNode(), fm, report -> replicated(j, fm, report)).start();
                 }
 
-                // Upload new file to other nodes
-                if (j.getType().equals("SYNCFILE")) {
-                    ArrayList<Uploader> uploaders = new ArrayList<Uploader>();
+                // Sync a new node with other nodes. Only the files placed on it that it
+                // does not hold yet are copied, in batches per peer, at most JOIN_RATE bytes per second.
+                else if (j.getType().equals("SYNCEVERYTHING")) {
+                    String node = j.getNode();
+                    JoinProgress progress = ds.getJoinProgress(node);
+                    HashMap<String, ArrayList<FileMeta>> batches = new HashMap<String, ArrayList<FileMeta>>();
+                    HashMap<String, Long> batchSizes = new HashMap<String, Long>();
 
-                    for (Map.Entry<String, Boolean> entry : ds.getNodeMap().entrySet())
-                        if (!entry.getKey().equals(j.getNode()) && entry.getValue())
-                            uploaders.add(new Uploader(this, ds, entry.getKey(), (FileMeta) j.getContent().get(0), (byte[]) j.getContent().get(1)));
+                    for (Map.Entry<String, FileMeta> entry: ds.getFileMap().entrySet()) {
+                        FileMeta fm = entry.getValue();
+                        if (!ds.getPlacement(fm.getName()).contains(node) || ds.isHolder(fm.getName(), node))
+                            continue;
 
-                    for (Uploader u : uploaders)
-                        u.start();
-                    for (Uploader u : uploaders)
-                        u.join();
+                        progress.addFile(fm.getSize());
+                        ArrayList<String> peers = ds.getHolders(fm.getName());
+                        peers.remove(node);
+                        if (peers.isEmpty()) {
+                            progress.fileDone(fm.getSize(), false);
+                            continue;
+                        }
 
-                    // file synced. add to file list.
-                    ds.addFile((FileMeta) j.getContent().get(0));
-                }
+                        // Fill a batch for the peer, send it when it is full
+                        String peer = peers.get(0);
+                        batches.computeIfAbsent(peer, p -> new ArrayList<FileMeta>()).add(fm);
+                        long size = batchSizes.merge(peer, fm.getSize(), Long::sum);
+                        if (batches.get(peer).size() >= ReplicationScheduler.BATCH_FILES || size >= ReplicationScheduler.BATCH_BYTES) {
+                            sync(j, peer, batches.remove(peer), batchSizes.remove(peer), progress);
+                        }
+                    }
 
-                // Sync a new node with other nodes.
-                else if (j.getType().equals("SYNCEVERYTHING")) {
-                    ArrayList<Sync> syncers = new ArrayList<Sync>();
+                    for (String peer : batches.keySet())
+                        sync(j, peer, batches.get(peer), batchSizes.get(peer), progress);
 
-                    for (Map.Entry<String, FileMeta> entry: ds.getFileMap().entrySet())
-                        syncers.add(new Sync(this, ds, j.getNode(), entry.getValue()));
-                    for (Sync s : syncers)
-                        s.start();
-                    for (Sync s : syncers)
-                        s.join();
+                    progress.setPlanned();
+                    if (progress.finish()) joined(j, progress);
                 }
             } while (true);
         } catch (Exception e) {
             System.err.println("Job thread interrupted.");
         }
     }
+
+    /**
+     * Queues a batch of files to be copied from a peer onto a joining node
+     * @param _j SYNCEVERYTHING job of the joining node
+     * @param _peer Address of the node that holds the files
+     * @param _files FileMeta objects of the files
+     * @param _size Total size of the files
+     * @param _progress Progress of the join
+     */
+    private void sync(Job _j, String _peer, ArrayList<FileMeta> _files, long _size, JoinProgress _progress) {
+        // Paced and budgeted by the scheduler, this thread goes on with the next batch
+        new Sync(this, ds, _j.getNode(), _peer, _files, report -> {
+            ds.getScheduler().release(_size);
+            for (FileMeta fm : _files)
+                _progress.fileDone(fm.getSize(), report.get(fm.getName()));
+            if (_progress.finish()) joined(_j, _progress);
+        }).start(_size);
+    }
+
+    /**
+     * Called once every file of a join is handled. Marks the job as done.
+     * @param _j SYNCEVERYTHING job
+     * @param _progress Progress of the join
+     */
+    private void joined(Job _j, JoinProgress _progress) {
+        System.out.println(String.format("Join of %s: %s", _j.getNode(), _progress));
+        ds.finishJob(_j.getId());
+    }
+
+    /**
+     * Called when every copy of a new file is done. Adds the file to the
+     * file list, marks the job as done and gives its budget back.
+     * @param _j SYNCFILE job
+     * @param _fm FileMeta object of the file
+     * @param _report Whether each destination StorageNode got the file
+     */
+    private void replicated(Job _j, FileMeta _fm, HashMap<String, Boolean> _report) {
+        for (Map.Entry<String, Boolean> entry : _report.entrySet()) {
+            if (entry.getValue())
+                ds.addHolder(_fm.getName(), entry.getKey());
+            else
+                System.err.println(String.format("Could not replicate %s onto %s.", _fm.getName(), entry.getKey()));
+        }
+
+        ds.addFile(_fm);
+        ds.finishJob(_j.getId());
+        ds.addReplicationTime(System.currentTimeMillis() - _j.getCreated());
+        ds.getScheduler().release(_fm.getSize());
+    }
 }
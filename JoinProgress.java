@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JoinProgress counts the files copied onto a StorageNode that joined
+ * the system. The DirectoryServer keeps one for each node and reports
+ * it to PROGRESS requests.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class JoinProgress {
+    private AtomicInteger held;
+    private AtomicInteger total;
+    private AtomicInteger done;
+    private AtomicInteger failed;
+    private AtomicLong totalBytes;
+    private AtomicLong doneBytes;
+    private volatile boolean planned;
+    private AtomicBoolean reported;
+    private long started;
+
+    /**
+     * Default constructor
+     * @param _held Number of files the node already held when it joined
+     */
+    public JoinProgress(int _held) {
+        held = new AtomicInteger(_held);
+        total = new AtomicInteger(0);
+        done = new AtomicInteger(0);
+        failed = new AtomicInteger(0);
+        totalBytes = new AtomicLong(0);
+        doneBytes = new AtomicLong(0);
+        planned = false;
+        reported = new AtomicBoolean(false);
+        started = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts in a file that has to be copied
+     * @param _size Size of the file
+     */
+    public void addFile(long _size) {
+        total.incrementAndGet();
+        totalBytes.addAndGet(_size);
+    }
+
+    /**
+     * Marks that every file to copy has been counted in
+     */
+    public void setPlanned() {
+        planned = true;
+    }
+
+    /**
+     * Counts a file that has been copied, or failed to
+     * @param _size Size of the file
+     * @param _success true if the node got the file
+     */
+    public void fileDone(long _size, boolean _success) {
+        if (_success) {
+            done.incrementAndGet();
+            doneBytes.addAndGet(_size);
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Checks if the join is over
+     * @return true if every file to copy has been handled
+     */
+    public boolean isFinished() {
+        return planned && done.get() + failed.get() == total.get();
+    }
+
+    /**
+     * Checks if the join just got over, to report it once
+     * @return true only for the first call after the join is over
+     */
+    public boolean finish() {
+        return isFinished() && reported.compareAndSet(false, true);
+    }
+
+    /**
+     * Fills a PROGRESS response
+     * @param _m Message to add the counters into
+     */
+    public void addTo(Message _m) {
+        _m.addContent(held.get());
+        _m.addContent(total.get());
+        _m.addContent(done.get());
+        _m.addContent(failed.get());
+        _m.addContent(totalBytes.get());
+        _m.addContent(doneBytes.get());
+        _m.addContent(isFinished());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("held %d, copied %d/%d files (%d/%d bytes), failed %d, %s after %d ms",
+                held.get(), done.get(), total.get(), doneBytes.get(), totalBytes.get(), failed.get(),
+                isFinished() ? "finished" : "running", System.currentTimeMillis() - started);
+    }
+}
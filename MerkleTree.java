@@ -0,0 +1,171 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * MerkleTree summarizes the files a StorageNode shares with one peer.
+ * Leaves are equal ranges of the hash ring (see HashRing.hash), so every
+ * file falls into the leaf of its name hash. A leaf hashes the name, size
+ * and content digest of its files in name order, and every inner node
+ * hashes its two children. Two nodes that compare their trees from the
+ * root down only visit the ranges whose hashes differ.
+ * Only the leaves marked dirty are hashed again on update().
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class MerkleTree {
+    // Levels below the root, the tree has 2^DEPTH leaves
+    static final int DEPTH = Math.min(Math.max(Integer.getInteger("dfs.merkle.depth", 10), 1), 20);
+    static final int LEAVES = 1 << DEPTH;
+
+    private ArrayList<String> members;
+    private Predicate<String> scope;
+    private List<NavigableSet<String>> buckets;
+    private Function<String, FileMeta> files;
+    private Function<String, byte []> digests;
+    // Heap layout: root at 1, children of i at 2i and 2i+1, leaves from LEAVES on
+    private byte [][] hashes;
+    private BitSet dirty;
+
+    /**
+     * Default constructor. Every leaf starts dirty.
+     * @param _members Alive StorageNodes the scope was computed from
+     * @param _scope Tells if a file belongs in this tree
+     * @param _buckets File names of each leaf, in name order
+     * @param _files Returns the FileMeta object of a file, null if the file is gone
+     * @param _digests Returns the content digest of a file, null if it cannot be read
+     */
+    public MerkleTree(ArrayList<String> _members, Predicate<String> _scope, List<NavigableSet<String>> _buckets,
+                      Function<String, FileMeta> _files, Function<String, byte []> _digests) {
+        members = _members;
+        scope = _scope;
+        buckets = _buckets;
+        files = _files;
+        digests = _digests;
+        hashes = new byte[2 * LEAVES][];
+        dirty = new BitSet(LEAVES);
+        dirty.set(0, LEAVES);
+    }
+
+    /**
+     * Returns the leaf a file falls into
+     * @param _file File name
+     * @return Leaf number between 0 and LEAVES - 1
+     */
+    public static int leafOf(String _file) {
+        return (int) (HashRing.hash(_file) >>> (64 - DEPTH));
+    }
+
+    /**
+     * Members getter
+     * @return Alive StorageNodes the scope was computed from
+     */
+    public ArrayList<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Marks the leaf of a file to be hashed again
+     * @param _file Name of a file that was added, replaced or removed
+     */
+    public synchronized void markDirty(String _file) {
+        dirty.set(leafOf(_file));
+    }
+
+    /**
+     * Hashes the dirty leaves again and the inner nodes above them
+     */
+    public synchronized void update() {
+        if (dirty.isEmpty()) return;
+
+        for (int leaf = dirty.nextSetBit(0); leaf >= 0; leaf = dirty.nextSetBit(leaf + 1))
+            hashes[LEAVES + leaf] = hashLeaf(leaf);
+
+        // Walk the levels up, hashing only the parents of changed nodes
+        BitSet level = dirty;
+        for (int offset = LEAVES; offset > 1; offset >>= 1) {
+            BitSet parents = new BitSet(offset >> 1);
+            for (int i = level.nextSetBit(0); i >= 0; i = level.nextSetBit(i + 1))
+                parents.set(i >> 1);
+            for (int i = parents.nextSetBit(0); i >= 0; i = parents.nextSetBit(i + 1)) {
+                int node = (offset >> 1) + i;
+                hashes[node] = digest(hashes[2 * node], hashes[2 * node + 1]);
+            }
+            level = parents;
+        }
+        dirty = new BitSet(LEAVES);
+    }
+
+    /**
+     * Returns the hashes of some nodes of the tree
+     * @param _nodes Node numbers, 1 for the root
+     * @return Hashes of the nodes, MD5 length each, one after another
+     */
+    public synchronized byte [] getHashes(ArrayList<Integer> _nodes) {
+        byte [] result = new byte[_nodes.size() * 16];
+        for (int i = 0; i < _nodes.size(); i++)
+            System.arraycopy(hashes[_nodes.get(i)], 0, result, i * 16, 16);
+        return result;
+    }
+
+    /**
+     * Returns the files of a leaf
+     * @param _leaf Leaf number
+     * @return FileMeta objects of the files in this tree's scope, in name order
+     */
+    public ArrayList<FileMeta> getFiles(int _leaf) {
+        ArrayList<FileMeta> result = new ArrayList<FileMeta>();
+        for (String name : buckets.get(_leaf)) {
+            FileMeta fm = files.apply(name);
+            if (fm != null && scope.test(name)) result.add(fm);
+        }
+        return result;
+    }
+
+    /**
+     * Hashes the files of a leaf
+     * @param _leaf Leaf number
+     * @return Leaf hash
+     */
+    private byte [] hashLeaf(int _leaf) {
+        MessageDigest md = md5();
+        for (FileMeta fm : getFiles(_leaf)) {
+            byte [] content = digests.apply(fm.getName());
+            md.update(fm.getName().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(Long.toString(fm.getSize()).getBytes(StandardCharsets.UTF_8));
+            if (content != null) md.update(content);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Hashes two child hashes into their parent's
+     * @param _left Hash of the left child
+     * @param _right Hash of the right child
+     * @return Parent hash
+     */
+    private static byte [] digest(byte [] _left, byte [] _right) {
+        MessageDigest md = md5();
+        md.update(_left);
+        md.update(_right);
+        return md.digest();
+    }
+
+    /**
+     * Creates an MD5 digest, the same function HashRing uses
+     * @return MessageDigest object
+     */
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -10,6 +10,7 @@ public class Message implements Serializable {
     private static final long serialVersionUID = -7226234188134173803L;
     private String message;
     private ArrayList<Object> content;
+    private int requestId;
 
     /**
      * Default constructor
@@ -40,6 +41,23 @@ public class Message implements Serializable {
         return message;
     }
 
+    /**
+     * Request ID getter. Responses carry the ID of the request they answer,
+     * so many requests can share one connection.
+     * @return Request ID
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Request ID setter
+     * @param _requestId Request ID
+     */
+    public void setRequestId(int _requestId) {
+        requestId = _requestId;
+    }
+
     /**
      * Content list getter
      * @return content list
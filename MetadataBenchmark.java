@@ -0,0 +1,83 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the DirectoryServer's MetadataStore: how many NEWFILE-like
+ * changes per second can be made durable by concurrent requests sharing
+ * fsyncs, how long a snapshot of the whole namespace takes and how long
+ * a restart takes to load it back. Needs a large heap for 10M files,
+ * e.g. java -Xmx16g MetadataBenchmark 10000000 64 /tmp/meta
+ */
+public class MetadataBenchmark {
+    public static void main(String [] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("MetadataBenchmark expects 3 arguments");
+            System.out.println("1) Number of files in the namespace");
+            System.out.println("2) Number of concurrent requests");
+            System.out.println("3) Directory to keep the metadata in (emptied first)");
+            System.exit(0);
+        }
+
+        int files = Integer.parseInt(args[0]);
+        int threads = Integer.parseInt(args[1]);
+        File dir = new File(args[2]);
+        File [] old = dir.listFiles();
+        if (old != null) for (File f : old) f.delete();
+
+        final DirectoryServer ds = new DirectoryServer(0, "benchmark", false, false);
+        ds.openStore(dir);
+        for (int i = 0; i < 20; i++)
+            ds.addNode(String.format("10.0.0.%d:5000", i));
+
+        // Durable adds: every request waits for its change to be on disk
+        int durable = Math.min(files, 200000);
+        AtomicInteger next = new AtomicInteger(0);
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                try {
+                    for (int i = next.getAndIncrement(); i < durable; i = next.getAndIncrement()) {
+                        ds.addFile(new FileMeta(String.format("file%d.txt", i), i));
+                        ds.addHolder(String.format("file%d.txt", i), String.format("10.0.0.%d:5000", i % 20));
+                        ds.awaitDurable();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        for (Thread w : workers) w.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-25s%12d files%12.0f files/s\n", "durable adds", durable, durable / seconds);
+
+        // The rest of the namespace is logged without waiting
+        start = System.nanoTime();
+        for (int i = durable; i < files; i++)
+            ds.addFile(new FileMeta(String.format("file%d.txt", i), i));
+        ds.awaitDurable();
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-25s%12d files%12.0f files/s\n", "logged adds", files - durable, (files - durable) / seconds);
+
+        start = System.nanoTime();
+        ds.getStore().snapshot();
+        System.out.printf("%-25s%12d bytes%12.0f ms\n", "snapshot", new File(dir, "snapshot").length(), (System.nanoTime() - start) / 1e6);
+
+        // A tail of changes after the snapshot that the restart replays
+        int tail = Math.max(files / 100, 1);
+        for (int i = files; i < files + tail; i++)
+            ds.addFile(new FileMeta(String.format("file%d.txt", i), i));
+        ds.awaitDurable();
+        ds.getStore().close();
+        System.gc();
+
+        start = System.nanoTime();
+        DirectoryServer restarted = new DirectoryServer(0, "benchmark", false, false);
+        restarted.openStore(dir);
+        System.out.printf("%-25s%12d files%12.0f ms\n", "startup", restarted.getFileMap().size(), (System.nanoTime() - start) / 1e6);
+        restarted.getStore().close();
+    }
+}
@@ -0,0 +1,445 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * MetadataStore keeps a DirectoryServer's state on disk, so it survives a
+ * restart of both DirectoryServers. Every StateLog entry is appended to a
+ * write-ahead log. A single flusher thread writes whatever has piled up and
+ * fsyncs it once, so requests that change the state at the same time share
+ * one fsync (group commit). After SNAPSHOT_ENTRIES entries the whole state is
+ * written to a snapshot and the log segments before it are deleted.
+ * On startup the snapshot is loaded and the newer segments are replayed.
+ * A batch that fails to be written is kept and written again, ahead of
+ * newer entries, in a new segment; nobody waiting for it is woken up before.
+ *
+ * Files in the directory:
+ *   snapshot     magic, sequence number, then nodes, files, holders and the jobs
+ *                that are not done, running ones included
+ *   wal-N        records of int length, int CRC32 and a StateEntry (see WireCodec)
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class MetadataStore {
+    // Entries written to the log before a new snapshot is taken
+    static final long SNAPSHOT_ENTRIES = Long.getLong("dfs.wal.snapshotEntries", 1000000);
+    // Time to wait before writing a failed batch again
+    static final long RETRY_DELAY = Long.getLong("dfs.wal.retry", 1000);
+    static final int MAGIC = 0x44465331;
+
+    private DirectoryServer ds;
+    private File dir;
+    private FileChannel wal;
+    private int segment;
+    // Encoded entries waiting for the flusher and the last sequence number among them
+    private ByteArrayOutputStream pending;
+    private DataOutputStream pendingOut;
+    private long pendingSeq;
+    private long pendingCount;
+    // Last sequence number that is on disk
+    private long syncedSeq;
+    private long sinceSnapshot;
+    private boolean rotate;
+    private AtomicBoolean snapshotting;
+    private Object snapshotLock;
+    private Thread flusher;
+
+    /**
+     * Default constructor
+     * @param _ds DirectoryServer whose state is kept
+     * @param _dir Directory to keep the files in
+     */
+    public MetadataStore(DirectoryServer _ds, File _dir) {
+        ds = _ds;
+        dir = _dir;
+        pending = new ByteArrayOutputStream(64 * 1024);
+        pendingOut = new DataOutputStream(pending);
+        pendingSeq = -1;
+        pendingCount = 0;
+        syncedSeq = -1;
+        sinceSnapshot = 0;
+        rotate = false;
+        snapshotting = new AtomicBoolean(false);
+        snapshotLock = new Object();
+    }
+
+    /**
+     * Loads the snapshot, replays the log segments written after it and
+     * opens a new segment. Starts the flusher thread.
+     * @return Number of log entries replayed
+     * @throws IOException if the directory cannot be read or written
+     */
+    public long open() throws IOException {
+        if (!dir.isDirectory()) dir.mkdirs();
+
+        long snapshotSeq = readSnapshot();
+        long replayed = 0;
+        for (int n : segments()) {
+            replayed += replay(segmentFile(n), snapshotSeq);
+            segment = n;
+        }
+
+        segment++;
+        wal = openSegment(segment);
+        sinceSnapshot = replayed;
+
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        if (sinceSnapshot >= SNAPSHOT_ENTRIES) snapshotLater();
+        return replayed;
+    }
+
+    /**
+     * Queues a state change to be written. Called by the StateLog in the
+     * order the changes happen, so only encoding is done here.
+     * @param _e State change
+     */
+    public synchronized void append(StateEntry _e) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+            WireCodec.writeStateEntry(new DataOutputStream(baos), _e);
+            byte [] record = baos.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            pendingOut.writeInt(record.length);
+            pendingOut.writeInt((int) crc.getValue());
+            pendingOut.write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pendingSeq = _e.getSeq();
+        pendingCount++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until a state change is on disk
+     * @param _seq Sequence number of the change
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void await(long _seq) throws InterruptedException {
+        while (syncedSeq < _seq && pendingSeq >= _seq)
+            wait();
+    }
+
+    /**
+     * Writes the whole state to a new snapshot and deletes the log segments
+     * it makes unnecessary. The state may hold some changes after the
+     * snapshot's sequence number, which is fine because they are idempotent.
+     * @throws IOException if the snapshot cannot be written
+     * @throws InterruptedException if interrupted while waiting for the flusher
+     */
+    public void snapshot() throws IOException, InterruptedException {
+        synchronized (snapshotLock) {
+            // Everything logged so far goes into the old segments, which the snapshot covers
+            int last;
+            synchronized (this) {
+                last = segment;
+                rotate = true;
+                notifyAll();
+                while (rotate)
+                    wait();
+                sinceSnapshot = 0;
+            }
+            long seq = ds.getLog().getLastSeq();
+
+            File tmp = new File(dir, "snapshot.tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 20));
+                writeState(out, seq);
+                out.flush();
+                fos.getChannel().force(true);
+            } finally {
+                fos.close();
+            }
+            Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            for (int n : segments())
+                if (n <= last) segmentFile(n).delete();
+        }
+    }
+
+    /**
+     * Stops the flusher and closes the log. Changes that are not on disk yet are lost.
+     * @throws IOException if the log cannot be closed
+     */
+    public void close() throws IOException {
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wal.close();
+    }
+
+    /**
+     * Takes a snapshot on a thread of its own, unless one is running already
+     */
+    public void snapshotLater() {
+        if (!snapshotting.compareAndSet(false, true)) return;
+
+        Thread t = new Thread(() -> {
+            try {
+                snapshot();
+            } catch (Exception e) {
+                System.err.println("Could not write a metadata snapshot: " + e.getMessage());
+            } finally {
+                snapshotting.set(false);
+            }
+        }, "wal-snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Writes what has piled up, fsyncs it and wakes up the requests waiting for it
+     */
+    private void flushLoop() {
+        // Batch whose write failed, to be written again before anything newer
+        byte [] failed = null;
+        long failedCount = 0;
+
+        while (true) {
+            byte [] batch;
+            long seq;
+            long count;
+            boolean rotateNow;
+            synchronized (this) {
+                try {
+                    while (failed == null && pending.size() == 0 && !rotate)
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (failed == null) {
+                    batch = pending.toByteArray();
+                } else {
+                    batch = Arrays.copyOf(failed, failed.length + pending.size());
+                    System.arraycopy(pending.toByteArray(), 0, batch, failed.length, pending.size());
+                }
+                pending.reset();
+                seq = pendingSeq;
+                count = failedCount + pendingCount;
+                pendingCount = 0;
+                rotateNow = rotate;
+            }
+
+            try {
+                // Part of the failed batch may be in the segment already, followed by a
+                // torn record that ends its replay. Write it all again in a new segment.
+                if (failed != null) {
+                    try {
+                        wal.close();
+                    } catch (IOException e) {
+                        // Given up on anyway
+                    }
+                    segment++;
+                    wal = openSegment(segment);
+                    failed = null;
+                }
+
+                ByteBuffer buff = ByteBuffer.wrap(batch);
+                while (buff.hasRemaining())
+                    wal.write(buff);
+                wal.force(false);
+
+                if (rotateNow) {
+                    wal.close();
+                    segment++;
+                    wal = openSegment(segment);
+                }
+            } catch (IOException e) {
+                // Requests keep waiting rather than report a change that is not durable
+                System.err.println("Could not write the metadata log: " + e.getMessage());
+                failed = batch;
+                failedCount = count;
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                syncedSeq = Math.max(syncedSeq, seq);
+                sinceSnapshot += count;
+                if (rotateNow) rotate = false;
+                notifyAll();
+            }
+            if (sinceSnapshot >= SNAPSHOT_ENTRIES) snapshotLater();
+        }
+    }
+
+    /**
+     * Replays a log segment. A record that is cut short or does not match
+     * its CRC ends the segment, e.g. one torn by a crash.
+     * @param _file Segment file
+     * @param _after Sequence number of the snapshot, older entries are skipped
+     * @return Number of entries replayed
+     * @throws IOException if the file cannot be read
+     */
+    private long replay(File _file, long _after) throws IOException {
+        long count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), 1 << 20));
+        try {
+            while (true) {
+                byte [] record;
+                try {
+                    int len = in.readInt();
+                    int crc = in.readInt();
+                    // A torn length could ask for any amount of memory
+                    if (len < 0 || len > SelectorServer.MAX_FRAME) break;
+                    record = new byte[len];
+                    in.readFully(record);
+                    CRC32 check = new CRC32();
+                    check.update(record);
+                    if ((int) check.getValue() != crc) break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                StateEntry e = WireCodec.readStateEntry(new DataInputStream(new ByteArrayInputStream(record)));
+                if (e.getSeq() <= _after) continue;
+                ds.replay(e);
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the state of the DirectoryServer
+     * @param _out Stream to write into
+     * @param _seq Sequence number of the last change in the state
+     * @throws IOException if writing fails
+     */
+    private void writeState(DataOutputStream _out, long _seq) throws IOException {
+        _out.writeInt(MAGIC);
+        _out.writeLong(_seq);
+
+        // Maps may change while they are written, so every list ends with a false marker
+        for (Map.Entry<String, Boolean> entry : ds.getNodeMap().entrySet()) {
+            _out.writeBoolean(true);
+            _out.writeUTF(entry.getKey());
+            _out.writeBoolean(entry.getValue());
+        }
+        _out.writeBoolean(false);
+
+        // In name order, so loading can build the sorted index by appending
+        for (FileMeta fm : ds.getFileIndex().values()) {
+            _out.writeBoolean(true);
+            WireCodec.writeItem(_out, fm);
+        }
+        _out.writeBoolean(false);
+
+        for (Map.Entry<String, Set<String>> entry : ds.getHolderMap().entrySet()) {
+            for (String node : entry.getValue()) {
+                _out.writeBoolean(true);
+                _out.writeUTF(entry.getKey());
+                _out.writeUTF(node);
+            }
+        }
+        _out.writeBoolean(false);
+
+        for (Job j : ds.getJobs()) {
+            _out.writeBoolean(true);
+            WireCodec.writeItem(_out, j);
+        }
+        _out.writeBoolean(false);
+    }
+
+    /**
+     * Reads the snapshot into the DirectoryServer, if there is one
+     * @return Sequence number of the snapshot, -1 if there is none
+     * @throws IOException if the snapshot is malformed
+     */
+    private long readSnapshot() throws IOException {
+        File f = new File(dir, "snapshot");
+        if (!f.isFile()) return -1;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 20));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a metadata snapshot: " + f);
+            long seq = in.readLong();
+
+            ConcurrentHashMap<String, Boolean> nodes = new ConcurrentHashMap<String, Boolean>();
+            while (in.readBoolean())
+                nodes.put(in.readUTF(), in.readBoolean());
+
+            ConcurrentSkipListMap<String, FileMeta> index = new ConcurrentSkipListMap<String, FileMeta>();
+            while (in.readBoolean()) {
+                FileMeta fm = (FileMeta) WireCodec.readItem(in);
+                index.put(fm.getName(), fm);
+            }
+            ConcurrentHashMap<String, FileMeta> files = new ConcurrentHashMap<String, FileMeta>(index.size() * 4 / 3 + 16);
+            files.putAll(index);
+
+            ConcurrentHashMap<String, Set<String>> holders = new ConcurrentHashMap<String, Set<String>>();
+            while (in.readBoolean()) {
+                String file = in.readUTF();
+                holders.computeIfAbsent(file, k -> ConcurrentHashMap.newKeySet()).add(in.readUTF());
+            }
+
+            ArrayList<Job> jobs = new ArrayList<Job>();
+            while (in.readBoolean())
+                jobs.add((Job) WireCodec.readItem(in));
+
+            ds.restore(nodes, files, index, jobs, holders);
+            return seq;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the numbers of the log segments in the directory
+     * @return Segment numbers, in order
+     */
+    private int [] segments() {
+        File [] files = dir.listFiles((d, name) -> name.matches("wal-\\d+"));
+        if (files == null) return new int[0];
+
+        int [] result = new int[files.length];
+        for (int i = 0; i < files.length; i++)
+            result[i] = Integer.parseInt(files[i].getName().substring(4));
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Opens a new, empty log segment
+     * @param _n Segment number
+     * @return Channel to append to
+     * @throws IOException if the file cannot be created
+     */
+    FileChannel openSegment(int _n) throws IOException {
+        return FileChannel.open(segmentFile(_n).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Returns the file of a log segment
+     * @param _n Segment number
+     * @return File object
+     */
+    private File segmentFile(int _n) {
+        return new File(dir, "wal-" + _n);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+
+/**
+ * Checks that the MetadataStore never reports a change as durable when
+ * writing it failed. Makes the metadata log fail in the middle of a batch,
+ * checks that the request waiting for the batch keeps waiting while newer
+ * changes are made, then lets the disk recover and checks that every change
+ * is acknowledged and found again by a restarted DirectoryServer.
+ * e.g. java MetadataStoreTest
+ */
+public class MetadataStoreTest {
+    public static void main(String [] args) throws Exception {
+        File dir = Files.createTempDirectory("metastore").toFile();
+
+        DirectoryServer ds = new DirectoryServer(0, "test", false, false);
+        FailingStore store = new FailingStore(ds, dir);
+        store.open();
+        ds.getLog().setListener(store::append);
+
+        ds.addNode("10.0.0.1:5000");
+        store.await(ds.getLog().getLastSeq());
+
+        // The next writes put half of their bytes on disk, then fail
+        store.failing = true;
+        ds.addNode("10.0.0.2:5000");
+        long lost = ds.getLog().getLastSeq();
+        Thread waiter = new Thread(() -> {
+            try {
+                store.await(lost);
+            } catch (InterruptedException e) {
+                // Checked below
+            }
+        });
+        waiter.start();
+        waiter.join(3 * MetadataStore.RETRY_DELAY);
+        check(waiter.isAlive(), "A change that failed to be written was acknowledged");
+
+        // The disk recovers; a newer change must not get ahead of the failed one
+        store.failing = false;
+        ds.addNode("10.0.0.3:5000");
+        store.await(ds.getLog().getLastSeq());
+        waiter.join(3 * MetadataStore.RETRY_DELAY);
+        check(!waiter.isAlive(), "A change was not acknowledged after the disk recovered");
+        check(store.failures > 0, "No write failed");
+        store.close();
+
+        DirectoryServer restarted = new DirectoryServer(0, "test", false, false);
+        restarted.openStore(dir);
+        for (int i = 1; i <= 3; i++)
+            check(restarted.getNodeMap().containsKey("10.0.0." + i + ":5000"), "Node " + i + " was lost on restart");
+        restarted.getStore().close();
+
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        System.out.println("MetadataStoreTest passed, " + store.failures + " writes failed and were written again.");
+    }
+
+    /**
+     * Exits with an error if a condition does not hold
+     * @param _ok Condition
+     * @param _error Message to print if it does not hold
+     */
+    private static void check(boolean _ok, String _error) {
+        if (_ok) return;
+        System.err.println("MetadataStoreTest failed: " + _error);
+        System.exit(1);
+    }
+
+    /**
+     * MetadataStore whose log segments fail on demand
+     */
+    private static class FailingStore extends MetadataStore {
+        volatile boolean failing;
+        volatile int failures;
+
+        FailingStore(DirectoryServer _ds, File _dir) {
+            super(_ds, _dir);
+        }
+
+        @Override
+        FileChannel openSegment(int _n) throws IOException {
+            return new FailingChannel(super.openSegment(_n), this);
+        }
+    }
+
+    /**
+     * File channel that writes half of a buffer and then throws while its store is failing
+     */
+    private static class FailingChannel extends FileChannel {
+        private FileChannel ch;
+        private FailingStore store;
+
+        FailingChannel(FileChannel _ch, FailingStore _store) {
+            ch = _ch;
+            store = _store;
+        }
+
+        @Override
+        public int write(ByteBuffer _src) throws IOException {
+            if (!store.failing) return ch.write(_src);
+
+            store.failures++;
+            ByteBuffer half = _src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            ch.write(half);
+            throw new IOException("Injected write failure");
+        }
+
+        @Override
+        public FileChannel position(long _newPosition) throws IOException {
+            ch.position(_newPosition);
+            return this;
+        }
+
+        @Override
+        public FileChannel truncate(long _size) throws IOException {
+            ch.truncate(_size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean _metaData) throws IOException {
+            ch.force(_metaData);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            ch.close();
+        }
+
+        // The store only appends, forces and closes
+
+        @Override
+        public int read(ByteBuffer _dst) throws IOException {
+            return ch.read(_dst);
+        }
+
+        @Override
+        public long read(ByteBuffer [] _dsts, int _offset, int _length) throws IOException {
+            return ch.read(_dsts, _offset, _length);
+        }
+
+        @Override
+        public long write(ByteBuffer [] _srcs, int _offset, int _length) throws IOException {
+            return ch.write(_srcs, _offset, _length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return ch.position();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return ch.size();
+        }
+
+        @Override
+        public long transferTo(long _position, long _count, WritableByteChannel _target) throws IOException {
+            return ch.transferTo(_position, _count, _target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel _src, long _position, long _count) throws IOException {
+            return ch.transferFrom(_src, _position, _count);
+        }
+
+        @Override
+        public int read(ByteBuffer _dst, long _position) throws IOException {
+            return ch.read(_dst, _position);
+        }
+
+        @Override
+        public int write(ByteBuffer _src, long _position) throws IOException {
+            return ch.write(_src, _position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode _mode, long _position, long _size) throws IOException {
+            return ch.map(_mode, _position, _size);
+        }
+
+        @Override
+        public FileLock lock(long _position, long _size, boolean _shared) throws IOException {
+            return ch.lock(_position, _size, _shared);
+        }
+
+        @Override
+        public FileLock tryLock(long _position, long _size, boolean _shared) throws IOException {
+            return ch.tryLock(_position, _size, _shared);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * MuxConnection carries many concurrent Exchanges over one long-lived Connection.
+ * A reader thread routes incoming messages to their Exchange by request ID.
+ * On the server side, a message with an unknown request ID starts a new
+ * Exchange and is passed to the RequestHandler.
+ */
+public class MuxConnection {
+    private Connection conn;
+    private RequestHandler handler;
+    private ConcurrentHashMap<Integer, Exchange> exchanges;
+    private AtomicInteger nextId;
+    private AtomicBoolean closed;
+    private volatile long lastUsed;
+    // Called when the last open exchange ends, e.g. to give a bulk connection back to the pool
+    private volatile Consumer<MuxConnection> onIdle;
+
+    /**
+     * Client side constructor
+     * @param _addr Address to connect to
+     * @throws IOException if connection cannot be established
+     */
+    public MuxConnection(Address _addr) throws IOException {
+        this(new Connection(_addr.getIP(), _addr.getPort()), null);
+    }
+
+    /**
+     * Server side constructor
+     * @param _sock Accepted socket
+     * @param _handler Handler of incoming requests
+     * @throws IOException if streams cannot be opened
+     */
+    public MuxConnection(Socket _sock, RequestHandler _handler) throws IOException {
+        this(new Connection(_sock), _handler);
+    }
+
+    private MuxConnection(Connection _conn, RequestHandler _handler) {
+        conn = _conn;
+        handler = _handler;
+        exchanges = new ConcurrentHashMap<Integer, Exchange>();
+        nextId = new AtomicInteger(0);
+        closed = new AtomicBoolean(false);
+        lastUsed = System.currentTimeMillis();
+
+        Thread reader = new Thread(this::readLoop, "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts a new exchange by sending its first message
+     * @param _request First message of the exchange
+     * @return Exchange to read the response from
+     * @throws IOException if the connection is broken
+     */
+    public Exchange open(Message _request) throws IOException {
+        Exchange ex = new Exchange(this, nextId.incrementAndGet());
+        exchanges.put(ex.getRequestId(), ex);
+        try {
+            ex.send(_request);
+        } catch (IOException e) {
+            ex.close();
+            throw e;
+        }
+        return ex;
+    }
+
+    /**
+     * Reads messages until the connection breaks and routes them to their exchanges
+     */
+    private void readLoop() {
+        try {
+            while (true) {
+                Message m = conn.receive();
+                lastUsed = System.currentTimeMillis();
+                Exchange ex = exchanges.get(m.getRequestId());
+
+                // The other side gave up on an exchange, stop sending on it
+                if (m.getMessage().equals("CANCEL")) {
+                    if (ex != null) ex.cancelled();
+                } else if (ex != null) {
+                    ex.deliver(m);
+                } else if (handler != null && !m.getMessage().equals("CHUNK")) {
+                    ex = new Exchange(this, m.getRequestId());
+                    exchanges.put(ex.getRequestId(), ex);
+                    handler.handle(ex, m);
+                }
+                // else: a late message of an exchange that is already closed, drop it
+            }
+        } catch (Exception e) {
+            close();
+        }
+    }
+
+    /**
+     * Sends a message
+     * @param _m Message to send
+     * @throws IOException if the connection is broken
+     */
+    void send(Message _m) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        lastUsed = System.currentTimeMillis();
+        try {
+            conn.send(_m);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a CHUNK from a buffer that may be shared with other connections
+     * @param _requestId Request ID of the chunk
+     * @param _buff Buffer that holds the chunk
+     * @param _len Number of bytes of the buffer to send
+     * @throws IOException if the connection is broken
+     */
+    void sendChunk(int _requestId, byte [] _buff, int _len) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        lastUsed = System.currentTimeMillis();
+        try {
+            conn.sendChunk(_requestId, _buff, _len);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if file regions can be sent without copying them into the heap
+     * @return true if zero-copy sends are supported
+     */
+    boolean supportsZeroCopy() {
+        return conn.supportsZeroCopy();
+    }
+
+    /**
+     * Sends a CHUNK straight from a file
+     * @param _requestId Request ID of the chunk
+     * @param _file File channel to read from
+     * @param _position Position of the chunk in the file
+     * @param _len Length of the chunk
+     * @throws IOException if the connection is broken
+     */
+    void sendFileRegion(int _requestId, FileChannel _file, long _position, int _len) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        lastUsed = System.currentTimeMillis();
+        try {
+            conn.sendFileRegion(_requestId, _file, _position, _len);
+        } catch (IOException e) {
+            // The frame may be cut in half, the stream cannot be used anymore
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes an exchange
+     * @param _requestId Request ID of the exchange
+     */
+    void unregister(int _requestId) {
+        if (exchanges.remove(_requestId) != null && exchanges.isEmpty() && onIdle != null && !closed.get())
+            onIdle.accept(this);
+    }
+
+    /**
+     * Sets what to do when the last open exchange ends
+     * @param _onIdle Called with this connection, or null
+     */
+    void setOnIdle(Consumer<MuxConnection> _onIdle) {
+        onIdle = _onIdle;
+    }
+
+    /**
+     * Checks if any exchange is still running on this connection
+     * @return true if there are open exchanges, false otherwise
+     */
+    public boolean isBusy() {
+        return !exchanges.isEmpty();
+    }
+
+    /**
+     * Checks if the connection is closed
+     * @return true if closed, false otherwise
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Time of the last message sent or received
+     * @return Time in milliseconds
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Closes the connection and fails every open exchange
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        conn.close();
+        for (Exchange ex : exchanges.values())
+            ex.abort();
+        exchanges.clear();
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NodeLoad is the last load a StorageNode reported in a HEARTBEAT answer,
+ * plus the clients the DirectoryServer sent to it since then. The
+ * FailureDetector updates it every heartbeat and CONNECT compares nodes by
+ * their score.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class NodeLoad {
+    private volatile int transfers;
+    private volatile int queued;
+    private volatile long bytesPerSecond;
+    private volatile long freeSpace;
+    private volatile long reported;
+    // Clients sent to the node since its last report
+    private AtomicInteger assigned;
+    // Clients sent to the node since the DirectoryServer started
+    private AtomicLong chosen;
+
+    /**
+     * Default constructor. Until the first report the node counts as idle
+     * with unknown free space.
+     */
+    public NodeLoad() {
+        transfers = 0;
+        queued = 0;
+        bytesPerSecond = 0;
+        freeSpace = Long.MAX_VALUE;
+        reported = 0;
+        assigned = new AtomicInteger(0);
+        chosen = new AtomicLong(0);
+    }
+
+    /**
+     * Takes the load from a HEARTBEAT answer of the node
+     * @param _m HEARTBEAT response, see StorageNode.addLoadTo
+     */
+    public void update(Message _m) {
+        transfers = (Integer) _m.getContent().get(0);
+        queued = (Integer) _m.getContent().get(1);
+        bytesPerSecond = (Long) _m.getContent().get(2);
+        freeSpace = (Long) _m.getContent().get(3);
+        reported = System.currentTimeMillis();
+        // The report already counts the clients that arrived
+        assigned.set(0);
+    }
+
+    /**
+     * Counts a client sent to the node
+     */
+    public void assign() {
+        assigned.incrementAndGet();
+        chosen.incrementAndGet();
+    }
+
+    /**
+     * Returns how busy the node is: the transfers it runs and the requests
+     * waiting for a worker, plus the clients sent to it since it reported them
+     * @return Score, lower is less busy
+     */
+    public int getScore() {
+        return transfers + queued + assigned.get();
+    }
+
+    /**
+     * Bytes per second getter
+     * @return Bytes per second the node sent and received
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Free space getter
+     * @return Usable disk space of the node in bytes
+     */
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * Fills a LOAD response
+     * @param _m Message to add the load into
+     */
+    public void addTo(Message _m) {
+        _m.addContent(transfers);
+        _m.addContent(queued);
+        _m.addContent(bytesPerSecond);
+        _m.addContent(freeSpace);
+        _m.addContent(assigned.get());
+        _m.addContent(chosen.get());
+        _m.addContent(reported == 0 ? -1 : System.currentTimeMillis() - reported);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d transfers, %d queued, %d bytes/s, %d bytes free, %d assigned, %d chosen",
+                transfers, queued, bytesPerSecond, freeSpace, assigned.get(), chosen.get());
+    }
+}
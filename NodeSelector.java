@@ -0,0 +1,113 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * NodeSelector picks the StorageNode a client is sent to on CONNECT, using
+ * the load the nodes reported (see NodeLoad). With the default policy, p2c,
+ * it samples two random nodes and takes the less busy one, which keeps
+ * clients off a busy node without sending all of them to the same idle node
+ * between two reports. "least" takes the least busy of all nodes and
+ * "random" ignores the load. Nodes low on disk space are only picked when
+ * every candidate is.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class NodeSelector {
+    // Selection policy: p2c, least or random
+    static final String POLICY = System.getProperty("dfs.select.policy", "p2c");
+    // Nodes with less usable disk space than this many bytes are avoided
+    static final long MIN_FREE = Long.getLong("dfs.select.minFree", 64L * 1024 * 1024);
+
+    private String policy;
+    private Function<String, NodeLoad> loads;
+
+    /**
+     * Default constructor
+     * @param _policy Selection policy
+     * @param _loads Returns the load of a node
+     */
+    public NodeSelector(String _policy, Function<String, NodeLoad> _loads) {
+        policy = _policy;
+        loads = _loads;
+    }
+
+    /**
+     * Picks a node and counts the client in its load
+     * @param _candidates Addresses of the nodes to pick from
+     * @return Address of the node, null if there is no candidate
+     */
+    public String choose(String [] _candidates) {
+        if (_candidates.length == 0) return null;
+
+        String node;
+        if (policy.equals("random")) node = random(_candidates);
+        else if (policy.equals("least")) node = least(_candidates);
+        else node = twoChoices(_candidates);
+
+        loads.apply(node).assign();
+        return node;
+    }
+
+    /**
+     * Picks a random node
+     * @param _candidates Addresses of the nodes
+     * @return Address of the node
+     */
+    private String random(String [] _candidates) {
+        return _candidates[ThreadLocalRandom.current().nextInt(_candidates.length)];
+    }
+
+    /**
+     * Picks the less busy of two random nodes
+     * @param _candidates Addresses of the nodes
+     * @return Address of the node
+     */
+    private String twoChoices(String [] _candidates) {
+        if (_candidates.length == 1) return _candidates[0];
+
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        int i = rand.nextInt(_candidates.length);
+        int j = rand.nextInt(_candidates.length - 1);
+        if (j >= i) j++;
+
+        NodeLoad a = loads.apply(_candidates[i]);
+        NodeLoad b = loads.apply(_candidates[j]);
+        // Both are short of space, there may be nodes that are not
+        if (a.getFreeSpace() < MIN_FREE && b.getFreeSpace() < MIN_FREE) return least(_candidates);
+        return better(b, a) ? _candidates[j] : _candidates[i];
+    }
+
+    /**
+     * Picks the least busy node. Starts at a random node so ties are spread.
+     * @param _candidates Addresses of the nodes
+     * @return Address of the node
+     */
+    private String least(String [] _candidates) {
+        int start = ThreadLocalRandom.current().nextInt(_candidates.length);
+        String best = _candidates[start];
+        NodeLoad bestLoad = loads.apply(best);
+
+        for (int k = 1; k < _candidates.length; k++) {
+            String node = _candidates[(start + k) % _candidates.length];
+            NodeLoad load = loads.apply(node);
+            if (better(load, bestLoad)) {
+                best = node;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Compares two nodes: enough disk space first, then the score,
+     * then the bytes per second they move
+     * @param _a Load of a node
+     * @param _b Load of another node
+     * @return true if _a is the better choice
+     */
+    private static boolean better(NodeLoad _a, NodeLoad _b) {
+        boolean aFits = _a.getFreeSpace() >= MIN_FREE, bFits = _b.getFreeSpace() >= MIN_FREE;
+        if (aFits != bFits) return aFits;
+        if (_a.getScore() != _b.getScore()) return _a.getScore() < _b.getScore();
+        return _a.getBytesPerSecond() < _b.getBytesPerSecond();
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Message headers known by the binary wire protocol.
+ * Each header is sent as a single byte instead of a string.
+ */
+public enum OpCode {
+    REGISTER(1),
+    NEWFILE(2),
+    UPLOAD(3),
+    DOWNLOAD(4),
+    FILELIST(5),
+    CONNECT(6),
+    HEARTBEAT(7),
+    STATE(8),
+    NEWFILE_FAKE(9),
+    DOWNLOAD_FAKE(10),
+    CHUNK(11),
+    READY(12),
+    LISTPAGE(13),
+    REPLICATE(14),
+    LOCATE(15),
+    PROGRESS(16),
+    PULL(17),
+    FETCH(18),
+    MERKLE(19),
+    NODES(20),
+    HOLDING(21),
+    STATELOG(22),
+    LOAD(23),
+    CHECKSUM(24),
+    CANCEL(25),
+    FILEINFO(26),
+    DAMAGED(27),
+    SUCCESS(64),
+    FAIL(65),
+    NOT_MODIFIED(66);
+
+    private static final OpCode [] BY_CODE = new OpCode[128];
+
+    static {
+        for (OpCode op : values())
+            BY_CODE[op.code] = op;
+    }
+
+    private final byte code;
+
+    /**
+     * Default constructor
+     * @param _code Byte that represents the header on the wire
+     */
+    OpCode(int _code) {
+        code = (byte) _code;
+    }
+
+    /**
+     * Wire code getter
+     * @return Byte that represents the header on the wire
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Finds the OpCode of a wire code
+     * @param _code Wire code
+     * @return OpCode object, null if the code is unknown
+     */
+    public static OpCode fromCode(byte _code) {
+        return _code < 0 ? null : BY_CODE[_code];
+    }
+}
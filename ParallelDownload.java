@@ -0,0 +1,482 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Checksum;
+
+/**
+ * ParallelDownload fetches a file from several StorageNodes that hold it at
+ * once. The file is cut into ranges of RANGE_SIZE bytes and every node takes
+ * the next range with a ranged DOWNLOAD and writes it at its place in the
+ * target file, which is preallocated to the file's size. A node that fails
+ * gives the rest of its range back to the others. A node that runs out of
+ * ranges takes over the second half of the range with the most bytes left,
+ * so a slow node does not hold up the end of the download. The slow node is
+ * told to stop sending that half with CANCEL once it reaches the new end.
+ * Every byte range written is recorded in a checkpoint file next to the
+ * target. If the download breaks, the next one for the same file asks only
+ * for the ranges the checkpoint does not have.
+ * Each range is checksummed with CRC32C as it arrives and the checksum is
+ * recorded with it. Once the file is complete the checksums of the ranges
+ * are combined in file order and compared with the FileMeta's, so the file
+ * is not read again to check it.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class ParallelDownload {
+    // Files smaller than this are downloaded from a single node
+    static final long MIN_SIZE = Long.getLong("dfs.client.parallelMin", 8L * 1024 * 1024);
+    // Bytes asked for in one ranged DOWNLOAD
+    static final long RANGE_SIZE = Math.max(Long.getLong("dfs.client.rangeSize", 4L * 1024 * 1024), FileTransfer.CHUNK_SIZE);
+    // Number of nodes downloaded from at once
+    static final int SOURCES = Integer.getInteger("dfs.client.sources", 4);
+
+    private String file;
+    private List<Address> nodes;
+    private File target;
+    private FileChannel out;
+    // Size of the file, then one written range and its checksum per line
+    private File checkpoint;
+    private FileWriter log;
+    // <K: start, V: {end, CRC32C}> of the written ranges
+    private TreeMap<Long, long []> pieces;
+    private ArrayDeque<Range> pending;
+    private ArrayList<Range> running;
+    private ArrayList<Address> failed;
+
+    /**
+     * A part of the file. The end can be moved back while the range is
+     * downloaded, when another node takes over the rest of it.
+     */
+    private static class Range {
+        private long start;
+        // Bytes before this are written and in the checksum
+        private volatile long position;
+        // Bytes before this are taken by the node downloading the range, guarded by the download
+        private long claimed;
+        private volatile long end;
+        // End of the range the node was asked for, the node sends up to it
+        private long asked;
+        private Checksum sum;
+
+        private Range(long _position, long _end) {
+            start = _position;
+            position = _position;
+            claimed = _position;
+            end = _end;
+            asked = _end;
+            sum = FileTransfer.newChecksum();
+        }
+    }
+
+    /**
+     * Default constructor
+     * @param _file Name of the file
+     * @param _nodes Addresses of the nodes that hold the file, the first one is asked first
+     * @param _target File to write into
+     */
+    public ParallelDownload(String _file, List<Address> _nodes, File _target) {
+        file = _file;
+        nodes = _nodes;
+        target = _target;
+        checkpoint = new File(_target.getParentFile(), "." + _target.getName() + ".ranges");
+        pieces = new TreeMap<Long, long []>();
+        pending = new ArrayDeque<Range>();
+        running = new ArrayList<Range>();
+        failed = new ArrayList<Address>();
+    }
+
+    /**
+     * Downloads the file. The first node's answer tells the size of the
+     * file, then the other nodes join in if the file is large enough.
+     * @return SUCCESS with the FileMeta once the file is complete, the FAIL the first
+     *         node answered, or a FAIL if the file does not match its checksum
+     * @throws IOException if every node failed before the file was complete
+     */
+    public Message run() throws IOException {
+        // Ranges an earlier download did not get, null to start from scratch
+        long size = readCheckpoint();
+        ArrayList<Range> missing = null;
+        if (size >= 0 && target.isFile() && target.length() == size) missing = gaps(pieces, size);
+        else pieces.clear();
+
+        Range first = missing == null ? new Range(0, RANGE_SIZE) : missing.isEmpty() ? new Range(0, 0) : missing.remove(0);
+        Exchange ex = null;
+        Message head;
+        try {
+            ex = ConnectionPool.getInstance().open(nodes.get(0), rangeRequest(first));
+            head = ex.receive();
+        } catch (IOException e) {
+            if (ex != null) ex.close();
+            failed(nodes.get(0), null);
+            throw e;
+        }
+        if (!head.getMessage().equals("SUCCESS")) {
+            ex.close();
+            return head;
+        }
+
+        FileMeta fm = (FileMeta) head.getContent().get(0);
+        // The file changed since the download broke, start over
+        if (missing != null && fm.getSize() != size) {
+            ex.close();
+            checkpoint.delete();
+            return run();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            if (missing == null) {
+                raf.setLength(fm.getSize());
+                log = new FileWriter(checkpoint);
+                log.write(fm.getSize() + "\n");
+                log.flush();
+
+                first.end = Math.min(RANGE_SIZE, fm.getSize());
+                first.asked = first.end;
+                for (long position = first.end; position < fm.getSize(); position += RANGE_SIZE)
+                    pending.add(new Range(position, Math.min(position + RANGE_SIZE, fm.getSize())));
+            } else {
+                log = new FileWriter(checkpoint, true);
+                pending.addAll(missing);
+            }
+            out = raf.getChannel();
+            running.add(first);
+
+            // The other nodes start with ranges of their own
+            ArrayList<Thread> workers = new ArrayList<Thread>();
+            int sources = fm.getSize() < MIN_SIZE ? 1 : Math.min(SOURCES, nodes.size());
+            for (int i = 1; i < sources; i++) {
+                Address node = nodes.get(i);
+                Thread t = new Thread(() -> work(node, null, null));
+                t.setDaemon(true);
+                t.start();
+                workers.add(t);
+            }
+            work(nodes.get(0), first, ex);
+
+            for (Thread t : workers) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while downloading");
+                }
+            }
+        } finally {
+            raf.close();
+            if (log != null) log.close();
+        }
+
+        synchronized (this) {
+            if (!pending.isEmpty() || !running.isEmpty()) throw new IOException("Every node failed");
+        }
+        checkpoint.delete();
+
+        // A node sent damaged bytes. The file is downloaded again from scratch next time.
+        if (fm.hasChecksum() && checksum(fm.getSize()) != fm.getChecksum()) {
+            target.delete();
+            Message fail = new Message("FAIL");
+            fail.addContent("Downloaded file does not match its checksum.");
+            return fail;
+        }
+        return head;
+    }
+
+    /**
+     * Reads the checkpoint of an earlier download of the file into pieces
+     * @return Size of the file, -1 if there is no checkpoint
+     */
+    private long readCheckpoint() {
+        pieces.clear();
+        if (!checkpoint.isFile()) return -1;
+        try {
+            String [] lines = new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+            long size = Long.parseLong(lines[0]);
+            // The last line is torn if the client died while writing it, empty otherwise
+            for (int i = 1; i < lines.length - 1; i++) {
+                String [] range = lines[i].split(" ");
+                pieces.put(Long.parseLong(range[0]), new long [] {Long.parseLong(range[1]), Long.parseLong(range[2])});
+            }
+            return size;
+        } catch (IOException | RuntimeException e) {
+            pieces.clear();
+            return -1;
+        }
+    }
+
+    /**
+     * Cuts the parts of a file that are not written yet into ranges
+     * @param _written <K: start, V: {end, CRC32C}> of the written ranges
+     * @param _size Size of the file
+     * @return Ranges of at most RANGE_SIZE bytes
+     */
+    private static ArrayList<Range> gaps(TreeMap<Long, long []> _written, long _size) {
+        ArrayList<Range> result = new ArrayList<Range>();
+        long position = 0;
+        for (Map.Entry<Long, long []> range : _written.entrySet()) {
+            cut(result, position, range.getKey());
+            position = Math.max(position, range.getValue()[0]);
+        }
+        cut(result, position, _size);
+        return result;
+    }
+
+    /**
+     * Cuts a part of a file into ranges of at most RANGE_SIZE bytes
+     * @param _ranges List to add the ranges into
+     * @param _from Start of the part
+     * @param _to End of the part
+     */
+    private static void cut(ArrayList<Range> _ranges, long _from, long _to) {
+        for (long position = _from; position < _to; position += RANGE_SIZE)
+            _ranges.add(new Range(position, Math.min(position + RANGE_SIZE, _to)));
+    }
+
+    /**
+     * Records a written range and its checksum in the checkpoint
+     * @param _range Range, written from its start up to its position
+     */
+    private void record(Range _range) {
+        if (_range.position <= _range.start) return;
+        pieces.put(_range.start, new long [] {_range.position, _range.sum.getValue()});
+        try {
+            log.write(_range.start + " " + _range.position + " " + _range.sum.getValue() + "\n");
+            log.flush();
+        } catch (IOException e) {
+            // Only costs downloading the range again if this download breaks too
+        }
+    }
+
+    /**
+     * Combines the checksums of the written ranges in file order
+     * @param _size Size of the file
+     * @return CRC32C of the whole file, NO_CHECKSUM if the ranges do not cover it exactly
+     */
+    private synchronized long checksum(long _size) {
+        long crc = 0;
+        long position = 0;
+        for (Map.Entry<Long, long []> piece : pieces.entrySet()) {
+            if (piece.getKey() != position) return FileMeta.NO_CHECKSUM;
+            crc = combine(crc, piece.getValue()[1], piece.getValue()[0] - position);
+            position = piece.getValue()[0];
+        }
+        return position == _size ? crc : FileMeta.NO_CHECKSUM;
+    }
+
+    /**
+     * Computes the CRC32C of two parts put together from the CRC32C of each
+     * part, as zlib's crc32_combine does for CRC32. Appending _len2 zero
+     * bytes is a linear map on the first CRC, built by squaring the map of
+     * one zero bit over GF(2) for each bit of _len2.
+     * @param _crc1 CRC32C of the first part
+     * @param _crc2 CRC32C of the second part
+     * @param _len2 Length of the second part in bytes
+     * @return CRC32C of both parts
+     */
+    static long combine(long _crc1, long _crc2, long _len2) {
+        if (_len2 <= 0) return _crc1;
+
+        // Map of one zero bit: the reversed CRC32C polynomial, then a shift
+        long [] odd = new long[32];
+        long [] even = new long[32];
+        odd[0] = 0x82F63B78L;
+        for (int n = 1; n < 32; n++)
+            odd[n] = 1L << (n - 1);
+        // Maps of two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // First square in the loop gives the map of one zero byte
+        long crc = _crc1;
+        long len = _len2;
+        do {
+            square(even, odd);
+            if ((len & 1) != 0) crc = times(even, crc);
+            len >>= 1;
+            if (len == 0) break;
+
+            square(odd, even);
+            if ((len & 1) != 0) crc = times(odd, crc);
+            len >>= 1;
+        } while (len != 0);
+        return crc ^ _crc2;
+    }
+
+    /**
+     * Multiplies a 32x32 matrix over GF(2) by a vector
+     * @param _mat Columns of the matrix
+     * @param _vec Vector
+     * @return Product
+     */
+    private static long times(long [] _mat, long _vec) {
+        long sum = 0;
+        for (int i = 0; _vec != 0; i++, _vec >>>= 1)
+            if ((_vec & 1) != 0) sum ^= _mat[i];
+        return sum;
+    }
+
+    /**
+     * Squares a 32x32 matrix over GF(2)
+     * @param _square Matrix to write the result into
+     * @param _mat Matrix to square
+     */
+    private static void square(long [] _square, long [] _mat) {
+        for (int n = 0; n < 32; n++)
+            _square[n] = times(_mat, _mat[n]);
+    }
+
+    /**
+     * Failed getter
+     * @return Addresses of the nodes that failed during the download
+     */
+    public synchronized ArrayList<Address> getFailed() {
+        return new ArrayList<Address>(failed);
+    }
+
+    /**
+     * Downloads ranges from one node until there are none left or the node fails
+     * @param _node Address of the node
+     * @param _range Range already requested, or null
+     * @param _ex Exchange the range was requested on, or null
+     */
+    private void work(Address _node, Range _range, Exchange _ex) {
+        Range range = _range;
+        Exchange ex = _ex;
+
+        try {
+            do {
+                if (range == null) {
+                    range = next();
+                    if (range == null) return;
+                }
+                if (ex == null) {
+                    ex = ConnectionPool.getInstance().open(_node, rangeRequest(range));
+                    Message head = ex.receive();
+                    if (!head.getMessage().equals("SUCCESS")) throw new IOException((String) head.getContent().get(0));
+                }
+
+                try {
+                    receive(ex, range);
+                } finally {
+                    // Another node took over the end of the range, so this one stops sending it
+                    if (range.end < range.asked) ex.cancel();
+                    else ex.close();
+                    ex = null;
+                }
+                done(range);
+                range = null;
+            } while (true);
+        } catch (IOException e) {
+            if (ex != null) ex.close();
+            failed(_node, range);
+        }
+    }
+
+    /**
+     * Writes the chunks of a range at their place in the file and adds them
+     * to its checksum. Stops early if another node took over the end of the
+     * range. Bytes are claimed before they are written, so a range is never
+     * split below bytes its node is writing and the ranges do not overlap.
+     * @param _ex Exchange the range was requested on
+     * @param _range Range to receive
+     * @throws IOException if the node gives up, the connection breaks or the file cannot be written
+     */
+    private void receive(Exchange _ex, Range _range) throws IOException {
+        while (_range.position < _range.end) {
+            byte [] chunk = FileTransfer.nextChunk(_ex);
+            // Bytes past a moved end belong to the node that took them over
+            int len;
+            synchronized (this) {
+                len = (int) Math.min(chunk.length, _range.end - _range.claimed);
+                _range.claimed += len;
+            }
+            ByteBuffer buff = ByteBuffer.wrap(chunk, 0, len);
+            long position = _range.position;
+            while (buff.hasRemaining())
+                position += out.write(buff, position);
+            _range.sum.update(chunk, 0, len);
+            _range.position = position;
+        }
+    }
+
+    /**
+     * Takes the next range to download: a pending one, or the second half
+     * of the running range with the most bytes left. Waits while the ranges
+     * left are too small to split, in case their node fails.
+     * @return Range, null if the file is complete
+     * @throws IOException if interrupted while waiting
+     */
+    private synchronized Range next() throws IOException {
+        while (true) {
+            Range range = pending.poll();
+            if (range == null) {
+                Range slowest = null;
+                for (Range r : running)
+                    if (slowest == null || r.end - r.claimed > slowest.end - slowest.claimed) slowest = r;
+                if (slowest == null) return null;
+
+                // Not worth another request
+                if (slowest.end - slowest.claimed < 2 * FileTransfer.CHUNK_SIZE) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while downloading");
+                    }
+                    continue;
+                }
+
+                long middle = slowest.claimed + (slowest.end - slowest.claimed) / 2;
+                range = new Range(middle, slowest.end);
+                slowest.end = middle;
+            }
+            running.add(range);
+            return range;
+        }
+    }
+
+    /**
+     * Marks a range as downloaded
+     * @param _range Range
+     */
+    private synchronized void done(Range _range) {
+        running.remove(_range);
+        record(_range);
+        notifyAll();
+    }
+
+    /**
+     * Gives the rest of a failed node's range back to the other nodes
+     * @param _node Address of the node
+     * @param _range Range the node was downloading, or null
+     */
+    private synchronized void failed(Address _node, Range _range) {
+        failed.add(_node);
+        if (_range == null) return;
+        running.remove(_range);
+        record(_range);
+        if (_range.position < _range.end) pending.add(new Range(_range.position, _range.end));
+        notifyAll();
+    }
+
+    /**
+     * Builds a ranged DOWNLOAD request
+     * @param _range Range to ask for
+     * @return Request message
+     */
+    private Message rangeRequest(Range _range) {
+        Message req = new Message("DOWNLOAD");
+        req.addContent(file);
+        req.addContent(_range.position);
+        req.addContent(_range.end - _range.position);
+        _range.asked = _range.end;
+        return req;
+    }
+}
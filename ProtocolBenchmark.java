@@ -0,0 +1,153 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the binary wire protocol with plain Java serialization of Message.
+ * Prints bytes on the wire and average encode/decode time for a FILELIST
+ * response and an UPLOAD request.
+ */
+public class ProtocolBenchmark {
+    public static void main(String [] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("ProtocolBenchmark expects 3 arguments");
+            System.out.println("1) Number of files in the FILELIST response");
+            System.out.println("2) Size of the UPLOAD payload in bytes");
+            System.out.println("3) Number of iterations");
+            System.exit(0);
+        }
+
+        int files = Integer.parseInt(args[0]);
+        int payload = Integer.parseInt(args[1]);
+        int iterations = Integer.parseInt(args[2]);
+        Random rand = new Random();
+
+        ArrayList<FileMeta> list = new ArrayList<FileMeta>();
+        for (int i = 0; i < files; i++)
+            list.add(new FileMeta(String.format("file%d.txt", i), rand.nextInt(100000)));
+        Message fileList = new Message("SUCCESS");
+        fileList.addContent(list);
+
+        byte [] content = new byte[payload];
+        rand.nextBytes(content);
+        Message upload = new Message("UPLOAD");
+        upload.addContent(new FileMeta("upload.bin", payload));
+        upload.addContent(content);
+
+        System.out.printf("%-10s%-10s%15s%15s%15s\n", "Message", "Codec", "Bytes", "Encode (us)", "Decode (us)");
+        run("FILELIST", fileList, iterations);
+        run("UPLOAD", upload, iterations);
+
+        // Server side cost of answering FILELIST: rebuilding the list every time vs the
+        // versioned snapshot, a delta of the last 10 files and an up to date client
+        Server server = new Server(0, "benchmark") {
+            void start() {}
+        };
+        for (FileMeta fm : list) server.addFile(fm);
+        long version = (Long) server.getFileListResponse(-1).getContent().get(1);
+        long since = Math.max(version - 10, version - files);
+
+        System.out.printf("\n%-15s%15s%15s\n", "FILELIST", "Bytes", "Respond (us)");
+        respond("rebuild", server, -2, iterations);
+        respond("snapshot", server, -1, iterations);
+        respond("delta", server, since, iterations);
+        respond("not modified", server, version, iterations);
+
+        Message page = new Message("LISTPAGE");
+        page.addContent("file5");
+        page.addContent("file5000");
+        page.addContent(100);
+        byte [] frame = null;
+        long start = 0;
+        for (int i = 0; i < 2 * iterations; i++) {
+            if (i == iterations) start = System.nanoTime();
+            frame = WireCodec.encode(server.getFilePageResponse(page));
+        }
+        System.out.printf("%-15s%15d%15.2f\n", "page of 100", frame.length, (System.nanoTime() - start) / 1000.0 / iterations);
+    }
+
+    /**
+     * Measures building and encoding a FILELIST response and prints a row
+     * @param _name Name of the row
+     * @param _server Server holding the file list
+     * @param _since Version sent by the client, -2 rebuilds the list without the snapshot
+     * @param _iterations Number of iterations
+     * @throws Exception if encoding fails
+     */
+    private static void respond(String _name, Server _server, long _since, int _iterations) throws Exception {
+        byte [] frame = null;
+        long start = 0;
+        for (int i = 0; i < 2 * _iterations; i++) {
+            if (i == _iterations) start = System.nanoTime();
+            Message m;
+            if (_since == -2) {
+                m = new Message("SUCCESS");
+                m.addContent(_server.getFileList());
+            } else {
+                m = _server.getFileListResponse(_since);
+            }
+            frame = WireCodec.encode(m);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-15s%15d%15.2f\n", _name, frame.length, elapsed / 1000.0 / _iterations);
+    }
+
+    /**
+     * Measures both codecs for a message and prints a row for each
+     * @param _name Name of the message to print
+     * @param _m Message to measure
+     * @param _iterations Number of iterations
+     * @throws Exception if encoding fails
+     */
+    private static void run(String _name, Message _m, int _iterations) throws Exception {
+        // Warm up both paths before measuring
+        for (int i = 0; i < Math.min(_iterations, 1000); i++) {
+            decodeBinary(WireCodec.encode(_m));
+            decodeJava(encodeJava(_m));
+        }
+
+        byte [] frame = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < _iterations; i++)
+            frame = WireCodec.encode(_m);
+        long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < _iterations; i++)
+            decodeBinary(frame);
+        long decode = System.nanoTime() - start;
+        print(_name, "binary", frame.length, encode, decode, _iterations);
+
+        byte [] serialized = null;
+        start = System.nanoTime();
+        for (int i = 0; i < _iterations; i++)
+            serialized = encodeJava(_m);
+        encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < _iterations; i++)
+            decodeJava(serialized);
+        decode = System.nanoTime() - start;
+        print(_name, "java", serialized.length, encode, decode, _iterations);
+    }
+
+    private static void print(String _name, String _codec, int _bytes, long _encode, long _decode, int _iterations) {
+        System.out.printf("%-10s%-10s%15d%15.2f%15.2f\n", _name, _codec, _bytes,
+                _encode / 1000.0 / _iterations, _decode / 1000.0 / _iterations);
+    }
+
+    private static Message decodeBinary(byte [] _frame) throws IOException {
+        return WireCodec.decode(new DataInputStream(new ByteArrayInputStream(_frame)));
+    }
+
+    private static byte [] encodeJava(Message _m) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(_m);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static Message decodeJava(byte [] _bytes) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(_bytes));
+        return (Message) ois.readObject();
+    }
+}
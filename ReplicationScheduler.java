@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReplicationScheduler bounds the replication work of the DirectoryServer.
+ * Many files can be copied at the same time as long as their total size stays
+ * within a byte budget and their count under a limit. Besides, each
+ * destination StorageNode receives only a few copies at once. The copies
+ * run on a fixed set of replication threads, and a copy gets a thread only
+ * once its destinations have room for it, so no thread waits for a busy
+ * node. Retries are started again by a timer instead of a sleeping thread. By default the content goes
+ * from node to node along a chain and the DirectoryServer only sends the plan.
+ * Copies onto joining nodes are paced by start time: a timer thread hands each
+ * one to the replication threads when its time comes and it fits in the budget.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class ReplicationScheduler {
+    // Total size of the files being replicated at once
+    static final long BYTE_BUDGET = Long.getLong("dfs.replication.bytes", 256L * 1024 * 1024);
+    // Number of files being replicated at once
+    static final int MAX_FILES = Integer.getInteger("dfs.replication.files", 64);
+    // Number of copies a single StorageNode receives at once
+    static final int NODE_LIMIT = Integer.getInteger("dfs.replication.perNode", 4);
+    // "chain" passes files from node to node, "fanout" pipes them through the DirectoryServer
+    static final boolean CHAIN = !System.getProperty("dfs.replication.topology", "chain").equals("fanout");
+    // Slowest transfer rate in bytes/ms to wait for before giving up on a chain
+    static final long MIN_RATE = Long.getLong("dfs.replication.minRate", 1024);
+    // Bytes per second copied onto a joining node, 0 for no limit
+    static final long JOIN_RATE = Long.getLong("dfs.join.rate", 100L * 1024 * 1024);
+    // Most files and bytes a joining node pulls from a peer in one request
+    static final int BATCH_FILES = Integer.getInteger("dfs.join.batchFiles", 256);
+    static final long BATCH_BYTES = Long.getLong("dfs.join.batchBytes", 64L * 1024 * 1024);
+    // Number of threads that run Uploaders and Syncs
+    static final int WORKERS = Integer.getInteger("dfs.replication.workers", 16);
+
+    private long bytesInFlight;
+    private int filesInFlight;
+    // <K: destination StorageNode, V: copies it is receiving>
+    private HashMap<String, Integer> nodeCopies;
+    // Copies waiting for room on their destinations, in order
+    private ArrayList<NodeCopy> blocked;
+    private ExecutorService executor;
+    // Starts paced copies and retries at their time, nothing else runs on it
+    private ScheduledExecutorService pacer;
+    private long nextJoinSlot;
+    // Paced copies whose time has come, waiting for room in the budget in order
+    private ArrayDeque<PacedCopy> waiting;
+
+    /**
+     * A copy onto a joining node, the bytes it counts in the budget and its destination
+     */
+    private static class PacedCopy {
+        long size;
+        List<String> nodes;
+        Runnable task;
+
+        PacedCopy(long _size, List<String> _nodes, Runnable _task) {
+            size = _size;
+            nodes = _nodes;
+            task = _task;
+        }
+    }
+
+    /**
+     * A copy and the destination StorageNodes it needs a slot on
+     */
+    private static class NodeCopy {
+        List<String> nodes;
+        Runnable task;
+
+        NodeCopy(List<String> _nodes, Runnable _task) {
+            nodes = _nodes;
+            task = _task;
+        }
+    }
+
+    /**
+     * Default constructor
+     */
+    public ReplicationScheduler() {
+        bytesInFlight = 0;
+        filesInFlight = 0;
+        nodeCopies = new HashMap<String, Integer>();
+        blocked = new ArrayList<NodeCopy>();
+        nextJoinSlot = 0;
+        waiting = new ArrayDeque<PacedCopy>();
+        executor = Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "replication");
+            t.setDaemon(true);
+            return t;
+        });
+        pacer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-pacer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Asks a StorageNode to copy a file along a chain of nodes. Each node
+     * stores the file and passes its chunks on to the next one as they
+     * arrive, so the content never goes through the DirectoryServer.
+     * @param _source Address of the node that has the file
+     * @param _chain Addresses of the nodes to copy the file onto, in order
+     * @param _fm FileMeta object of the file
+     * @return SUCCESS with the nodes that stored the file and the ones that could
+     *         not be reached, or FAIL if the source does not have the file
+     * @throws IOException if the source cannot be reached
+     */
+    public static Message replicate(String _source, ArrayList<String> _chain, FileMeta _fm) throws IOException {
+        Message req = new Message("REPLICATE");
+        req.addContent(_fm);
+        req.addContent(_chain);
+
+        Exchange ex = ConnectionPool.getInstance().open(Address.parse(_source), req);
+        try {
+            // The answer comes when the whole chain is done
+            return ex.receive(Exchange.TIMEOUT + _fm.getSize() / MIN_RATE);
+        } finally {
+            ex.close();
+        }
+    }
+
+    /**
+     * Waits until a file fits in the budget and counts it in.
+     * A file larger than the whole budget waits until nothing else is in flight.
+     * @param _size Size of the file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void admit(long _size) throws InterruptedException {
+        while (!tryAdmit(_size))
+            wait();
+    }
+
+    /**
+     * Counts a file in if it fits in the budget right now
+     * @param _size Size of the file
+     * @return true if the file was counted in
+     */
+    private synchronized boolean tryAdmit(long _size) {
+        long cost = Math.min(_size, BYTE_BUDGET);
+        if (filesInFlight >= MAX_FILES || (filesInFlight > 0 && bytesInFlight + cost > BYTE_BUDGET))
+            return false;
+        bytesInFlight += cost;
+        filesInFlight++;
+        return true;
+    }
+
+    /**
+     * Counts a file out when it is replicated, or failed to
+     * @param _size Size of the file
+     */
+    public synchronized void release(long _size) {
+        bytesInFlight -= Math.min(_size, BYTE_BUDGET);
+        filesInFlight--;
+        notifyAll();
+        startWaiting();
+    }
+
+    /**
+     * Runs a copy onto a joining node on the replication threads, paced to
+     * JOIN_RATE bytes per second: it starts once the copies before it have
+     * had their time at that rate, it fits in the budget and its destinations
+     * have room. Returns right away, neither the caller nor a replication
+     * thread waits in the meantime. The task must call releaseNodes with the
+     * same nodes after each run, and release with the same size when it is done.
+     * @param _size Total size of the files the task copies
+     * @param _nodes Addresses of the destination StorageNodes
+     * @param _task Task to run
+     */
+    public void executePaced(long _size, List<String> _nodes, Runnable _task) {
+        long delay = 0;
+        if (JOIN_RATE > 0) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(nextJoinSlot, now);
+                nextJoinSlot = start + (long) (_size * 1e9 / JOIN_RATE);
+                delay = start - now;
+            }
+        }
+
+        PacedCopy copy = new PacedCopy(_size, _nodes, _task);
+        pacer.schedule(() -> {
+            synchronized (this) {
+                waiting.add(copy);
+                startWaiting();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts the paced copies whose time has come in, in order, as long as
+     * they fit in the budget, and starts them once their destinations have room
+     */
+    private synchronized void startWaiting() {
+        while (!waiting.isEmpty() && tryAdmit(waiting.peek().size)) {
+            PacedCopy copy = waiting.poll();
+            blocked.add(new NodeCopy(copy.nodes, copy.task));
+        }
+        startBlocked();
+    }
+
+    /**
+     * Runs a copy on the replication threads once every destination
+     * StorageNode can take one more copy. The slots on all of them are taken
+     * at once, before the copy gets a thread, so neither the caller nor a
+     * replication thread waits for a busy node. The task must call
+     * releaseNodes with the same nodes when it is done.
+     * @param _nodes Addresses of the destination StorageNodes
+     * @param _task Task to run
+     */
+    public synchronized void executeOnNodes(List<String> _nodes, Runnable _task) {
+        blocked.add(new NodeCopy(_nodes, _task));
+        startBlocked();
+    }
+
+    /**
+     * Does the same as executeOnNodes after a delay, e.g. to try busy nodes
+     * again. The timer thread waits out the delay, not a replication thread.
+     * @param _nodes Addresses of the destination StorageNodes
+     * @param _task Task to run
+     * @param _delay Delay in ms
+     */
+    public void executeOnNodesLater(List<String> _nodes, Runnable _task, long _delay) {
+        pacer.schedule(() -> executeOnNodes(_nodes, _task), _delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives back the slots taken for a copy and starts the copies waiting for them
+     * @param _nodes Addresses of the destination StorageNodes
+     */
+    public synchronized void releaseNodes(List<String> _nodes) {
+        for (String node : _nodes)
+            nodeCopies.computeIfPresent(node, (n, c) -> c > 1 ? c - 1 : null);
+        startBlocked();
+    }
+
+    /**
+     * Hands the copies whose destinations all have room to the replication
+     * threads, in order. A copy that has to wait does not hold back the
+     * ones behind it that go to other nodes.
+     */
+    private synchronized void startBlocked() {
+        Iterator<NodeCopy> it = blocked.iterator();
+        while (it.hasNext()) {
+            NodeCopy copy = it.next();
+            boolean fits = true;
+            for (String node : copy.nodes)
+                fits &= nodeCopies.getOrDefault(node, 0) < NODE_LIMIT;
+            if (!fits) continue;
+
+            for (String node : copy.nodes)
+                nodeCopies.merge(node, 1, Integer::sum);
+            it.remove();
+            executor.execute(copy.task);
+        }
+    }
+
+    /**
+     * Bytes in flight getter
+     * @return Total size of the files being replicated
+     */
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * Files in flight getter
+     * @return Number of files being replicated
+     */
+    public synchronized int getFilesInFlight() {
+        return filesInFlight;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Callback for servers that accept requests over a MuxConnection.
+ * It is invoked on the connection's reader thread, so implementations
+ * should hand the request off to a worker instead of serving it inline.
+ */
+public interface RequestHandler {
+    /**
+     * Handles a new request
+     * @param _ex Exchange to reply on. It must be closed when the request is served.
+     * @param _request First message of the request
+     */
+    void handle(Exchange _ex, Message _request);
+}
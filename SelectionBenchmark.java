@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates clients sent to StorageNodes by the NodeSelector policies under
+ * a skewed load and prints download latency percentiles for each policy.
+ * Every node has the same bandwidth, shared equally by the downloads it
+ * serves. A quarter of the nodes also serve long background downloads, as
+ * if they held the popular large files. Nodes report their load every
+ * dfs.liveness.interval ms, as with the FailureDetector, so the selector
+ * works with loads as stale as in the real system.
+ * e.g. java SelectionBenchmark 20 100000 150
+ */
+public class SelectionBenchmark {
+    // Bandwidth of a node in bytes per ms (100 MB/s)
+    private static final long BANDWIDTH = 100 * 1024;
+    // Size of a downloaded file (10 MB)
+    private static final long FILE_SIZE = 10 * 1024 * 1024;
+    // Background downloads on each busy node
+    private static final int BACKGROUND = 4;
+
+    public static void main(String [] args) {
+        if (args.length != 3) {
+            System.out.println("SelectionBenchmark expects 3 arguments");
+            System.out.println("1) Number of StorageNodes");
+            System.out.println("2) Number of downloads");
+            System.out.println("3) Downloads started per second");
+            System.exit(0);
+        }
+
+        int nodes = Integer.parseInt(args[0]);
+        int downloads = Integer.parseInt(args[1]);
+        double rate = Double.parseDouble(args[2]);
+
+        System.out.printf("%-10s%12s%12s%12s%12s\n", "policy", "mean ms", "p50 ms", "p99 ms", "max ms");
+        for (String policy : new String [] {"random", "p2c", "least"}) {
+            long [] latencies = simulate(policy, nodes, downloads, rate);
+            long total = 0;
+            for (long l : latencies) total += l;
+            System.out.printf("%-10s%12.1f%12d%12d%12d\n", policy, total * 1.0 / latencies.length,
+                    latencies[(int) (latencies.length * 0.50)], latencies[(int) (latencies.length * 0.99)],
+                    latencies[latencies.length - 1]);
+        }
+    }
+
+    /**
+     * Runs the downloads in 1 ms steps
+     * @param _policy NodeSelector policy
+     * @param _nodes Number of nodes
+     * @param _downloads Number of downloads
+     * @param _rate Downloads started per second
+     * @return Latency of each download in ms, sorted
+     */
+    private static long [] simulate(String _policy, int _nodes, int _downloads, double _rate) {
+        Random rand = new Random(42);
+        String [] names = new String[_nodes];
+        NodeLoad [] loads = new NodeLoad[_nodes];
+        // Bytes left of each download running on a node, and when it started
+        List<ArrayList<long []>> running = new ArrayList<ArrayList<long []>>(_nodes);
+        for (int i = 0; i < _nodes; i++) {
+            names[i] = Integer.toString(i);
+            loads[i] = new NodeLoad();
+            running.add(new ArrayList<long []>());
+        }
+        NodeSelector selector = new NodeSelector(_policy, n -> loads[Integer.parseInt(n)]);
+
+        long [] latencies = new long[_downloads];
+        int started = 0, finished = 0;
+        double nextArrival = 0;
+
+        for (long now = 0; finished < _downloads; now++) {
+            // Downloads arrive as a Poisson process
+            while (started < _downloads && nextArrival <= now) {
+                int node = Integer.parseInt(selector.choose(names));
+                running.get(node).add(new long [] {FILE_SIZE, now});
+                started++;
+                nextArrival += -Math.log(1 - rand.nextDouble()) * 1000 / _rate;
+            }
+
+            for (int i = 0; i < _nodes; i++) {
+                int background = i % 4 == 0 ? BACKGROUND : 0;
+                int flows = running.get(i).size() + background;
+                if (now % FailureDetector.INTERVAL == 0) loads[i].update(heartbeat(flows));
+                if (running.get(i).isEmpty()) continue;
+
+                long share = BANDWIDTH / flows;
+                for (int k = running.get(i).size() - 1; k >= 0; k--) {
+                    long [] d = running.get(i).get(k);
+                    d[0] -= share;
+                    if (d[0] <= 0) {
+                        latencies[finished++] = now + 1 - d[1];
+                        running.get(i).remove(k);
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Builds the HEARTBEAT answer of a simulated node
+     * @param _transfers Downloads running on the node
+     * @return Response message, as StorageNode.addLoadTo fills it
+     */
+    private static Message heartbeat(int _transfers) {
+        Message m = new Message("SUCCESS");
+        m.addContent(_transfers);
+        m.addContent(0);
+        m.addContent(_transfers > 0 ? BANDWIDTH * 1000 : 0L);
+        m.addContent(Long.MAX_VALUE);
+        return m;
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SelectorServer is an event-driven server core for the DirectoryServer.
+ * One thread multiplexes every connection with a Selector and splits the
+ * byte stream into frames. Requests are served by a fixed pool of workers
+ * through DirectoryServerThread.respond(), so semantics are the same as
+ * the thread-per-connection core. Only the binary wire protocol is supported.
+ */
+public class SelectorServer {
+    static final int WORKERS = Integer.getInteger("dfs.directory.workers", 64);
+    // Largest frame a peer may send, and the buffer a frame starts with
+    static final int MAX_FRAME = Integer.getInteger("dfs.net.maxFrame", 16 << 20);
+    static final int INITIAL_BUFFER = 64 * 1024;
+
+    private DirectoryServer ds;
+    private int port;
+    private Selector selector;
+    private ExecutorService workers;
+    // Sessions that have responses waiting to be written
+    private ConcurrentLinkedQueue<Session> pendingWrites;
+
+    /**
+     * Per-connection state
+     */
+    private class Session {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        // Grows up to bodyLength as the frame arrives
+        ByteBuffer body;
+        int bodyLength;
+        ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    /**
+     * Default constructor
+     * @param _ds DirectoryServer that serves the requests
+     * @param _port Port to listen
+     */
+    public SelectorServer(DirectoryServer _ds, int _port) {
+        ds = _ds;
+        port = _port;
+        workers = Executors.newFixedThreadPool(WORKERS);
+        pendingWrites = new ConcurrentLinkedQueue<Session>();
+    }
+
+    /**
+     * Runs the event loop. Never returns unless the selector fails.
+     * @throws IOException if the port cannot be opened
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        while (true) {
+            selector.select();
+
+            // Workers finished some responses, start writing them
+            Session pending;
+            while ((pending = pendingWrites.poll()) != null)
+                if (pending.key.isValid())
+                    pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept(serverChannel);
+                    if (key.isValid() && key.isReadable()) read((Session) key.attachment());
+                    if (key.isValid() && key.isWritable()) write((Session) key.attachment());
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts every pending connection
+     * @param _serverChannel Listening channel
+     * @throws IOException if accept fails
+     */
+    private void accept(ServerSocketChannel _serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = _serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Session s = new Session();
+            s.channel = channel;
+            s.key = channel.register(selector, SelectionKey.OP_READ, s);
+        }
+    }
+
+    /**
+     * Reads as much as the socket has and dispatches every complete frame
+     * @param _s Session of the connection
+     * @throws IOException if the connection is closed or sends a bad frame
+     */
+    private void read(Session _s) throws IOException {
+        while (true) {
+            if (_s.body == null) {
+                if (_s.channel.read(_s.header) < 0) throw new IOException("Connection closed");
+                if (_s.header.hasRemaining()) return;
+
+                _s.header.flip();
+                int length = _s.header.getInt();
+                _s.header.clear();
+                if (length < 0 || length > MAX_FRAME) throw new IOException("Bad frame length " + length);
+                // The length is only the peer's word, so memory is taken as bytes arrive
+                _s.bodyLength = length;
+                _s.body = ByteBuffer.allocate(Math.min(length, INITIAL_BUFFER));
+            }
+
+            if (_s.channel.read(_s.body) < 0) throw new IOException("Connection closed");
+            if (_s.body.hasRemaining()) return;
+            if (_s.body.capacity() < _s.bodyLength) {
+                ByteBuffer bigger = ByteBuffer.allocate((int) Math.min((long) _s.body.capacity() * 2, _s.bodyLength));
+                _s.body.flip();
+                bigger.put(_s.body);
+                _s.body = bigger;
+                continue;
+            }
+
+            final byte [] frame = _s.body.array();
+            _s.body = null;
+            dispatch(_s, frame);
+        }
+    }
+
+    /**
+     * Hands a frame to a worker. The worker decodes and serves it, then
+     * queues the encoded response for the selector thread.
+     * @param _s Session of the connection
+     * @param _frame Frame body without the length prefix
+     */
+    private void dispatch(final Session _s, final byte [] _frame) {
+        workers.execute(() -> {
+            try {
+                Message request = WireCodec.decodeBody(new DataInputStream(new ByteArrayInputStream(_frame)));
+                Message response = new DirectoryServerThread(request, ds).respond();
+                response.setRequestId(request.getRequestId());
+
+                _s.writes.add(ByteBuffer.wrap(WireCodec.encode(response)));
+                pendingWrites.add(_s);
+                selector.wakeup();
+            } catch (Exception e) {
+                e.printStackTrace();
+                close(_s.key);
+            }
+        });
+    }
+
+    /**
+     * Writes queued responses until the socket buffer is full
+     * @param _s Session of the connection
+     * @throws IOException if the connection is broken
+     */
+    private void write(Session _s) throws IOException {
+        ByteBuffer buff;
+        while ((buff = _s.writes.peek()) != null) {
+            _s.channel.write(buff);
+            if (buff.hasRemaining()) return;
+            _s.writes.poll();
+        }
+        _s.key.interestOps(SelectionKey.OP_READ);
+
+        // A worker may have queued a response after the loop above
+        if (!_s.writes.isEmpty()) _s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Closes a connection
+     * @param _key Selection key of the connection
+     */
+    private void close(SelectionKey _key) {
+        _key.cancel();
+        try {
+            _key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
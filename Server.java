@@ -1,9 +1,12 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.NavigableMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * Abstract server class
@@ -11,10 +14,23 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author Mesut Erhan Unal and Erhu He
  */
 public abstract class Server {
+    // Largest page a LISTPAGE request can get
+    public static final int MAX_PAGE_SIZE = Integer.getInteger("dfs.list.maxPage", 1000);
+
     protected int port;
     protected String serverID;
     protected List<Long> responseTimes;
     protected ConcurrentHashMap<String, FileMeta> fileMap;
+    // Same entries as fileMap sorted by name, serves paged listings
+    protected ConcurrentSkipListMap<String, FileMeta> fileIndex;
+
+    // FILELIST versioning. Every added file gets the next version. Removing files
+    // or replacing the whole map starts a new base version, so deltas from before
+    // it cannot be served anymore. Guarded by this object.
+    private long version;
+    private long baseVersion;
+    private ArrayList<FileMeta> additions;
+    private EncodedItem snapshot;
 
     /**
      * Default constructor
@@ -25,7 +41,13 @@ public abstract class Server {
         port = _port;
         serverID = _serverID;
         fileMap = new ConcurrentHashMap<String, FileMeta>();
+        fileIndex = new ConcurrentSkipListMap<String, FileMeta>();
         responseTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+        // Start from the clock so a restarted server never reuses an old version number
+        version = System.currentTimeMillis() * 1000;
+        baseVersion = version;
+        additions = new ArrayList<FileMeta>();
     }
 
     /**
@@ -53,8 +75,146 @@ public abstract class Server {
      * Adds a file to the file map
      * @param _meta FileMeta object of the file
      */
-    public void addFile(FileMeta _meta) {
-        fileMap.putIfAbsent(_meta.getName(), _meta);
+    public synchronized void addFile(FileMeta _meta) {
+        if (fileMap.putIfAbsent(_meta.getName(), _meta) == null) {
+            fileIndex.put(_meta.getName(), _meta);
+            additions.add(_meta);
+            version++;
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Replaces the FileMeta object of a file in the file map, e.g. with one that has its checksum
+     * @param _meta New FileMeta object of the file
+     */
+    public synchronized void replaceFileMeta(FileMeta _meta) {
+        if (fileMap.replace(_meta.getName(), _meta) != null) {
+            fileIndex.put(_meta.getName(), _meta);
+            resetVersion();
+        }
+    }
+
+    /**
+     * Removes a file from the file map
+     * @param _file File name to remove
+     */
+    public synchronized void removeFile(String _file) {
+        if (fileMap.remove(_file) != null) {
+            fileIndex.remove(_file);
+            resetVersion();
+        }
+    }
+
+    /**
+     * Replaces the whole file map, e.g. with a state copied from another server
+     * @param _fileMap New file map
+     */
+    protected synchronized void setFileMap(ConcurrentHashMap<String, FileMeta> _fileMap) {
+        setFileMap(_fileMap, new ConcurrentSkipListMap<String, FileMeta>(_fileMap));
+    }
+
+    /**
+     * Replaces the whole file map with one whose sorted index is already built,
+     * e.g. one loaded from a snapshot in name order
+     * @param _fileMap New file map
+     * @param _fileIndex Same entries sorted by name
+     */
+    protected synchronized void setFileMap(ConcurrentHashMap<String, FileMeta> _fileMap, ConcurrentSkipListMap<String, FileMeta> _fileIndex) {
+        fileMap = _fileMap;
+        fileIndex = _fileIndex;
+        resetVersion();
+    }
+
+    /**
+     * Starts a new base version. Clients holding an older version get a full list.
+     */
+    private void resetVersion() {
+        version++;
+        baseVersion = version;
+        additions = new ArrayList<FileMeta>();
+        snapshot = null;
+    }
+
+    /**
+     * Builds the response of a FILELIST request. The content is the file list,
+     * the current version and a flag that tells if the list is a delta.
+     * The full list is encoded once per version and reused by every request.
+     * @param _since Version the requester already has, or -1 for the full list
+     * @return NOT_MODIFIED if the requester is up to date, SUCCESS otherwise
+     * @throws IOException if the list cannot be encoded
+     */
+    public synchronized Message getFileListResponse(long _since) throws IOException {
+        Message response;
+
+        if (_since == version) {
+            response = new Message("NOT_MODIFIED");
+            response.addContent(version);
+            return response;
+        }
+
+        response = new Message("SUCCESS");
+        // Requester has a version of this base, send only what was added after it
+        if (_since >= baseVersion && _since < version) {
+            int from = (int) (_since - baseVersion);
+            response.addContent(new ArrayList<FileMeta>(additions.subList(from, additions.size())));
+            response.addContent(version);
+            response.addContent(true);
+        } else {
+            if (snapshot == null) snapshot = new EncodedItem(new ArrayList<FileMeta>(fileMap.values()));
+            response.addContent(snapshot);
+            response.addContent(version);
+            response.addContent(false);
+        }
+        return response;
+    }
+
+    /**
+     * Returns a page of files whose names start with a prefix, in name order.
+     * Costs O(log n + page) no matter how many files there are.
+     * @param _prefix Name prefix, empty string for all files
+     * @param _startAfter Name of the last file of the previous page, null for the first page
+     * @param _pageSize Maximum number of files to return
+     * @return Files of the page
+     */
+    public ArrayList<FileMeta> getFilePage(String _prefix, String _startAfter, int _pageSize) {
+        ArrayList<FileMeta> page = new ArrayList<FileMeta>();
+        NavigableMap<String, FileMeta> tail;
+
+        if (_startAfter != null && _startAfter.compareTo(_prefix) >= 0) tail = fileIndex.tailMap(_startAfter, false);
+        else tail = fileIndex.tailMap(_prefix, true);
+
+        for (FileMeta fm : tail.values()) {
+            if (page.size() >= _pageSize || !fm.getName().startsWith(_prefix)) break;
+            page.add(fm);
+        }
+        return page;
+    }
+
+    /**
+     * Builds the response of a LISTPAGE request. Request content is the
+     * prefix, the cursor and the page size. Response content is the page and
+     * the cursor of the next page, which is null after the last page.
+     * @param _request LISTPAGE request
+     * @return Response message
+     */
+    public Message getFilePageResponse(Message _request) {
+        String prefix = (String) _request.getContent().get(0);
+        String startAfter = (String) _request.getContent().get(1);
+        int pageSize = Math.min(Math.max((Integer) _request.getContent().get(2), 1), MAX_PAGE_SIZE);
+
+        // Ask for one more than needed to learn if there is a next page
+        ArrayList<FileMeta> page = getFilePage(prefix == null ? "" : prefix, startAfter, pageSize + 1);
+        String next = null;
+        if (page.size() > pageSize) {
+            page.remove(pageSize);
+            next = page.get(pageSize - 1).getName();
+        }
+
+        Message response = new Message("SUCCESS");
+        response.addContent(page);
+        response.addContent(next);
+        return response;
     }
 
     /**
@@ -74,6 +234,14 @@ public abstract class Server {
         return new ArrayList<FileMeta>(fileMap.values());
     }
 
+    /**
+     * Version getter
+     * @return Version of the file list, moves on whenever a file is added or removed
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
     /**
      * Returns the ConcurrentHashMap that holds <K: filename, V: meta> entries
      * @return file map
@@ -82,6 +250,14 @@ public abstract class Server {
         return fileMap;
     }
 
+    /**
+     * Returns the files sorted by name
+     * @return Sorted index of the file map
+     */
+    public ConcurrentSkipListMap<String, FileMeta> getFileIndex() {
+        return fileIndex;
+    }
+
     /**
      * Returns the FileMeta object of a file
      * @param _file File name whose FileMeta object to be returned
@@ -26,10 +26,26 @@ class ServerShutDownListener extends Thread {
         System.out.println(String.format("Total File List Requests: %d", totalRequests));
         System.out.println(String.format("Average Response Time: %.4f", (totalTime * 1.0) / totalRequests));
 
+        // Time from NEWFILE until the file is on every node
+        int replicated = 0;
+        long replicationTime = 0;
+        if (server instanceof DirectoryServer) {
+            for (long t : ((DirectoryServer) server).getReplicationTimes()) {
+                replicationTime += t;
+                replicated++;
+            }
+            System.out.println(String.format("Total Replicated Files: %d", replicated));
+            System.out.println(String.format("Average Replication Time: %.4f", (replicationTime * 1.0) / replicated));
+        }
+
         try {
             BufferedWriter bf = new BufferedWriter(new FileWriter(String.format("./Logs/%s.log", server.getServerID())));
             bf.write(String.format("Total File List Requests: %d\n", totalRequests));
             bf.write(String.format("Average Response Time: %.4f\n", (totalTime * 1.0) / totalRequests));
+            if (server instanceof DirectoryServer) {
+                bf.write(String.format("Total Replicated Files: %d\n", replicated));
+                bf.write(String.format("Average Replication Time: %.4f\n", (replicationTime * 1.0) / replicated));
+            }
             bf.close();
         } catch (Exception e) {
             System.out.println(String.format("Could not write in ./Logs/%s.log", server.getServerID()));
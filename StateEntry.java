@@ -0,0 +1,52 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * StateEntry is one change to the state of a DirectoryServer, e.g. a file
+ * or a node that was added. Entries are numbered in the order they happened
+ * on the primary, so the backup can apply them in the same order.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class StateEntry implements Serializable {
+    private static final long serialVersionUID = -7226234188134173803L;
+    private long seq;
+    private String op;
+    private ArrayList<Object> args;
+
+    /**
+     * Default constructor
+     * @param _seq Sequence number
+     * @param _op Type of the change
+     * @param _args Arguments of the change
+     */
+    public StateEntry(long _seq, String _op, Object... _args) {
+        seq = _seq;
+        op = _op;
+        args = new ArrayList<Object>(Arrays.asList(_args));
+    }
+
+    /**
+     * Sequence number getter
+     * @return Sequence number
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Change type getter
+     * @return Type of the change
+     */
+    public String getOp() {
+        return op;
+    }
+
+    /**
+     * Arguments getter
+     * @return Arguments of the change
+     */
+    public ArrayList<Object> getArgs() {
+        return args;
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * StateLog keeps the latest changes to a DirectoryServer's state in a ring
+ * of CAPACITY entries. The Backup thread ships the entries the backup has not
+ * seen yet instead of the whole state. A backup that is further behind than
+ * the ring reaches gets a full state copy instead. A listener, e.g. the
+ * MetadataStore, sees every entry in order as it is appended.
+ * @author Mesut Erhan Unal and Erhu He
+ */
+public class StateLog {
+    // Number of entries kept for a backup that falls behind
+    static final int CAPACITY = Integer.getInteger("dfs.backup.logSize", 100000);
+
+    private StateEntry [] ring;
+    private long lastSeq;
+    private int count;
+    private Consumer<StateEntry> listener;
+
+    /**
+     * Default constructor
+     */
+    public StateLog() {
+        ring = new StateEntry[CAPACITY];
+        // Start from the clock so a restarted primary never reuses an old sequence number
+        lastSeq = System.currentTimeMillis() * 1000;
+        count = 0;
+    }
+
+    /**
+     * Appends a change. Callers apply the change and append it under the
+     * lock of this object, so entries are in the order the changes happened.
+     * @param _op Type of the change
+     * @param _args Arguments of the change
+     * @return Appended entry
+     */
+    public synchronized StateEntry append(String _op, Object... _args) {
+        StateEntry e = new StateEntry(++lastSeq, _op, _args);
+        ring[(int) (lastSeq % CAPACITY)] = e;
+        if (count < CAPACITY) count++;
+        if (listener != null) listener.accept(e);
+        return e;
+    }
+
+    /**
+     * Sets the listener of appended entries
+     * @param _listener Called with each entry under the lock of this object
+     */
+    public synchronized void setListener(Consumer<StateEntry> _listener) {
+        listener = _listener;
+    }
+
+    /**
+     * Last sequence number getter
+     * @return Sequence number of the latest change
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Returns the changes after a sequence number
+     * @param _seq Sequence number of the last change the caller has
+     * @param _max Maximum number of changes to return
+     * @return Changes in order, or null if they are not kept anymore
+     */
+    public synchronized ArrayList<StateEntry> since(long _seq, int _max) {
+        if (_seq < lastSeq - count || _seq > lastSeq) return null;
+
+        ArrayList<StateEntry> result = new ArrayList<StateEntry>();
+        for (long s = _seq + 1; s <= lastSeq && result.size() < _max; s++)
+            result.add(ring[(int) (s % CAPACITY)]);
+        return result;
+    }
+}
@@ -1,17 +1,55 @@
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
 
 /**
- * StorageNode class listens a specific port and creates a
- * StorageNodeThread for each incoming connection.
+ * StorageNode class listens a specific port and hands each request
+ * coming over its connections to a bounded pool of StorageNodeThread workers.
+ * Transfers and the other requests have pools of their own, and HEARTBEAT
+ * is answered without queueing.
  * @author Mesut Erhan Unal and Erhu He
  */
-public class StorageNode extends Server {
+public class StorageNode extends Server implements RequestHandler {
+    // Worker pool size, accept queue depth and per-request-type limits.
+    // Can be overridden with -Ddfs.node.workers=N etc.
+    static final int WORKERS = Integer.getInteger("dfs.node.workers", 32);
+    static final int QUEUE_DEPTH = Integer.getInteger("dfs.node.queue", 256);
+    static final int TRANSFER_LIMIT = Integer.getInteger("dfs.node.transfers", WORKERS / 4);
+    // Threads and queue depth of the pool that serves file lists and anti-entropy requests
+    static final int CONTROL_WORKERS = Integer.getInteger("dfs.node.controlWorkers", 4);
+    static final int CONTROL_QUEUE_DEPTH = Integer.getInteger("dfs.node.controlQueue", 64);
+    // Time in ms the part of an interrupted upload is kept for the client to resume it
+    static final long PARTIAL_TTL = Long.getLong("dfs.node.partialTtl", 24 * 60 * 60 * 1000L);
+
     private Address [] dirServers;
     private AtomicInteger dirServerIndex;
     private boolean test;
+    private ThreadPoolExecutor workers;
+    // Serves the requests that do not move file contents, so they never wait behind transfers
+    private ThreadPoolExecutor control;
+    private HashMap<String, Semaphore> limits;
+    private AntiEntropy antiEntropy;
+    // Names of the files clients are uploading now
+    private Set<String> receiving;
+    // Bulk transfers running now, reported with the load
+    private AtomicInteger transfers;
+    // Transferred bytes and time in ms of the last load report, to compute bytes/s
+    private long lastBytes;
+    private long lastReport;
+    private long bytesPerSecond;
 
     /**
      * Default constructor
@@ -28,6 +66,33 @@ public class StorageNode extends Server {
         dirServers = new Address [] {new Address(_dirIP, _dirPort), new Address(_backupIP, _backupPort)};
         dirServerIndex = new AtomicInteger(0);
         test = _test;
+        workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH), new ThreadPoolExecutor.AbortPolicy());
+        control = new ThreadPoolExecutor(CONTROL_WORKERS, CONTROL_WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(CONTROL_QUEUE_DEPTH), new ThreadPoolExecutor.AbortPolicy());
+
+        // Bulk transfers get their own permits so they cannot occupy every
+        // worker. Fake requests share the permits of the real ones. Requests
+        // without a limit run on the control pool.
+        limits = new HashMap<String, Semaphore>();
+        Semaphore upload = new Semaphore(Integer.getInteger("dfs.node.limit.UPLOAD", TRANSFER_LIMIT));
+        Semaphore newFile = new Semaphore(Integer.getInteger("dfs.node.limit.NEWFILE", TRANSFER_LIMIT));
+        Semaphore download = new Semaphore(Integer.getInteger("dfs.node.limit.DOWNLOAD", TRANSFER_LIMIT));
+        limits.put("UPLOAD", upload);
+        limits.put("NEWFILE", newFile);
+        limits.put("NEWFILE_FAKE", newFile);
+        limits.put("DOWNLOAD", download);
+        limits.put("DOWNLOAD_FAKE", download);
+        limits.put("REPLICATE", download);
+        limits.put("FETCH", download);
+        limits.put("PULL", upload);
+
+        antiEntropy = new AntiEntropy(this);
+        receiving = ConcurrentHashMap.newKeySet();
+        transfers = new AtomicInteger(0);
+        lastBytes = 0;
+        lastReport = System.currentTimeMillis();
+        bytesPerSecond = 0;
     }
 
     @Override
@@ -43,48 +108,181 @@ public class StorageNode extends Server {
             File dir = new File("./" + serverID);
             if (!dir.isDirectory()) dir.mkdir();
 
+            // Files kept from an earlier run are served again and reported to the DirectoryServer
+            loadFiles(dir);
+
             // Register with the DirectoryServer
             register();
 
-            // Create a ServerSocket and start listening the port
-            final ServerSocket serverSock = new ServerSocket(port);
-            System.out.println(String.format("StorageNode is running on %s:%d", Utils.getIP(), port));
+            // Repair missed replicas in the background
+            if (!test) antiEntropy.start();
 
-            Socket sock = null;
-            StorageNodeThread t = null;
+            // Create a ServerSocketChannel and start listening the port.
+            // Sockets accepted through a channel can serve DOWNLOAD with transferTo.
+            final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println(String.format("StorageNode is running on %s:%d", Utils.getIP(), port));
 
             while (true) {
-                sock = serverSock.accept();
-                t = new StorageNodeThread(sock, this);
-                t.start();
+                // Each connection is long-lived and carries many requests
+                new MuxConnection(serverChannel.accept().socket(), this);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void handle(Exchange _ex, Message _request) {
+        StorageNodeThread t = new StorageNodeThread(_ex, _request, this);
+
+        // Liveness checks are answered on the connection's reader right away.
+        // Queueing them would make a busy node look dead.
+        if (_request.getMessage().equals("HEARTBEAT")) {
+            t.run();
+            return;
+        }
+
+        try {
+            if (limits.containsKey(_request.getMessage())) workers.execute(t);
+            else control.execute(t);
+        }
+        // Every worker is busy and the queue is full. Tell the client
+        // to come back later instead of piling up more work.
+        catch (RejectedExecutionException e) {
+            try {
+                Message resp = new Message("FAIL");
+                resp.addContent("StorageNode is busy, try again later.");
+                _ex.send(resp);
+            } catch (IOException ioe) {
+                // Client is gone already, nothing to do.
+            }
+            _ex.close();
+        }
+    }
+
+    @Override
+    public void addFile(FileMeta _meta) {
+        super.addFile(_meta);
+        // Also called when an existing file is replaced
+        antiEntropy.fileChanged(_meta.getName());
+    }
+
+    @Override
+    public void removeFile(String _file) {
+        super.removeFile(_file);
+        antiEntropy.fileChanged(_file);
+    }
+
+    /**
+     * Anti-entropy getter
+     * @return AntiEntropy object of this node
+     */
+    public AntiEntropy getAntiEntropy() {
+        return antiEntropy;
+    }
+
+    /**
+     * Returns the concurrency limit of a request type
+     * @param _type Request type
+     * @return Semaphore guarding the request type, null if it is not limited
+     */
+    public Semaphore getLimit(String _type) {
+        return limits.get(_type);
+    }
+
+    /**
+     * Takes a permit of a request type's limit and counts the transfer in
+     * @param _limit Semaphore guarding the request type
+     * @return true if a permit was free
+     */
+    public boolean acquire(Semaphore _limit) {
+        if (!_limit.tryAcquire()) return false;
+        transfers.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives back a permit taken with acquire()
+     * @param _limit Semaphore guarding the request type
+     */
+    public void release(Semaphore _limit) {
+        transfers.decrementAndGet();
+        _limit.release();
+    }
+
+    /**
+     * Fills a HEARTBEAT response with the load of this node: bulk transfers
+     * running, requests waiting for a worker, bytes per second sent and
+     * received since the last report and free disk space
+     * @param _m Message to add the load into
+     */
+    public void addLoadTo(Message _m) {
+        _m.addContent(transfers.get());
+        _m.addContent(workers.getQueue().size());
+        _m.addContent(getBytesPerSecond());
+        _m.addContent(new File("./" + serverID).getUsableSpace());
+    }
+
+    /**
+     * Returns the transfer rate, measured over at least a second
+     * so frequent heartbeats do not make it jump around
+     * @return Bytes per second
+     */
+    private synchronized long getBytesPerSecond() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= 1000) {
+            long bytes = FileTransfer.getTransferred();
+            bytesPerSecond = (bytes - lastBytes) * 1000 / (now - lastReport);
+            lastBytes = bytes;
+            lastReport = now;
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the address other processes reach this node at
+     * @return Address as "ip:port"
+     */
+    public String getAddress() {
+        return String.format("%s:%d", Utils.getIP(), port);
+    }
+
+    /**
+     * Adds the files found in this node's directory to the file map.
+     * Part files of copies that did not finish are deleted. Parts of
+     * client uploads are kept for PARTIAL_TTL ms, so they can be resumed.
+     * @param _dir Directory of this node
+     */
+    private void loadFiles(File _dir) {
+        File [] files = _dir.listFiles();
+        if (files == null) return;
+
+        for (File f : files) {
+            if (!f.isFile()) continue;
+            if (f.getName().startsWith(".upload") && f.getName().endsWith(".part")) f.delete();
+            else if (f.getName().startsWith(".resume-") && f.getName().endsWith(".part")) {
+                if (System.currentTimeMillis() - f.lastModified() > PARTIAL_TTL) f.delete();
+            }
+            // Checksums are not kept on disk, the DirectoryServer tells them on REGISTER
+            else addFile(new FileMeta(f.getName(), f.length()));
+        }
+    }
+
     /**
      * Registers to the DirectoryServer
      */
     public void register() {
         try {
-            // Open socket and streams to DirectoryServer
-            Socket sock = new Socket(dirServers[dirServerIndex.get()].getIP(), dirServers[dirServerIndex.get()].getPort());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create message and send
             Message req = new Message("REGISTER");
-            req.addContent(String.format("%s:%d", Utils.getIP(), port));
-            oos.writeObject(req);
+            req.addContent(getAddress());
+            req.addContent(getFileList());
 
-            // Get response. Body does not matter.
-            Message resp = (Message) ois.readObject();
-
-            // Close streams and socket.
-            oos.close();
-            ois.close();
-            sock.close();
+            // Response carries the FileMeta objects of the held files, with their checksums
+            Message resp = ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+            if (resp.getMessage().equals("SUCCESS") && !resp.getContent().isEmpty())
+                learnChecksums((ArrayList<FileMeta>) resp.getContent().get(0));
         }
         // DirectoryServer is down. Switch to the backup.
         catch (Exception e) {
@@ -93,6 +291,45 @@ public class StorageNode extends Server {
         }
     }
 
+    /**
+     * Takes the checksums of files found on disk from the DirectoryServer's
+     * FileMeta objects, so they are checked again when served or copied.
+     * The files are read and checked against them in the background.
+     * @param _files FileMeta objects the DirectoryServer knows
+     */
+    private void learnChecksums(ArrayList<FileMeta> _files) {
+        ArrayList<FileMeta> adopted = new ArrayList<FileMeta>();
+        for (FileMeta fm : _files) {
+            FileMeta mine = getFileMeta(fm.getName());
+            if (mine != null && !mine.hasChecksum() && mine.getSize() == fm.getSize()) {
+                replaceFileMeta(fm);
+                adopted.add(fm);
+            }
+        }
+        if (!adopted.isEmpty()) verifyLater(adopted);
+    }
+
+    /**
+     * Checks files against the checksums adopted from the DirectoryServer on
+     * a thread of its own. Files that do not match are dropped and reported,
+     * so they are copied here again from another node.
+     * @param _files FileMeta objects with the adopted checksums
+     */
+    private void verifyLater(ArrayList<FileMeta> _files) {
+        Thread t = new Thread(() -> {
+            ArrayList<FileMeta> damaged = new ArrayList<FileMeta>();
+            for (FileMeta fm : _files) {
+                // Skip files replaced or removed in the meantime
+                if (getFileMeta(fm.getName()) == fm && !checkFile(fm) && getFileMeta(fm.getName()) == fm)
+                    damaged.add(fm);
+            }
+            if (!damaged.isEmpty()) dropDamaged(damaged);
+            System.out.println(String.format("Checked %d files against their checksums, %d did not match.", _files.size(), damaged.size()));
+        }, "checksum-verify");
+        t.setDaemon(true);
+        t.start();
+    }
+
     /**
      * Switches DirectoryServer to use from primary to backup.
      * Kills the store node if both DirectoryServers are down.
@@ -102,40 +339,241 @@ public class StorageNode extends Server {
     }
 
     /**
-     * Sends new file to the DirectoryServer
+     * Tells the DirectoryServer about a new file stored on this node.
+     * The DirectoryServer copies the content from this node to the others.
      * @param _fm FileMeta object of the new file
-     * @param _content Content of the file
      * @return Response from the DirectoryServer
      */
-    public Message newFileToDirectory(FileMeta _fm, byte [] _content) {
+    public Message newFileToDirectory(FileMeta _fm) {
         try {
-            // Open socket and streams
-            Socket sock = new Socket(dirServers[dirServerIndex.get()].getIP(), dirServers[dirServerIndex.get()].getPort());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-            // Create request, add FileMeta and content then send
+            // Create request, add this node's address and FileMeta then send
             Message req = new Message("NEWFILE");
-            req.addContent(String.format("%s:%d", Utils.getIP(), port));
+            req.addContent(getAddress());
             req.addContent(_fm);
-            req.addContent(_content);
-            oos.writeObject(req);
 
             // Get response
-            Message resp = (Message) ois.readObject();
-
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
+            Message resp = ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
             // Return response
             return resp;
         }
         // DirectoryServer is down. Try switching.
         catch (Exception e) {
             switchServer();
-            return newFileToDirectory(_fm, _content);
+            return newFileToDirectory(_fm);
         }
     }
-}
 
+    /**
+     * Asks the DirectoryServer for the alive StorageNodes
+     * @return SUCCESS with the nodes and the replication factor
+     * @throws IOException if neither DirectoryServer can be reached
+     */
+    public Message getMembers() throws IOException {
+        Message req = new Message("NODES");
+        try {
+            return ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+        }
+        // DirectoryServer is down. Try the backup once.
+        catch (IOException e) {
+            if (!dirServerIndex.compareAndSet(0, 1)) throw e;
+            return ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+        }
+    }
+
+    /**
+     * Tells the DirectoryServer that this node holds some more files,
+     * e.g. ones repaired by anti-entropy
+     * @param _files FileMeta objects of the files
+     */
+    public void holdingToDirectory(ArrayList<FileMeta> _files) {
+        try {
+            Message req = new Message("HOLDING");
+            req.addContent(getAddress());
+            req.addContent(_files);
+            ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+        }
+        // DirectoryServer is down. Try switching.
+        catch (Exception e) {
+            switchServer();
+            holdingToDirectory(_files);
+        }
+    }
+
+    /**
+     * Asks the DirectoryServer for a file's FileMeta, which carries the checksum the file was uploaded with
+     * @param _file File name
+     * @return FileMeta object, null if the file is not in the system
+     * @throws IOException if neither DirectoryServer can be reached
+     */
+    public FileMeta fileInfoFromDirectory(String _file) throws IOException {
+        Message req = new Message("FILEINFO");
+        req.addContent(_file);
+        Message resp;
+        try {
+            resp = ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+        }
+        // DirectoryServer is down. Try the backup once.
+        catch (IOException e) {
+            if (!dirServerIndex.compareAndSet(0, 1)) throw e;
+            resp = ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+        }
+        return resp.getMessage().equals("SUCCESS") ? (FileMeta) resp.getContent().get(0) : null;
+    }
+
+    /**
+     * Reads a file of this node and checks it against a size and checksum
+     * @param _fm FileMeta object with the size and checksum the content must have
+     * @return true if the file matches, false if it does not or cannot be read
+     */
+    public boolean checkFile(FileMeta _fm) {
+        File f = getFile(_fm.getName());
+        if (!f.isFile() || f.length() != _fm.getSize()) return false;
+        try {
+            FileInputStream fis = new FileInputStream(f);
+            try {
+                Checksum sum = FileTransfer.newChecksum();
+                FileTransfer.update(sum, fis, _fm.getSize());
+                return FileTransfer.matches(_fm, sum);
+            } finally {
+                fis.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes copies that do not match their checksum and reports them to
+     * the DirectoryServer, which copies them here again from another node
+     * @param _files FileMeta objects of the files
+     */
+    public void dropDamaged(ArrayList<FileMeta> _files) {
+        for (FileMeta fm : _files) {
+            removeFile(fm.getName());
+            getFile(fm.getName()).delete();
+            System.err.println(String.format("Dropped %s, it does not match its checksum.", fm.getName()));
+        }
+        damagedToDirectory(_files);
+    }
+
+    /**
+     * Tells the DirectoryServer that this node dropped some damaged files
+     * @param _files FileMeta objects of the files
+     */
+    private void damagedToDirectory(ArrayList<FileMeta> _files) {
+        try {
+            Message req = new Message("DAMAGED");
+            req.addContent(getAddress());
+            req.addContent(_files);
+            ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
+        }
+        // DirectoryServer is down. Try switching.
+        catch (Exception e) {
+            switchServer();
+            damagedToDirectory(_files);
+        }
+    }
+
+    /**
+     * Fetches a batch of files from a peer with a single FETCH request. Each
+     * file is checked against the checksum of its FileMeta, or the one the
+     * peer sends if that has none. A file that does not match is left out.
+     * @param _peer Address of the node that holds the files
+     * @param _files FileMeta objects of the files
+     * @return Names of the files this node got
+     */
+    public ArrayList<String> pull(String _peer, ArrayList<FileMeta> _files) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (FileMeta fm : _files)
+            names.add(fm.getName());
+        Message req = new Message("FETCH");
+        req.addContent(names);
+        ArrayList<String> got = new ArrayList<String>();
+        try {
+            Exchange src = ConnectionPool.getInstance().open(Address.parse(_peer), req);
+            try {
+                // Peer answers each file in order: a head and the chunks, or a FAIL
+                for (int i = 0; i < _files.size(); i++) {
+                    Message head = src.receive();
+                    if (!head.getMessage().equals("SUCCESS")) continue;
+
+                    FileMeta fm = (FileMeta) head.getContent().get(0);
+                    if (_files.get(i).hasChecksum()) fm = _files.get(i);
+                    File part = createPartFile();
+                    Checksum sum = FileTransfer.newChecksum();
+                    try {
+                        FileOutputStream fos = new FileOutputStream(part);
+                        try {
+                            FileTransfer.receive(src, fos, fm.getSize(), sum);
+                        } finally {
+                            fos.close();
+                        }
+                    } catch (IOException e) {
+                        part.delete();
+                        throw e;
+                    }
+                    // Peer's copy is damaged, the file is fetched again from another node
+                    if (!FileTransfer.matches(fm, sum)) {
+                        System.err.println(String.format("%s from %s does not match its checksum.", fm.getName(), _peer));
+                        part.delete();
+                        continue;
+                    }
+                    Files.move(part.toPath(), getFile(fm.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    addFile(fm);
+                    got.add(fm.getName());
+                }
+            } finally {
+                src.close();
+            }
+        } catch (IOException e) {
+            // Peer failed, report the files that made it
+        }
+        return got;
+    }
+
+    /**
+     * Returns the path of a file in this node's directory
+     * @param _name File name
+     * @return File object
+     */
+    public File getFile(String _name) {
+        return new File(String.format("./%s/%s", serverID, _name));
+    }
+
+    /**
+     * Returns the part file a client upload is received into. It is kept
+     * when the upload breaks, and its length tells where to resume. The
+     * size is part of the name, so a different file of the same name starts over.
+     * @param _fm FileMeta object of the file
+     * @return File object
+     */
+    public File getPartialFile(FileMeta _fm) {
+        return new File(String.format("./%s/.resume-%d-%s.part", serverID, _fm.getSize(), _fm.getName()));
+    }
+
+    /**
+     * Marks a file as being uploaded by a client, so two uploads never write the same part file
+     * @param _name File name
+     * @return false if the file is being uploaded already
+     */
+    public boolean startReceiving(String _name) {
+        return receiving.add(_name);
+    }
+
+    /**
+     * Marks an upload as over, finished or not
+     * @param _name File name
+     */
+    public void endReceiving(String _name) {
+        receiving.remove(_name);
+    }
+
+    /**
+     * Creates an empty part file in this node's directory to receive a file into
+     * @return Part file
+     * @throws IOException if the file cannot be created
+     */
+    public File createPartFile() throws IOException {
+        return File.createTempFile(".upload", ".part", new File("./" + serverID));
+    }
+}
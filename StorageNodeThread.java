@@ -1,111 +1,264 @@
 import java.io.*;
-import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Checksum;
 
 /**
- * StorageNodeThread class to respond each incoming connection
- * to the StorageNode.
+ * StorageNodeThread class to respond each incoming request
+ * to the StorageNode. It runs on the StorageNode's worker pool.
  * @author Mesut Erhan Unal and Erhu He
  */
-public class StorageNodeThread extends Thread {
-    private Socket sock;
+public class StorageNodeThread implements Runnable {
+    private Exchange ex;
+    private Message request;
     private StorageNode server;
     private Random rand;
 
     /**
      * Default constructor
-     * @param _sock Socket object
+     * @param _ex Exchange to reply on
+     * @param _request Request message
      * @param _server StorageNode object that spawned this thread
      */
-    public StorageNodeThread(Socket _sock, StorageNode _server) {
-        sock = _sock;
+    public StorageNodeThread(Exchange _ex, Message _request, StorageNode _server) {
+        ex = _ex;
+        request = _request;
         server = _server;
         rand = new Random();
     }
 
     @Override
-    public void start() {
+    public void run() {
+        Semaphore limit = null;
         try {
-            // Open streams
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-
-            // Read request
-            Message request = (Message) ois.readObject();
             Message response = null;
 
-            // DirectoryServer wants to give a file
-            if (request.getMessage().equals("UPLOAD")) {
-                FileMeta fm = (FileMeta) request.getContent().get(0);
-                byte [] content = (byte []) request.getContent().get(1);
-                FileOutputStream fos = new FileOutputStream(String.format("./%s/%s", server.getServerID(), fm.getName()));
-                fos.write(content);
-                fos.close();
-                server.addFile(fm);
-                response = new Message("SUCCESS");
+            // Too many requests of this type are running already
+            limit = server.getLimit(request.getMessage());
+            if (limit != null && !server.acquire(limit)) {
+                limit = null;
+                response = new Message("FAIL");
+                response.addContent("StorageNode is busy, try again later.");
             }
 
-            // Client uploads a new file
-            else if (request.getMessage().equals("NEWFILE")) {
+            // DirectoryServer or the previous node of a replication chain wants to give a file
+            else if (request.getMessage().equals("UPLOAD")) {
                 FileMeta fm = (FileMeta) request.getContent().get(0);
-                byte [] content = (byte []) request.getContent().get(1);
-                Message resp = server.newFileToDirectory(fm, content);
+                ArrayList<String> chain = request.getContent().size() > 1 ? (ArrayList<String>) request.getContent().get(1) : null;
+                ArrayList<String> stored = new ArrayList<String>();
+                ArrayList<String> unreachable = new ArrayList<String>();
+
+                // Pass the file on to the rest of the chain while it arrives
+                Exchange next = chain == null ? null : FileTransfer.openChain(fm, chain, unreachable);
+                try {
+                    File part = server.createPartFile();
+                    Checksum sum = FileTransfer.newChecksum();
+                    boolean forwarded = receiveFile(fm, part, next, sum);
+
+                    // Bytes were damaged on the way here. The rest of the chain got
+                    // the same bytes, the sender tries them all again.
+                    if (!FileTransfer.matches(fm, sum)) {
+                        part.delete();
+                        response = new Message("FAIL");
+                        response.addContent("File does not match its checksum.");
+                    } else {
+                        Files.move(part.toPath(), server.getFile(fm.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        server.addFile(fm);
+                        stored.add(server.getAddress());
+                        if (forwarded) FileTransfer.mergeChainReport(next.receive(), stored, unreachable);
+                    }
+                } finally {
+                    if (next != null) next.close();
+                }
 
-                if (resp.getMessage().equals("SUCCESS")) {
+                if (response == null) {
                     response = new Message("SUCCESS");
-                    FileOutputStream fos = new FileOutputStream(String.format("./%s/%s", server.getServerID(), fm.getName()));
-                    fos.write(content);
-                    fos.close();
-                    server.addFile(fm);
+                    response.addContent(stored);
+                    response.addContent(unreachable);
+                }
+            }
+
+            // DirectoryServer wants this node to copy a file along a chain of nodes
+            else if (request.getMessage().equals("REPLICATE")) {
+                FileMeta fm = (FileMeta) request.getContent().get(0);
+                ArrayList<String> chain = (ArrayList<String>) request.getContent().get(1);
+                ArrayList<String> stored = new ArrayList<String>();
+                ArrayList<String> unreachable = new ArrayList<String>();
+                File f = server.getFile(fm.getName());
+
+                if (!server.fileExists(fm.getName()) || !f.isFile()) {
+                    response = new Message("FAIL");
+                    response.addContent("File not found in the storage node.");
                 } else {
+                    Exchange next = FileTransfer.openChain(fm, chain, unreachable);
+                    if (next != null) {
+                        try {
+                            FileTransfer.sendFile(next, f, fm.getSize());
+                            FileTransfer.mergeChainReport(next.receive(), stored, unreachable);
+                        } catch (IOException e) {
+                            // First node of the chain broke, the DirectoryServer will try again
+                        } finally {
+                            next.close();
+                        }
+                    }
+                    response = new Message("SUCCESS");
+                    response.addContent(stored);
+                    response.addContent(unreachable);
+                }
+            }
+
+            // Client uploads a new file, or resumes an upload that broke
+            else if (request.getMessage().equals("NEWFILE")) {
+                FileMeta fm = (FileMeta) request.getContent().get(0);
+
+                if (server.fileExists(fm.getName())) {
                     response = new Message("FAIL");
-                    response.addContent(resp.getContent().get(0));
+                    response.addContent("This file already exists in the system.");
+                } else if (!server.startReceiving(fm.getName())) {
+                    response = new Message("FAIL");
+                    response.addContent("This file is being uploaded.");
+                } else {
+                    try {
+                        Checksum sum = FileTransfer.newChecksum();
+                        File part = receivePartialFile(fm, sum);
+
+                        // Client sends the checksum of what it read from its disk after the last chunk
+                        Message trailer = ex.receive();
+                        if (!trailer.getMessage().equals("CHECKSUM")) throw new IOException("Upload did not end with a checksum");
+                        if ((Long) trailer.getContent().get(0) != sum.getValue()) {
+                            part.delete();
+                            response = new Message("FAIL");
+                            response.addContent("File was damaged during the upload, try again.");
+                        } else {
+                            // Store the file before telling the DirectoryServer,
+                            // other nodes will copy it from here.
+                            FileMeta checked = new FileMeta(fm.getName(), fm.getSize(), sum.getValue());
+                            File file = server.getFile(fm.getName());
+                            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                            server.addFile(checked);
+
+                            Message resp = server.newFileToDirectory(checked);
+                            if (resp.getMessage().equals("SUCCESS")) {
+                                response = new Message("SUCCESS");
+                            } else {
+                                server.removeFile(fm.getName());
+                                file.delete();
+                                response = new Message("FAIL");
+                                response.addContent(resp.getContent().get(0));
+                            }
+                        }
+                    } finally {
+                        server.endReceiving(fm.getName());
+                    }
                 }
             }
 
-            // Client wants to download a file
+            // DirectoryServer wants this node to fetch a batch of files from a peer
+            else if (request.getMessage().equals("PULL")) {
+                String peer = (String) request.getContent().get(0);
+                ArrayList<FileMeta> files = (ArrayList<FileMeta>) request.getContent().get(1);
+                ArrayList<String> got = server.pull(peer, files);
+
+                response = new Message("SUCCESS");
+                response.addContent(got);
+            }
+
+            // Another node fetches a batch of files
+            else if (request.getMessage().equals("FETCH")) {
+                for (String file : (ArrayList<String>) request.getContent().get(0)) {
+                    File f = server.getFile(file);
+                    if (server.fileExists(file) && f.isFile()) {
+                        FileMeta fm = server.getFileMeta(file);
+                        Message head = new Message("SUCCESS");
+                        head.addContent(fm);
+                        ex.send(head);
+                        FileTransfer.sendFile(ex, f, fm.getSize());
+                    } else {
+                        Message fail = new Message("FAIL");
+                        fail.addContent(file);
+                        ex.send(fail);
+                    }
+                }
+            }
+
+            // Client wants to download a file, or a range of it given by an offset and a length
             else if (request.getMessage().equals("DOWNLOAD")) {
                 String file = (String) request.getContent().get(0);
-                if (server.fileExists(file)) {
-                    FileMeta fm = server.getFileMeta(file);
-                    byte [] content = new byte [(int) fm.getSize()];
-
-                    FileInputStream fis = new FileInputStream(String.format("./%s/%s", server.getServerID(), fm.getName()));
-                    fis.read(content);
-                    fis.close();
+                File f = server.getFile(file);
+                FileMeta fm = server.getFileMeta(file);
+                long offset = request.getContent().size() > 1 ? (Long) request.getContent().get(1) : 0;
+                long length = request.getContent().size() > 2 ? (Long) request.getContent().get(2) : Long.MAX_VALUE;
 
-                    response = new Message("SUCCESS");
-                    response.addContent(fm);
-                    response.addContent(content);
-                } else {
+                if (fm == null || !f.isFile()) {
                     response = new Message("FAIL");
                     response.addContent("File not found in the storage node.");
+                } else if (offset < 0 || length < 0 || offset > fm.getSize()) {
+                    response = new Message("FAIL");
+                    response.addContent("Range is outside the file.");
+                } else {
+                    // A range that runs past the end is cut at the end
+                    length = Math.min(length, fm.getSize() - offset);
+
+                    // Send FileMeta first, then stream the content in chunks straight from disk
+                    Message head = new Message("SUCCESS");
+                    head.addContent(fm);
+                    ex.send(head);
+                    try {
+                        FileTransfer.sendFile(ex, f, offset, length);
+                    } catch (IOException e) {
+                        // The client took the rest of the range from another node
+                        if (!ex.isCancelled()) throw e;
+                    }
                 }
             }
 
             // Client wants to get file list
             else if (request.getMessage().equals("FILELIST")) {
                 long start = System.currentTimeMillis();
-                response = new Message("SUCCESS");
-                response.addContent(server.getFileList());
+                long since = request.getContent().isEmpty() ? -1 : (Long) request.getContent().get(0);
+                response = server.getFileListResponse(since);
                 long end = System.currentTimeMillis();
                 server.addResponseTime(end - start);
             }
 
+            // One page of the sorted file list
+            else if (request.getMessage().equals("LISTPAGE")) {
+                response = server.getFilePageResponse(request);
+            }
+            // A peer compares its Merkle tree with this node's
+            else if (request.getMessage().equals("MERKLE")) {
+                response = server.getAntiEntropy().respond(request);
+            }
+            // Liveness check, answered with the load of this node
+            else if (request.getMessage().equals("HEARTBEAT")) {
+                response = new Message("SUCCESS");
+                server.addLoadTo(response);
+            }
+
             // Fake file upload for testing
             else if (request.getMessage().equals("NEWFILE_FAKE")) {
-                // do nothing.
+                // Take the content but do nothing with it.
+                FileMeta fm = (FileMeta) request.getContent().get(0);
+                ex.send(new Message("READY"));
+                FileTransfer.receive(ex, OutputStream.nullOutputStream(), fm.getSize());
                 response = new Message("SUCCESS");
             }
 
             // Fake file download for testing
             else if (request.getMessage().equals("DOWNLOAD_FAKE")) {
                 int size = rand.nextInt(100000) + 100000;
-                byte [] content = new byte[size];
-                rand.nextBytes(content);
-                response = new Message("SUCCESS");
-                response.addContent(new FileMeta("fake_file.txt", size));
-                response.addContent(content);
+                Message head = new Message("SUCCESS");
+                head.addContent(new FileMeta("fake_file.txt", size));
+                ex.send(head);
+
+                byte [] content = new byte[Math.min(size, FileTransfer.CHUNK_SIZE)];
+                for (int sent = 0; sent < size; sent += content.length) {
+                    rand.nextBytes(content);
+                    FileTransfer.sendChunk(ex, content, Math.min(content.length, size - sent));
+                }
             }
 
             // Bad request
@@ -114,15 +267,76 @@ public class StorageNodeThread extends Thread {
                 response.addContent("Bad request");
             }
 
-            // Write response to output stream
-            oos.writeObject(response);
-
-            // Close streams and sockets
-            ois.close();
-            oos.close();
-            sock.close();
+            // Write response to the connection. Streaming requests reply on their own.
+            if (response != null) ex.send(response);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (limit != null) server.release(limit);
+            ex.close();
+        }
+    }
+
+    /**
+     * Receives a client's upload into its part file. The READY message
+     * tells the client how many bytes the part file has from an earlier
+     * try, and only the rest is sent. Those bytes are read back into the
+     * checksum, the rest is added as it arrives.
+     * @param _fm FileMeta object of the file
+     * @param _sum Checksum to add the whole content to
+     * @return Part file that holds the content
+     * @throws IOException if the transfer fails. The part file is kept to resume from.
+     */
+    private File receivePartialFile(FileMeta _fm, Checksum _sum) throws IOException {
+        File part = server.getPartialFile(_fm);
+        long offset = part.length();
+        if (offset > _fm.getSize()) {
+            part.delete();
+            offset = 0;
+        }
+        if (offset > 0) {
+            FileInputStream fis = new FileInputStream(part);
+            try {
+                FileTransfer.update(_sum, fis, offset);
+            } finally {
+                fis.close();
+            }
+        }
+
+        Message ready = new Message("READY");
+        ready.addContent(offset);
+        ex.send(ready);
+        FileOutputStream fos = new FileOutputStream(part, true);
+        try {
+            FileTransfer.receive(ex, fos, _fm.getSize() - offset, _sum);
+        } finally {
+            fos.close();
+        }
+        return part;
+    }
+
+    /**
+     * Tells the sender to go ahead and receives the content of a file into
+     * a part file, forwarding each chunk to the next node of a chain
+     * @param _fm FileMeta object of the file
+     * @param _part Part file to write into
+     * @param _next Exchange of the next node, or null
+     * @param _sum Checksum to add the content to
+     * @return true if the whole file was forwarded to the next node
+     * @throws IOException if the transfer fails. The part file is deleted.
+     */
+    private boolean receiveFile(FileMeta _fm, File _part, Exchange _next, Checksum _sum) throws IOException {
+        try {
+            ex.send(new Message("READY"));
+            FileOutputStream fos = new FileOutputStream(_part);
+            try {
+                return FileTransfer.relay(ex, fos, _fm.getSize(), _next, _sum);
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            _part.delete();
+            throw e;
         }
     }
 }
@@ -1,117 +1,191 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 /**
- * Sync class gets a file from a StorageNode
- * and upload it to another StorageNode.
+ * Sync class copies a batch of files from StorageNodes
+ * onto another StorageNode.
  * We are using it to get all files from other nodes
  * and upload them to the newly connected node.
+ * By default the new node is told which peer to PULL the batch from,
+ * and the files go from the peer to the new node over one connection.
+ * Syncs run on the ReplicationScheduler's executor, one attempt at a time:
+ * the scheduler gives an attempt a thread once the new node has room, and
+ * files that did not make it are tried again by the scheduler's timer.
  * @author Mesut Erhan Unal and Erhu He
  */
-public class Sync extends Thread {
+public class Sync implements Runnable {
     private JobThread jt;
     private DirectoryServer ds;
     private String node;
-    private FileMeta fm;
+    private String peer;
+    private ArrayList<FileMeta> files;
+    private Consumer<HashMap<String, Boolean>> done;
+    private HashMap<String, Boolean> report;
+    // The new node, as the scheduler takes a slot on it for each attempt
+    private List<String> slot;
+    // Files the next attempt copies, and the attempts made so far
+    private ArrayList<FileMeta> pending;
+    private int attempt;
 
     /**
      * Default constructor
      * @param _jt JobThread object
      * @param _ds DirectoryServer object
      * @param _node Newly connected node's address
-     * @param _fm FileMeta object of the file
+     * @param _peer Address of a node that holds every file of the batch
+     * @param _files FileMeta objects of the files
+     * @param _done Called with whether the node got each file, by file name
      */
-    public Sync (JobThread _jt, DirectoryServer _ds, String _node, FileMeta _fm) {
+    public Sync (JobThread _jt, DirectoryServer _ds, String _node, String _peer, ArrayList<FileMeta> _files,
+                 Consumer<HashMap<String, Boolean>> _done) {
         jt = _jt;
         ds = _ds;
         node = _node;
-        fm = _fm;
+        peer = _peer;
+        files = _files;
+        done = _done;
+        report = new HashMap<String, Boolean>();
+        for (FileMeta fm : files)
+            report.put(fm.getName(), false);
+        slot = Collections.singletonList(node);
+        pending = files;
+        attempt = 0;
+    }
+
+    /**
+     * Hands the first attempt to the scheduler, paced to the join rate
+     * @param _size Total size of the files
+     */
+    public void start(long _size) {
+        ds.getScheduler().executePaced(_size, slot, this);
     }
 
     @Override
     public void run() {
-        byte [] content;
+        // The scheduler took a slot on the new node for this attempt
+        boolean reachable = false;
+        try {
+            reachable = copy();
+        } catch (RuntimeException e) {
+            System.err.println(String.format("Sync of %s failed: %s", node, e));
+        } finally {
+            ds.getScheduler().releaseNodes(slot);
+        }
 
-        while (true) {
-            String [] source = randomNode().split(":");
-            String [] destination = node.split(":");
+        if (reachable && !pending.isEmpty() && attempt < Uploader.MAX_ATTEMPTS) {
+            // Back off on the scheduler's timer, no thread waits in the meantime
+            ds.getScheduler().executeOnNodesLater(slot, this, Uploader.BACKOFF * attempt);
+            return;
+        }
 
-            try {
-                // Open Socket and stream objects to download the file
-                Socket sock = new Socket(source[0], Integer.parseInt(source[1]));
-                final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-                final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-                // Create request and send
-                Message req = new Message("DOWNLOAD");
-                req.addContent(fm.getName());
-                oos.writeObject(req);
-
-                // Get response
-                Message resp = (Message) ois.readObject();
-                // Close streams and socket
-                oos.close();
-                ois.close();
-                sock.close();
-
-                // If it is successful, we got the file, read it into content array
-                if (resp.getMessage().equals("SUCCESS")) {
-                    content = (byte []) resp.getContent().get(1);
-                } else {
-                    // Node does not have this file. Strange but can be?
-                    continue;
-                }
+        // Newly connected node could not take the files. Mark it as dead.
+        if (!pending.isEmpty()) ds.setNodeUnavailable(node);
+        done.accept(report);
+    }
+
+    /**
+     * Copies the pending files onto the new node once. Files that do not make
+     * it are left pending, to be tried again from other nodes that hold them.
+     * @return false if the new node cannot be reached
+     */
+    private boolean copy() {
+        // Group the files by the node to copy them from. The first time all come from the peer.
+        HashMap<String, ArrayList<FileMeta>> sources = new HashMap<String, ArrayList<FileMeta>>();
+        for (FileMeta fm : pending) {
+            String source = attempt == 0 ? peer : randomNode(fm);
+            // No other node is alive, the file stays pending
+            if (source != null) sources.computeIfAbsent(source, s -> new ArrayList<FileMeta>()).add(fm);
+        }
+        attempt++;
+
+        HashSet<String> got = new HashSet<String>();
+        try {
+            for (String source : sources.keySet())
+                got.addAll(copy(source, sources.get(source)));
+        }
+        // Newly connected node failed
+        catch (IOException e) {
+            return false;
+        }
+
+        ArrayList<FileMeta> retry = new ArrayList<FileMeta>();
+        for (FileMeta fm : pending) {
+            if (got.contains(fm.getName())) {
+                ds.addHolder(fm.getName(), node);
+                report.put(fm.getName(), true);
+            } else {
+                retry.add(fm);
             }
-            // We could not connect to the StorageNode. Mark it as dead.
-            catch (Exception e) {
-                ds.setNodeUnavailable(String.format("%s:%s", source[0], source[1]));
-                continue;
+        }
+        pending = retry;
+        return true;
+    }
+
+    /**
+     * Copies files from one node onto the new node
+     * @param _source Address of the node that holds the files
+     * @param _files FileMeta objects of the files
+     * @return Names of the files the new node got
+     * @throws IOException if the new node cannot be reached
+     */
+    private ArrayList<String> copy(String _source, ArrayList<FileMeta> _files) throws IOException {
+        ArrayList<String> got = new ArrayList<String>();
+
+        if (ReplicationScheduler.CHAIN) {
+            // Tell the new node to fetch the files from the source directly
+            Message req = new Message("PULL");
+            req.addContent(_source);
+            req.addContent(_files);
+
+            long size = 0;
+            for (FileMeta fm : _files)
+                size += fm.getSize();
+
+            Exchange ex = ConnectionPool.getInstance().open(Address.parse(node), req);
+            try {
+                Message resp = ex.receive(Exchange.TIMEOUT + size / ReplicationScheduler.MIN_RATE);
+                if (resp.getMessage().equals("SUCCESS")) got.addAll((ArrayList<String>) resp.getContent().get(0));
+            } finally {
+                ex.close();
             }
+            return got;
+        }
 
+        // Stream each file from the source onto the new node through this process
+        for (FileMeta fm : _files) {
             try {
-                // Open Socket and streams to upload the file onto new node
-                Socket sock = new Socket(destination[0], Integer.parseInt(destination[1]));
-                final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-                final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-                // Create request and send
-                Message req = new Message("UPLOAD");
-                req.addContent(fm);
-                req.addContent(content);
-                oos.writeObject(req);
-
-                // Get response. The body does not matter.
-                Message resp = (Message) ois.readObject();
-
-                // Close streams and socket
-                oos.close();
-                ois.close();
-                sock.close();
+                Message resp = FileTransfer.copy(Address.parse(_source), Address.parse(node), fm);
+                if (resp.getMessage().equals("SUCCESS")) got.add(fm.getName());
             }
-            // Newly connected node is down. Mark it as dead.
-            catch (Exception e) {
-                ds.setNodeUnavailable(String.format("%s:%s", destination[0], destination[1]));
-                return;
+            // Source failed in the middle, the file is tried again from another node
+            catch (IOException e) {
+                continue;
             }
-
-            return;
         }
+        return got;
     }
 
     /**
      * Returns a random StorageNode to download a file.
-     * Uses DirectoryServer.getRandomNode()
-     * @return Address of a StorageNode
+     * Picks one of the nodes that hold the file, or any other
+     * alive node if none is known
+     * @param _fm FileMeta object of the file
+     * @return Address of a StorageNode, null if there is no other alive node
      */
-    public String randomNode() {
-        String randomNode = node;
-        int i = 0;
-        while(randomNode.equals(node)) {
-            randomNode = ds.getRandomNode();
-            if (++i > 10)
-                System.err.println("O-oh. I am the only one here.");
-        }
-        return randomNode;
+    public String randomNode(FileMeta _fm) {
+        ArrayList<String> holders = ds.getHolders(_fm.getName());
+        holders.remove(node);
+        if (!holders.isEmpty()) return holders.get(0);
+
+        ArrayList<String> alive = ds.getAliveNodes();
+        alive.remove(node);
+        if (alive.isEmpty()) return null;
+        return alive.get(ThreadLocalRandom.current().nextInt(alive.size()));
     }
 }
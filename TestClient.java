@@ -1,5 +1,4 @@
 import java.io.*;
-import java.net.Socket;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -7,8 +6,7 @@ public class TestClient extends Thread {
     private Test t;
     private String job;
     private Address [] dirServers;
-    private String storageNodeIP;
-    private int storageNodePort;
+    private Address storageNode;
     private AtomicInteger dirServerIndex;
     private int nodeTried;
     private Random rand;
@@ -18,8 +16,7 @@ public class TestClient extends Thread {
         job = _job;
         dirServers = new Address [] {new Address(Utils.getIP(), 13000), new Address(Utils.getIP(), 13001)};
         rand = new Random();
-        storageNodeIP = Utils.getIP();
-        storageNodePort = 14000 + rand.nextInt(t.NUMBER_OF_STORAGE_NODES);
+        storageNode = new Address(Utils.getIP(), 14000 + rand.nextInt(t.NUMBER_OF_STORAGE_NODES));
         dirServerIndex = new AtomicInteger(0);
         nodeTried = 0;
     }
@@ -48,35 +45,36 @@ public class TestClient extends Thread {
      */
     public void uploadFile() {
         try {
-            // Open socket and streams to send the file to the StorageNode
-            Socket sock = new Socket(storageNodeIP, storageNodePort);
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create a request
             Message req = new Message("NEWFILE_FAKE");
             int size = rand.nextInt(100000) + 100000;
             FileMeta fm = new FileMeta(String.format("fake_file_%d.txt", rand.nextInt(100000)), size);
-            byte [] buff = new byte[size];
-            rand.nextBytes(buff);
+            byte [] buff = new byte[Math.min(size, FileTransfer.CHUNK_SIZE)];
             req.addContent(fm);
-            req.addContent(buff);
+            int chunks = 0;
 
             long start = System.currentTimeMillis();
-            oos.writeObject(req);
-
-            // Get response
-            Message resp = (Message) ois.readObject();
+            Exchange ex = ConnectionPool.getInstance().open(storageNode, req);
+            Message resp;
+
+            try {
+                // Stream random content once the StorageNode is ready
+                resp = ex.receive();
+                if (resp.getMessage().equals("READY")) {
+                    for (int sent = 0; sent < size; sent += buff.length, chunks++) {
+                        rand.nextBytes(buff);
+                        FileTransfer.sendChunk(ex, buff, Math.min(buff.length, size - sent));
+                    }
+                    resp = ex.receive();
+                }
+            } finally {
+                ex.close();
+            }
             long end = System.currentTimeMillis();
 
-            // Close streams and sockets
-            oos.close();
-            ois.close();
-            sock.close();
-
             t.addUploadTime(end - start);
-            t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp));
-            t.increaseMessages(2);
+            t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp) + size);
+            t.increaseMessages(3 + chunks);
         }
         // Probably StorageNode is down, connect another one
         catch (Exception e) {
@@ -93,28 +91,29 @@ public class TestClient extends Thread {
      */
     public void downloadFile() {
         try {
-            // Open socket and streams to download the file from the StorageNode
-            Socket sock = new Socket(storageNodeIP, storageNodePort);
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create and send the request
             Message req = new Message("DOWNLOAD_FAKE");
             long start = System.currentTimeMillis();
-            oos.writeObject(req);
 
-            // Get response
-            Message resp = (Message) ois.readObject();
+            Exchange ex = ConnectionPool.getInstance().open(storageNode, req);
+            Message resp;
+            long size = 0;
+
+            try {
+                // Get response and drain the streamed content
+                resp = ex.receive();
+                if (resp.getMessage().equals("SUCCESS")) {
+                    size = ((FileMeta) resp.getContent().get(0)).getSize();
+                    FileTransfer.receive(ex, OutputStream.nullOutputStream(), size);
+                }
+            } finally {
+                ex.close();
+            }
             long end = System.currentTimeMillis();
 
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
-
             t.addDowloadTimes(end - start);
-            t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp));
-            t.increaseMessages(2);
+            t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp) + size);
+            t.increaseMessages(2 + (int) ((size + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE));
         }
         // DirectoryServer is probably down. Connect to another one.
         catch (Exception e) {
@@ -131,25 +130,14 @@ public class TestClient extends Thread {
      */
     public void getFileListFromServer() {
         try {
-            // Open socket and streams
-            Socket sock = new Socket(dirServers[dirServerIndex.get()].getIP(), dirServers[dirServerIndex.get()].getPort());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create request and send
             Message req = new Message("FILELIST");
             long start = System.currentTimeMillis();
-            oos.writeObject(req);
 
             // Get response
-            Message resp = (Message) ois.readObject();
+            Message resp = ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
             long end = System.currentTimeMillis();
 
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
-
             t.addListDir(end - start);
             t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp));
             t.increaseMessages(2);
@@ -169,24 +157,13 @@ public class TestClient extends Thread {
      */
     public void getFileListFromNode() {
         try {
-            // Open socket and streams
-            Socket sock = new Socket(storageNodeIP, storageNodePort);
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create and send the request
             Message req = new Message("FILELIST");
             long start = System.currentTimeMillis();
-            oos.writeObject(req);
             // Get response
-            Message resp = (Message) ois.readObject();
+            Message resp = ConnectionPool.getInstance().call(storageNode, req);
             long end = System.currentTimeMillis();
 
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
-
             t.addListNode(end - start);
             t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp));
             t.increaseMessages(2);
@@ -206,33 +183,20 @@ public class TestClient extends Thread {
      */
     public void connect() {
         try {
-            // Open socket and streams
-            Socket sock = new Socket(dirServers[dirServerIndex.get()].getIP(), dirServers[dirServerIndex.get()].getPort());
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
             // Create request and send
             Message req = new Message("CONNECT");
-            oos.writeObject(req);
 
             // Get response
-            Message resp = (Message) ois.readObject();
+            Message resp = ConnectionPool.getInstance().call(dirServers[dirServerIndex.get()], req);
             // If successful, get StorageNode info
             if (resp.getMessage().equals("SUCCESS")) {
-                String [] addr = ((String) resp.getContent().get(0)).split(":");
-                storageNodeIP = addr[0];
-                storageNodePort = Integer.parseInt(addr[1]);
+                storageNode = Address.parse((String) resp.getContent().get(0));
             }
             // Print what went wrong
             else {
                 System.out.println(resp.getContent().get(0));
             }
 
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
-
             t.addTotalBytes(Utils.calculateBytes(req) + Utils.calculateBytes(resp));
             t.increaseMessages(2);
         }
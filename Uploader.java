@@ -1,62 +1,159 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.function.Consumer;
 
 /**
- * Uploader class is to upload a file onto a StorageNode.
- * It is used to send a new file to all other StorageNodes
- * in the system.
+ * Uploader class is to upload a file onto StorageNodes.
+ * It is used to copy a new file from the node that received it
+ * to all other StorageNodes in the system. By default it sends the
+ * source a chain of destinations and the nodes pass the file along.
+ * With the fanout topology the file is downloaded from its source once
+ * and each chunk is sent to every destination from here. Uploaders run
+ * on the ReplicationScheduler's executor, one attempt at a time: the
+ * scheduler gives an attempt a thread once its destinations have room,
+ * and busy nodes are tried again by the scheduler's timer after a backoff.
  * @author Mesut Erhan Unal and Erhu He
  */
-public class Uploader extends Thread {
+public class Uploader implements Runnable {
+    // Retry policy for busy StorageNodes
+    static final int MAX_ATTEMPTS = 10;
+    static final long BACKOFF = 200;
+
     private JobThread jt;
     private DirectoryServer ds;
-    private String node;
+    private ArrayList<String> nodes;
+    private String source;
     private FileMeta fm;
-    private byte [] content;
+    private Consumer<HashMap<String, Boolean>> done;
+    private HashMap<String, Boolean> report;
+    // Nodes the next attempt copies onto, and the attempts made so far
+    private ArrayList<String> pending;
+    private int attempt;
 
     /**
      * Default constructor
      * @param _jt JobThread object
      * @param _ds DirectoryServer object
-     * @param _node StorageNode address to upload the file onto
+     * @param _nodes StorageNode addresses to upload the file onto
+     * @param _source StorageNode address that has the file
      * @param _fm FileMeta object of the file
-     * @param _content Content of the file
+     * @param _done Called with the result of each StorageNode when the upload is over
      */
-    public Uploader (JobThread _jt, DirectoryServer _ds, String _node, FileMeta _fm, byte [] _content) {
+    public Uploader (JobThread _jt, DirectoryServer _ds, ArrayList<String> _nodes, String _source, FileMeta _fm,
+                     Consumer<HashMap<String, Boolean>> _done) {
         jt = _jt;
         ds = _ds;
-        node = _node;
+        nodes = new ArrayList<String>(_nodes);
+        source = _source;
         fm = _fm;
-        content = _content;
+        done = _done;
+        report = new HashMap<String, Boolean>();
+        pending = nodes;
+        attempt = 0;
+    }
+
+    /**
+     * Hands the first attempt to the scheduler, which runs it once every destination has room
+     */
+    public void start() {
+        ds.getScheduler().executeOnNodes(pending, this);
     }
 
     @Override
     public void run () {
+        // The scheduler took a slot on each pending node for this attempt
+        ArrayList<String> slots = pending;
+        try {
+            pending = ReplicationScheduler.CHAIN ? chain(slots, report) : fanOut(slots, report);
+            attempt++;
+        } catch (RuntimeException e) {
+            // Give up on the pending nodes rather than leave the job unfinished
+            System.err.println(String.format("Upload of %s failed: %s", fm.getName(), e));
+            attempt = MAX_ATTEMPTS;
+        } finally {
+            ds.getScheduler().releaseNodes(slots);
+        }
+
+        if (!pending.isEmpty() && attempt < MAX_ATTEMPTS) {
+            // Back off on the scheduler's timer, no thread waits in the meantime
+            ds.getScheduler().executeOnNodesLater(pending, this, BACKOFF * attempt);
+            return;
+        }
+
+        for (String node : pending)
+            report.put(node, false);
+        done.accept(report);
+    }
+
+    /**
+     * Sends the source a chain of the nodes and lets them pass the file along
+     * @param _nodes StorageNodes that still need the file
+     * @param _report Result of each StorageNode to fill
+     * @return StorageNodes to try again
+     */
+    private ArrayList<String> chain(ArrayList<String> _nodes, HashMap<String, Boolean> _report) {
+        ArrayList<String> chain = new ArrayList<String>(_nodes);
+        Collections.shuffle(chain);
+        Message resp;
         try {
-            String [] addr = node.split(":");
-            // Open socket and streams to upload the file onto a StorageNode
-            Socket sock = new Socket(addr[0], Integer.parseInt(addr[1]));
-            final ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-            final ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-
-            // Create request and send it
-            Message req = new Message("UPLOAD");
-            req.addContent(fm);
-            req.addContent(content);
-            oos.writeObject(req);
-
-            // Get response but body does not matter
-            Message resp = (Message) ois.readObject();
-
-            // Close streams and socket
-            oos.close();
-            ois.close();
-            sock.close();
+            resp = ReplicationScheduler.replicate(source, chain, fm);
+        } catch (IOException e) {
+            // Source is gone or too slow, try again
+            return _nodes;
+        }
+
+        ArrayList<String> stored = new ArrayList<String>();
+        ArrayList<String> unreachable = new ArrayList<String>();
+        FileTransfer.mergeChainReport(resp, stored, unreachable);
+
+        ArrayList<String> retry = new ArrayList<String>();
+        for (String node : _nodes) {
+            if (stored.contains(node)) {
+                _report.put(node, true);
+            }
+            // StorageNode is unavailable, mark it as dead.
+            else if (unreachable.contains(node)) {
+                ds.setNodeUnavailable(node);
+                _report.put(node, false);
+            }
+            // Busy or left out of the chain. Back off and retry.
+            else {
+                retry.add(node);
+            }
         }
-        // StorageNode is unavailable, mark it as dead.
-        catch (Exception e) {
-            ds.setNodeUnavailable(node);
+        return retry;
+    }
+
+    /**
+     * Downloads the file from the source once and sends it to every node from here
+     * @param _nodes StorageNodes that still need the file
+     * @param _report Result of each StorageNode to fill
+     * @return StorageNodes to try again
+     */
+    private ArrayList<String> fanOut(ArrayList<String> _nodes, HashMap<String, Boolean> _report) {
+        ArrayList<Address> addresses = new ArrayList<Address>();
+        for (String node : _nodes)
+            addresses.add(Address.parse(node));
+        HashMap<Address, Object> results = FileTransfer.fanOut(Address.parse(source), addresses, fm);
+
+        ArrayList<String> retry = new ArrayList<String>();
+        for (String node : _nodes) {
+            Object result = results.get(Address.parse(node));
+            if (result instanceof Message && ((Message) result).getMessage().equals("SUCCESS")) {
+                _report.put(node, true);
+            }
+            // StorageNode is unavailable, mark it as dead.
+            else if (result instanceof IOException) {
+                ds.setNodeUnavailable(node);
+                _report.put(node, false);
+            }
+            // A FAIL response means the StorageNode is too busy right now. Back off and retry.
+            else {
+                retry.add(node);
+            }
         }
+        return retry;
     }
 }
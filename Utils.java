@@ -12,13 +12,15 @@ public class Utils {
         System.out.println("Suktur");
     }
     /**
-     * Calculate byte size of an object
+     * Calculate byte size of an object as it goes over the network
      * @param _o: Object whose size to be calculated
      * @return Size
      */
     public static long calculateBytes(Object _o) {
         long total = 0;
         try {
+            if (_o instanceof Message && !Connection.JAVA_SERIALIZATION)
+                return WireCodec.encode((Message) _o).length;
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             ObjectOutputStream oos = new ObjectOutputStream(baos);
             oos.writeObject(_o);
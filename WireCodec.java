@@ -0,0 +1,443 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WireCodec encodes Message objects into compact length-prefixed binary frames
+ * and decodes them back. A frame looks like:
+ *
+ *   int   length of the rest of the frame
+ *   byte  protocol version
+ *   byte  OpCode of the message header
+ *   int   request ID
+ *   short number of content items
+ *   items (byte tag + payload)
+ *
+ * Strings, numbers, byte arrays, FileMeta objects, FileMeta lists, StateEntry
+ * lists, Jobs, Job lists, String and Integer lists, String sets and maps have
+ * their own typed encoders. Maps are decoded into ConcurrentHashMaps and sets
+ * into concurrent key sets, as the DirectoryServer state uses them. Anything
+ * else falls back to Java serialization per item, but only when the processes
+ * run with -Ddfs.wire.java=true; otherwise it is refused on both ends. Lengths
+ * and counts larger than the largest frame are refused before anything is
+ * allocated for them.
+ * FileMeta objects are written with their checksum. The tags of FileMeta
+ * objects without one are still read, so older snapshots and logs load.
+ */
+public class WireCodec {
+    static final byte VERSION = 4;
+
+    // Item tags
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INT = 2;
+    static final byte LONG = 3;
+    static final byte BOOLEAN = 4;
+    static final byte BYTES = 5;
+    static final byte FILEMETA = 6;
+    static final byte FILEMETA_LIST = 7;
+    static final byte STATE_ENTRY_LIST = 8;
+    static final byte JOB = 9;
+    static final byte JOB_LIST = 10;
+    static final byte FILEMETA_SUM = 11;
+    static final byte FILEMETA_SUM_LIST = 12;
+    static final byte STRING_LIST = 13;
+    static final byte INT_LIST = 14;
+    static final byte STRING_SET = 15;
+    static final byte MAP = 16;
+    static final byte OBJECT = 127;
+
+    /**
+     * Encodes a message into a frame
+     * @param _m Message to encode
+     * @return Frame bytes, including the length prefix
+     * @throws IOException if an item cannot be encoded
+     */
+    public static byte [] encode(Message _m) throws IOException {
+        OpCode op = OpCode.valueOf(_m.getMessage());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(baos);
+
+        // Reserve the length field, patch it at the end
+        out.writeInt(0);
+        out.writeByte(VERSION);
+        out.writeByte(op.getCode());
+        out.writeInt(_m.getRequestId());
+        out.writeShort(_m.getContent().size());
+        for (Object o : _m.getContent())
+            writeItem(out, o);
+        out.flush();
+
+        byte [] frame = baos.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Builds the beginning of a CHUNK frame that carries _len bytes as its only item.
+     * The caller writes the _len content bytes right after it, e.g. straight from a file.
+     * @param _requestId Request ID of the frame
+     * @param _len Number of content bytes that will follow
+     * @return Frame header bytes
+     */
+    public static byte [] chunkHeader(int _requestId, int _len) {
+        ByteBuffer buff = ByteBuffer.allocate(17);
+        buff.putInt(13 + _len);
+        buff.put(VERSION);
+        buff.put(OpCode.CHUNK.getCode());
+        buff.putInt(_requestId);
+        buff.putShort((short) 1);
+        buff.put(BYTES);
+        buff.putInt(_len);
+        return buff.array();
+    }
+
+    /**
+     * Reads and decodes a single frame from an input stream
+     * @param _in Stream to read from
+     * @return Decoded message
+     * @throws IOException if the stream ends or the frame is malformed
+     */
+    public static Message decode(DataInputStream _in) throws IOException {
+        _in.readInt();
+        return decodeBody(_in);
+    }
+
+    /**
+     * Decodes a frame whose length prefix has already been consumed
+     * @param _in Stream positioned at the version byte
+     * @return Decoded message
+     * @throws IOException if the frame is malformed
+     */
+    public static Message decodeBody(DataInputStream _in) throws IOException {
+        byte version = _in.readByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported protocol version " + version);
+
+        OpCode op = OpCode.fromCode(_in.readByte());
+        if (op == null)
+            throw new IOException("Unknown opcode");
+
+        Message m = new Message(op.name());
+        m.setRequestId(_in.readInt());
+        int count = _in.readUnsignedShort();
+        for (int i = 0; i < count; i++)
+            m.addContent(readItem(_in));
+        return m;
+    }
+
+    /**
+     * Encodes a single tagged item, e.g. to cache it in an EncodedItem
+     * @param _o Item to encode
+     * @return Tagged item bytes
+     * @throws IOException if the item cannot be encoded
+     */
+    public static byte [] encodeItem(Object _o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        writeItem(out, _o);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes a single tagged item
+     * @param _out Stream to write into
+     * @param _o Item to write
+     * @throws IOException if the item cannot be written
+     */
+    static void writeItem(DataOutputStream _out, Object _o) throws IOException {
+        if (_o == null) {
+            _out.writeByte(NULL);
+        } else if (_o instanceof EncodedItem) {
+            _out.write(((EncodedItem) _o).getBytes());
+        } else if (_o instanceof String) {
+            _out.writeByte(STRING);
+            writeString(_out, (String) _o);
+        } else if (_o instanceof Integer) {
+            _out.writeByte(INT);
+            _out.writeInt((Integer) _o);
+        } else if (_o instanceof Long) {
+            _out.writeByte(LONG);
+            _out.writeLong((Long) _o);
+        } else if (_o instanceof Boolean) {
+            _out.writeByte(BOOLEAN);
+            _out.writeBoolean((Boolean) _o);
+        } else if (_o instanceof byte []) {
+            byte [] b = (byte []) _o;
+            _out.writeByte(BYTES);
+            _out.writeInt(b.length);
+            _out.write(b);
+        } else if (_o instanceof FileMeta) {
+            _out.writeByte(FILEMETA_SUM);
+            writeFileMeta(_out, (FileMeta) _o);
+        } else if (_o instanceof Job) {
+            _out.writeByte(JOB);
+            writeJob(_out, (Job) _o);
+        } else if (isListOf(_o, Job.class) && !((ArrayList<?>) _o).isEmpty()) {
+            ArrayList<?> list = (ArrayList<?>) _o;
+            _out.writeByte(JOB_LIST);
+            _out.writeInt(list.size());
+            for (Object j : list)
+                writeJob(_out, (Job) j);
+        } else if (isListOf(_o, StateEntry.class) && !((ArrayList<?>) _o).isEmpty()) {
+            ArrayList<?> list = (ArrayList<?>) _o;
+            _out.writeByte(STATE_ENTRY_LIST);
+            _out.writeInt(list.size());
+            for (Object e : list)
+                writeStateEntry(_out, (StateEntry) e);
+        } else if (isListOf(_o, String.class) && !((ArrayList<?>) _o).isEmpty()) {
+            ArrayList<?> list = (ArrayList<?>) _o;
+            _out.writeByte(STRING_LIST);
+            _out.writeInt(list.size());
+            for (Object str : list)
+                writeString(_out, (String) str);
+        } else if (isListOf(_o, Integer.class) && !((ArrayList<?>) _o).isEmpty()) {
+            ArrayList<?> list = (ArrayList<?>) _o;
+            _out.writeByte(INT_LIST);
+            _out.writeInt(list.size());
+            for (Object i : list)
+                _out.writeInt((Integer) i);
+        } else if (_o instanceof Set && allOf((Set<?>) _o, String.class)) {
+            Set<?> set = (Set<?>) _o;
+            // Copy first, a concurrent set may change while it is written
+            Object [] names = set.toArray();
+            _out.writeByte(STRING_SET);
+            _out.writeInt(names.length);
+            for (Object str : names)
+                writeString(_out, (String) str);
+        } else if (_o instanceof Map) {
+            ArrayList<Map.Entry<?, ?>> entries = new ArrayList<Map.Entry<?, ?>>(((Map<?, ?>) _o).entrySet());
+            _out.writeByte(MAP);
+            _out.writeInt(entries.size());
+            for (Map.Entry<?, ?> e : entries) {
+                writeItem(_out, e.getKey());
+                writeItem(_out, e.getValue());
+            }
+        } else if (isListOf(_o, FileMeta.class)) {
+            ArrayList<?> list = (ArrayList<?>) _o;
+            _out.writeByte(FILEMETA_SUM_LIST);
+            _out.writeInt(list.size());
+            for (Object fm : list)
+                writeFileMeta(_out, (FileMeta) fm);
+        } else {
+            // Fallback for types without a typed encoder
+            if (!Connection.JAVA_SERIALIZATION)
+                throw new IOException("No encoder for " + _o.getClass().getName() + " without -Ddfs.wire.java=true");
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(_o);
+            oos.close();
+            _out.writeByte(OBJECT);
+            _out.writeInt(baos.size());
+            baos.writeTo(_out);
+        }
+    }
+
+    /**
+     * Reads a single tagged item
+     * @param _in Stream to read from
+     * @return Decoded item
+     * @throws IOException if the item is malformed
+     */
+    static Object readItem(DataInputStream _in) throws IOException {
+        byte tag = _in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(_in);
+            case INT:
+                return _in.readInt();
+            case LONG:
+                return _in.readLong();
+            case BOOLEAN:
+                return _in.readBoolean();
+            case BYTES:
+                byte [] b = new byte[readLength(_in)];
+                _in.readFully(b);
+                return b;
+            case FILEMETA:
+            case FILEMETA_SUM:
+                return readFileMeta(_in, tag == FILEMETA_SUM);
+            case FILEMETA_LIST:
+            case FILEMETA_SUM_LIST:
+                int size = readLength(_in);
+                ArrayList<FileMeta> list = new ArrayList<FileMeta>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readFileMeta(_in, tag == FILEMETA_SUM_LIST));
+                return list;
+            case STATE_ENTRY_LIST:
+                int entries = readLength(_in);
+                ArrayList<StateEntry> log = new ArrayList<StateEntry>(entries);
+                for (int i = 0; i < entries; i++)
+                    log.add(readStateEntry(_in));
+                return log;
+            case JOB:
+                return readJob(_in);
+            case JOB_LIST:
+                int jobCount = readLength(_in);
+                ArrayList<Job> jobs = new ArrayList<Job>(jobCount);
+                for (int i = 0; i < jobCount; i++)
+                    jobs.add(readJob(_in));
+                return jobs;
+            case STRING_LIST:
+                int strings = readLength(_in);
+                ArrayList<String> strList = new ArrayList<String>(strings);
+                for (int i = 0; i < strings; i++)
+                    strList.add(readString(_in));
+                return strList;
+            case INT_LIST:
+                int ints = readLength(_in);
+                ArrayList<Integer> intList = new ArrayList<Integer>(ints);
+                for (int i = 0; i < ints; i++)
+                    intList.add(_in.readInt());
+                return intList;
+            case STRING_SET:
+                int members = readLength(_in);
+                Set<String> set = ConcurrentHashMap.newKeySet(members);
+                for (int i = 0; i < members; i++)
+                    set.add(readString(_in));
+                return set;
+            case MAP:
+                int pairs = readLength(_in);
+                ConcurrentHashMap<Object, Object> map = new ConcurrentHashMap<Object, Object>(pairs * 4 / 3 + 16);
+                for (int i = 0; i < pairs; i++) {
+                    Object key = readItem(_in);
+                    Object value = readItem(_in);
+                    if (key == null || value == null) throw new IOException("Null map entry");
+                    map.put(key, value);
+                }
+                return map;
+            case OBJECT:
+                if (!Connection.JAVA_SERIALIZATION)
+                    throw new IOException("Refusing a Java serialized item without -Ddfs.wire.java=true");
+                byte [] o = new byte[readLength(_in)];
+                _in.readFully(o);
+                try {
+                    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(o));
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            default:
+                throw new IOException("Unknown item tag " + tag);
+        }
+    }
+
+    /**
+     * Checks if an object is a list whose elements are all of a class
+     * @param _o Object to check
+     * @param _type Class of the elements
+     * @return true if it is such a list, false otherwise
+     */
+    private static boolean isListOf(Object _o, Class<?> _type) {
+        return _o instanceof ArrayList && allOf((ArrayList<?>) _o, _type);
+    }
+
+    /**
+     * Checks if all elements of a collection are of a class
+     * @param _c Collection to check
+     * @param _type Class of the elements
+     * @return true if they all are, false otherwise
+     */
+    private static boolean allOf(Collection<?> _c, Class<?> _type) {
+        for (Object e : _c)
+            if (!_type.isInstance(e)) return false;
+        return true;
+    }
+
+    /**
+     * Reads a length or element count, which can never exceed the largest frame
+     * @param _in Stream to read from
+     * @return Length
+     * @throws IOException if the length is negative or too large
+     */
+    private static int readLength(DataInputStream _in) throws IOException {
+        int len = _in.readInt();
+        if (len < 0 || len > SelectorServer.MAX_FRAME) throw new IOException("Bad item length " + len);
+        return len;
+    }
+
+    /**
+     * Writes a StateEntry: its sequence number, type and tagged arguments
+     * @param _out Stream to write into
+     * @param _e Entry to write
+     * @throws IOException if an argument cannot be written
+     */
+    static void writeStateEntry(DataOutputStream _out, StateEntry _e) throws IOException {
+        _out.writeLong(_e.getSeq());
+        writeString(_out, _e.getOp());
+        _out.writeShort(_e.getArgs().size());
+        for (Object o : _e.getArgs())
+            writeItem(_out, o);
+    }
+
+    /**
+     * Reads a StateEntry written by writeStateEntry
+     * @param _in Stream to read from
+     * @return Entry
+     * @throws IOException if the entry is malformed
+     */
+    static StateEntry readStateEntry(DataInputStream _in) throws IOException {
+        long seq = _in.readLong();
+        String op = readString(_in);
+        Object [] args = new Object[_in.readUnsignedShort()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = readItem(_in);
+        return new StateEntry(seq, op, args);
+    }
+
+    private static void writeJob(DataOutputStream _out, Job _j) throws IOException {
+        _out.writeLong(_j.getId());
+        writeString(_out, _j.getType());
+        writeString(_out, _j.getNode());
+        _out.writeLong(_j.getCreated());
+        // 0: no file, 1: file without a checksum (older logs), 2: file with its checksum
+        _out.writeByte(_j.getFile() != null ? 2 : 0);
+        if (_j.getFile() != null) writeFileMeta(_out, _j.getFile());
+    }
+
+    private static Job readJob(DataInputStream _in) throws IOException {
+        long id = _in.readLong();
+        String type = readString(_in);
+        String node = readString(_in);
+        long created = _in.readLong();
+        byte flag = _in.readByte();
+        FileMeta file = flag != 0 ? readFileMeta(_in, flag == 2) : null;
+        return new Job(id, type, node, file, created);
+    }
+
+    private static void writeFileMeta(DataOutputStream _out, FileMeta _fm) throws IOException {
+        writeString(_out, _fm.getName());
+        _out.writeLong(_fm.getSize());
+        _out.writeLong(_fm.getChecksum());
+    }
+
+    private static FileMeta readFileMeta(DataInputStream _in, boolean _checksum) throws IOException {
+        String name = readString(_in);
+        long size = _in.readLong();
+        return new FileMeta(name, size, _checksum ? _in.readLong() : FileMeta.NO_CHECKSUM);
+    }
+
+    private static void writeString(DataOutputStream _out, String _s) throws IOException {
+        byte [] b = _s.getBytes(StandardCharsets.UTF_8);
+        _out.writeInt(b.length);
+        _out.write(b);
+    }
+
+    private static String readString(DataInputStream _in) throws IOException {
+        byte [] b = new byte[readLength(_in)];
+        _in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}